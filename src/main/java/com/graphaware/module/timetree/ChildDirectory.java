@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used directory of the children of time tree nodes. For each cached parent, it holds the
+ * values of the parent's children sorted in ascending order, together with the IDs of the child nodes, so that a child
+ * can be located by binary search rather than by walking the
+ * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#NEXT} chain.
+ * <p>
+ * The directory holds node IDs only; callers are responsible for verifying that a child still exists. In order to
+ * prevent a directory read from a stale snapshot of the graph being cached after the parent has changed, every eviction
+ * bumps a generation number and a directory is only cached if no eviction happened since it started being built.
+ * This class is thread-safe.
+ */
+class ChildDirectory {
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final Map<Long, Children> directories;
+    private long generation = 0;
+
+    /**
+     * Create a new directory.
+     *
+     * @param capacity maximum number of parents, whose children are held by the directory. Least recently used parents
+     *                 are evicted first.
+     */
+    ChildDirectory(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Child directory capacity must be positive");
+        }
+
+        this.directories = new LinkedHashMap<Long, Children>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Children> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the children of a parent.
+     *
+     * @param parentId ID of the parent.
+     * @return children, <code>null</code> if not cached.
+     */
+    synchronized Children get(long parentId) {
+        return directories.get(parentId);
+    }
+
+    /**
+     * Get the current generation. To be read before the children of a parent are read from the graph.
+     *
+     * @return generation.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache the children of a parent, unless anything has been evicted since the given generation.
+     *
+     * @param parentId   ID of the parent.
+     * @param children   children of the parent.
+     * @param generation generation obtained by {@link #generation()} before the children were read from the graph.
+     */
+    synchronized void put(long parentId, Children children, long generation) {
+        if (this.generation == generation) {
+            directories.put(parentId, children);
+        }
+    }
+
+    /**
+     * Evict the children of a parent, if cached.
+     *
+     * @param parentId ID of the parent.
+     */
+    synchronized void evict(long parentId) {
+        generation++;
+        directories.remove(parentId);
+    }
+
+    /**
+     * @return <code>true</code> iff there are no entries.
+     */
+    synchronized boolean isEmpty() {
+        return directories.isEmpty();
+    }
+
+    /**
+     * Children of a single parent, sorted by value. Immutable.
+     */
+    static final class Children {
+
+        private final int[] values;
+        private final long[] ids;
+
+        /**
+         * Create children of a parent.
+         *
+         * @param values values of the children, sorted in ascending order.
+         * @param ids    IDs of the child nodes, in the same order as values.
+         */
+        Children(int[] values, long[] ids) {
+            if (values.length != ids.length) {
+                throw new IllegalArgumentException("There must be exactly one ID per value");
+            }
+
+            this.values = values;
+            this.ids = ids;
+        }
+
+        /**
+         * Find the index of a child.
+         *
+         * @param value of the child.
+         * @return index of the child, if present; otherwise <code>(-(insertion point) - 1)</code>, as defined by
+         * {@link Arrays#binarySearch(int[], int)}.
+         */
+        int indexOf(int value) {
+            return Arrays.binarySearch(values, value);
+        }
+
+        int getValue(int index) {
+            return values[index];
+        }
+
+        long getId(int index) {
+            return ids[index];
+        }
+
+        int size() {
+            return values.length;
+        }
+    }
+}
@@ -31,6 +31,17 @@ public class CustomRootTimeTree extends SingleTimeTree {
         this.root = root;
     }
 
+    /**
+     * Constructor for a tree, which shares its caches with other trees. Used by {@link TimeTreeRegistry}.
+     *
+     * @param root  of the tree.
+     * @param cache shared caches.
+     */
+    CustomRootTimeTree(Node root, TimeTreeCache cache) {
+        super(root.getGraphDatabase(), cache);
+        this.root = root;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -38,4 +49,12 @@ public class CustomRootTimeTree extends SingleTimeTree {
     protected Node getTimeRoot() {
         return root;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Node findTimeRoot() {
+        return root;
+    }
 }
@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.common.util.DirectionUtils;
+import com.graphaware.module.timetree.domain.Aggregate;
+import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.Resolution;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.*;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.BUCKET;
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.CHILD;
+import static org.neo4j.graphdb.Direction.BOTH;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * Maintains aggregates (count, sum, minimum and maximum) of a numeric property of events on the time instants the
+ * events are attached to and their ancestors, so that the property can be aggregated over a range of instants without
+ * visiting any events. It is enabled by {@link EventSettings#withAggregatedProperty(String)}.
+ * <p>
+ * Like {@link EventCounts}, the node an event is attached to, i.e. the instant or one of its buckets, holds one property
+ * per direction and relationship type of the events attached to it; its value is a <code>double[]</code> of count, sum,
+ * minimum, maximum and the number of relationships accounted for, with or without a value. Every ancestor of the instant
+ * holds the count, sum, minimum and maximum of the events attached to its descendants, one property per resolution the
+ * events are attached at. A range is aggregated by merging the values held by the instants visited by
+ * {@link InstantRanges#cover(Node, Node, java.util.function.Consumer)} and their buckets.
+ * <p>
+ * Count and sum are adjusted in constant time. The ancestors are updated through {@link RollUps}, once per transaction.
+ * Extremes are only recomputed when a removed value has been equal to one, once per node and transaction: those of the
+ * node the event has been attached to from the node's remaining events, those of an ancestor from its children.
+ * <p>
+ * Values of events attached to the tree are only tracked if the events are attached and detached through
+ * {@link TimedEvents}, their changes are reported through {@link #valueChanged(Node, RelationshipType, Direction, Object, Object)},
+ * and nodes that lost events otherwise are reconciled through
+ * {@link TimeTreeBackedEvents#reconcile(Node, Collection, RelationshipType, Direction)}. The last two are done automatically
+ * by {@link com.graphaware.module.timetree.module.TimeTreeModule}. Non-numeric values are ignored.
+ */
+public final class EventAggregator {
+
+    static final String PREFIX = "eventAggregate";
+    private static final String ROLL_UP_PREFIX = "eventAggregateRollUp";
+    private static final String PENDING_PREFIX = "eventAggregatePending";
+    private static final String SEPARATOR = ":";
+
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int ATTACHED = 4;
+
+    //pending changes of the ancestors hold count, sum and the extremes of the added and the removed values
+    private static final int ADDED_MIN = 2;
+    private static final int ADDED_MAX = 3;
+    private static final int REMOVED_MIN = 4;
+    private static final int REMOVED_MAX = 5;
+
+    private final String property;
+
+    /**
+     * Create a new aggregator.
+     *
+     * @param property of the event nodes to aggregate.
+     */
+    public EventAggregator(String property) {
+        if (property == null || property.isEmpty()) {
+            throw new IllegalArgumentException("Aggregated property must not be empty");
+        }
+
+        this.property = property;
+    }
+
+    /**
+     * Get the aggregated property.
+     *
+     * @return property of the event nodes.
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * Record an event having been attached to an instant.
+     *
+     * @param target    the event has been attached to, i.e. the instant or one of its buckets.
+     * @param event     that has been attached.
+     * @param type      of the relationship between the event and the instant.
+     * @param direction of the relationship from the instant's point of view.
+     */
+    void attached(Node target, Node event, RelationshipType type, Direction direction) {
+        update(target, type, direction, toValue(event.getProperty(property, null)), null, 1);
+    }
+
+    /**
+     * Record an event having been detached from an instant.
+     *
+     * @param target    the event has been detached from, i.e. the instant or one of its buckets.
+     * @param event     that has been detached.
+     * @param type      of the relationship between the event and the instant.
+     * @param direction of the relationship from the instant's point of view.
+     */
+    void detached(Node target, Node event, RelationshipType type, Direction direction) {
+        update(target, type, direction, null, toValue(event.getProperty(property, null)), -1);
+    }
+
+    /**
+     * Bring the aggregate of a node in line with the events attached to it, after some of the relationships attaching
+     * events have been deleted in the current transaction, possibly without detaching the events. The values of the
+     * deleted events are removed from the aggregate, unless they have already been removed by detaching the events.
+     * Only when that can't be told for every deleted relationship, e.g. because some events of the node have been
+     * detached and others deleted, is the aggregate recomputed from the remaining events.
+     *
+     * @param target    events were attached to, i.e. an instant or one of its buckets.
+     * @param deleted   relationships of the target deleted in the current transaction, with the properties their
+     *                  nodes had before the transaction.
+     * @param type      of the relationships between the events and the instant.
+     * @param direction of the relationships from the instant's point of view.
+     */
+    void reconcile(Node target, Collection<Relationship> deleted, RelationshipType type, Direction direction) {
+        double[] aggregate = (double[]) target.getProperty(key(PREFIX, type, direction), null);
+
+        long unaccounted = aggregate == null || aggregate.length <= ATTACHED ? -1 : (long) aggregate[ATTACHED] - target.getDegree(type, direction);
+
+        if (unaccounted == 0) {
+            return;
+        }
+
+        if (unaccounted == deleted.size()) {
+            List<Double> values = new ArrayList<>(deleted.size());
+            try {
+                for (Relationship relationship : deleted) {
+                    Node event = INCOMING.equals(direction) ? relationship.getStartNode() : relationship.getEndNode();
+                    values.add(toValue(event.getProperty(property, null)));
+                }
+            } catch (NotFoundException e) {
+                recompute(target, type, direction);
+                return;
+            }
+
+            for (Double value : values) {
+                update(target, type, direction, null, value, -1);
+            }
+            return;
+        }
+
+        recompute(target, type, direction);
+    }
+
+    /**
+     * Recompute the aggregate of a node from the events attached to it, e.g. after some of the relationships attaching
+     * events have been deleted without detaching the events.
+     *
+     * @param target    events are attached to, i.e. an instant or one of its buckets.
+     * @param type      of the relationships between the events and the instant.
+     * @param direction of the relationships from the instant's point of view.
+     */
+    void recompute(Node target, RelationshipType type, Direction direction) {
+        if (InstantRanges.resolutionOf(EventBuckets.instantOf(target)) == null) {
+            return;
+        }
+
+        String key = key(PREFIX, type, direction);
+        double[] previous = own(target, key);
+        double[] aggregate = aggregateEvents(target, type, direction);
+
+        store(target, key, aggregate);
+
+        double[] change = noChange();
+        change[COUNT] = aggregate[COUNT] - previous[COUNT];
+        change[SUM] = aggregate[SUM] - previous[SUM];
+        change[ADDED_MIN] = aggregate[MIN];
+        change[ADDED_MAX] = aggregate[MAX];
+        change[REMOVED_MIN] = previous[MIN];
+        change[REMOVED_MAX] = previous[MAX];
+        defer(target, key(PENDING_PREFIX, type, direction), change);
+    }
+
+    /**
+     * Record a change of the aggregated property of an event, which has already been applied to the event.
+     *
+     * @param event     whose property has changed.
+     * @param type      of the relationships between the event and the instants it is attached to.
+     * @param direction of the relationships from the instants' point of view.
+     * @param previous  value of the property, <code>null</code> if the property has been created.
+     * @param current   value of the property, <code>null</code> if the property has been deleted.
+     */
+    public void valueChanged(Node event, RelationshipType type, Direction direction, Object previous, Object current) {
+        Double previousValue = toValue(previous);
+        Double currentValue = toValue(current);
+
+        if (previousValue == null ? currentValue == null : previousValue.equals(currentValue)) {
+            return;
+        }
+
+        for (Relationship relationship : event.getRelationships(DirectionUtils.reverse(direction), type)) {
+            update(relationship.getOtherNode(event), type, direction, currentValue, previousValue, 0);
+        }
+    }
+
+    /**
+     * Aggregate the property of events attached to the instants between the given ones (inclusive) and all their
+     * children.
+     *
+     * @param first     first instant, must not be after the last one and must have the same resolution.
+     * @param last      last instant.
+     * @param types     names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @return aggregate.
+     */
+    Aggregate aggregate(Node first, Node last, Set<String> types, Direction direction) {
+        RollUps.apply(first.getGraphDatabase());
+
+        Resolution resolution = Resolution.findForNode(first);
+        double[] result = empty();
+        InstantRanges.cover(first, last, node -> merge(result, node, resolution, types, direction));
+        return toAggregate(result);
+    }
+
+    /**
+     * Aggregate a property of events by visiting them one by one.
+     *
+     * @param events   to aggregate.
+     * @param property of the event nodes to aggregate.
+     * @return aggregate.
+     */
+    static Aggregate aggregate(Iterator<Event> events, String property) {
+        double[] result = empty();
+
+        while (events.hasNext()) {
+            Double value = toValue(events.next().getNode().getProperty(property, null));
+            if (value != null) {
+                merge(result, new double[]{1, value, value, value});
+            }
+        }
+
+        return toAggregate(result);
+    }
+
+    /**
+     * Update the aggregate of the node events are attached to and record the change of its ancestors.
+     *
+     * @param target   events are attached to.
+     * @param added    value, <code>null</code> for none.
+     * @param removed  value, <code>null</code> for none.
+     * @param attached change of the number of relationships attaching events.
+     */
+    private void update(Node target, RelationshipType type, Direction direction, Double added, Double removed, int attached) {
+        if (InstantRanges.resolutionOf(EventBuckets.instantOf(target)) == null) {
+            return;
+        }
+
+        String key = key(PREFIX, type, direction);
+        double[] aggregate = own(target, key);
+        double[] change = noChange();
+
+        aggregate[ATTACHED] += attached;
+
+        if (added != null) {
+            merge(aggregate, new double[]{1, added, added, added});
+            merge(change, new double[]{1, added, added, added});
+        }
+
+        //the extremes are left as they are and recomputed before the transaction commits, if need be
+        if (removed != null) {
+            aggregate[COUNT]--;
+            aggregate[SUM] -= removed;
+            change[COUNT]--;
+            change[SUM] -= removed;
+            change[REMOVED_MIN] = removed;
+            change[REMOVED_MAX] = removed;
+        }
+
+        store(target, key, aggregate);
+
+        if (added != null || removed != null) {
+            defer(target, key(PENDING_PREFIX, type, direction), change);
+        }
+    }
+
+    private static void defer(Node target, String key, double[] change) {
+        double[] pending = (double[]) target.getProperty(key, null);
+
+        if (pending != null) {
+            mergeChange(change, pending);
+        }
+
+        target.setProperty(key, change);
+        RollUps.pending(target);
+    }
+
+    /**
+     * Add the changes pending on a node to the aggregates of its instant's ancestors and clear them. The extremes of the
+     * node's own aggregates are recomputed first, if a removed value has been equal to one of them.
+     *
+     * @param target  events are attached to, i.e. an instant or one of its buckets.
+     * @param rollUps to add the changes to.
+     */
+    static void rollUp(Node target, RollUps rollUps) {
+        Node instant = EventBuckets.instantOf(target);
+        Resolution resolution = InstantRanges.resolutionOf(instant);
+
+        for (Map.Entry<String, Object> entry : target.getAllProperties().entrySet()) {
+            if (!entry.getKey().startsWith(PENDING_PREFIX + SEPARATOR) || !(entry.getValue() instanceof double[])) {
+                continue;
+            }
+
+            target.removeProperty(entry.getKey());
+
+            //property, direction and type
+            String[] parts = entry.getKey().substring(PENDING_PREFIX.length() + 1).split(SEPARATOR, 3);
+
+            if (resolution == null || parts.length < 3) {
+                continue;
+            }
+
+            double[] change = (double[]) entry.getValue();
+            String key = PREFIX + SEPARATOR + parts[0] + SEPARATOR + parts[1] + SEPARATOR + parts[2];
+            double[] aggregate = (double[]) target.getProperty(key, null);
+
+            if (aggregate != null && aggregate[COUNT] > 0 && (change[REMOVED_MIN] <= aggregate[MIN] || change[REMOVED_MAX] >= aggregate[MAX])) {
+                double[] extremes = aggregateEvents(target, parts[0], Direction.valueOf(parts[1]), RelationshipType.withName(parts[2]));
+                aggregate[MIN] = extremes[MIN];
+                aggregate[MAX] = extremes[MAX];
+                target.setProperty(key, aggregate);
+            }
+
+            String rollUpKey = ROLL_UP_PREFIX + SEPARATOR + parts[0] + SEPARATOR + resolution.name() + SEPARATOR + parts[1] + SEPARATOR + parts[2];
+            for (Node ancestor = InstantRanges.parentOrNull(instant); ancestor != null && InstantRanges.resolutionOf(ancestor) != null; ancestor = InstantRanges.parentOrNull(ancestor)) {
+                rollUps.aggregate(ancestor, rollUpKey, change);
+            }
+        }
+    }
+
+    /**
+     * Apply changes of the aggregates held by an ancestor, whose children have already been brought up to date.
+     *
+     * @param ancestor holding the aggregates.
+     * @param changes  by property key.
+     */
+    static void apply(Node ancestor, Map<String, double[]> changes) {
+        for (Map.Entry<String, double[]> entry : changes.entrySet()) {
+            String key = entry.getKey();
+            double[] change = entry.getValue();
+            double[] aggregate = (double[]) ancestor.getProperty(key, empty());
+
+            aggregate[COUNT] += change[COUNT];
+            aggregate[SUM] += change[SUM];
+
+            if (aggregate[COUNT] <= 0) {
+                ancestor.removeProperty(key);
+                continue;
+            }
+
+            if (change[REMOVED_MIN] <= aggregate[MIN] || change[REMOVED_MAX] >= aggregate[MAX]) {
+                double[] extremes = aggregateChildren(ancestor, key);
+                aggregate[MIN] = extremes[MIN];
+                aggregate[MAX] = extremes[MAX];
+            }
+
+            aggregate[MIN] = Math.min(aggregate[MIN], change[ADDED_MIN]);
+            aggregate[MAX] = Math.max(aggregate[MAX], change[ADDED_MAX]);
+
+            ancestor.setProperty(key, aggregate);
+        }
+    }
+
+    /**
+     * Merge two pending changes.
+     *
+     * @param result to merge into.
+     * @param other  to merge.
+     */
+    static void mergeChange(double[] result, double[] other) {
+        merge(result, other);
+        result[REMOVED_MIN] = Math.min(result[REMOVED_MIN], other[REMOVED_MIN]);
+        result[REMOVED_MAX] = Math.max(result[REMOVED_MAX], other[REMOVED_MAX]);
+    }
+
+    /**
+     * Aggregate the values a roll-up of an ancestor consists of, held by its children.
+     *
+     * @param ancestor holding the roll-up.
+     * @param key      of the roll-up.
+     * @return aggregate of the children.
+     */
+    private static double[] aggregateChildren(Node ancestor, String key) {
+        //property, resolution, direction and type
+        String[] parts = key.substring(ROLL_UP_PREFIX.length() + 1).split(SEPARATOR, 4);
+        Resolution resolution = Resolution.valueOf(parts[1]);
+        String ownKey = PREFIX + SEPARATOR + parts[0] + SEPARATOR + parts[2] + SEPARATOR + parts[3];
+
+        double[] result = empty();
+
+        for (Relationship relationship : ancestor.getRelationships(OUTGOING, CHILD)) {
+            Node child = relationship.getEndNode();
+
+            if (InstantRanges.resolutionOf(child) != resolution) {
+                mergeProperty(result, child, key);
+                continue;
+            }
+
+            mergeProperty(result, child, ownKey);
+            for (Relationship bucket : child.getRelationships(OUTGOING, BUCKET)) {
+                mergeProperty(result, bucket.getEndNode(), ownKey);
+            }
+        }
+
+        return result;
+    }
+
+    private static void mergeProperty(double[] result, Node node, String key) {
+        Object value = node.getProperty(key, null);
+
+        if (value instanceof double[]) {
+            merge(result, (double[]) value);
+        }
+    }
+
+    private double[] aggregateEvents(Node target, RelationshipType type, Direction direction) {
+        double[] result = aggregateEvents(target, property, direction, type);
+        result[ATTACHED] = target.getDegree(type, direction);
+        return result;
+    }
+
+    /**
+     * Aggregate the property of events attached directly to a node, without looking at the node's buckets.
+     */
+    private static double[] aggregateEvents(Node target, String property, Direction direction, RelationshipType type) {
+        double[] result = new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0};
+
+        for (Relationship relationship : target.getRelationships(direction, type)) {
+            Double value = toValue(relationship.getOtherNode(target).getProperty(property, null));
+            if (value != null) {
+                merge(result, new double[]{1, value, value, value});
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Merge the values a node holds for a range of the given resolution.
+     */
+    private void merge(double[] result, Node instant, Resolution resolution, Set<String> types, Direction direction) {
+        merge(result, instant, ROLL_UP_PREFIX, resolution, types, direction);
+
+        if (Resolution.findForNode(instant).compareTo(resolution) >= 0) {
+            merge(result, instant, PREFIX, null, types, direction);
+
+            for (Relationship bucket : instant.getRelationships(OUTGOING, BUCKET)) {
+                merge(result, bucket.getEndNode(), PREFIX, null, types, direction);
+            }
+        }
+    }
+
+    /**
+     * Merge the values held by a node.
+     *
+     * @param result     to merge into.
+     * @param node       holding the values.
+     * @param prefix     of the properties holding the values.
+     * @param resolution the lowest resolution of events to merge, <code>null</code> if the properties aren't per resolution.
+     * @param types      names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction  of relationships between instants and events from the instants' point of view.
+     */
+    private void merge(double[] result, Node node, String prefix, Resolution resolution, Set<String> types, Direction direction) {
+        String propertyPrefix = prefix + SEPARATOR + property + SEPARATOR;
+
+        for (Map.Entry<String, Object> entry : node.getAllProperties().entrySet()) {
+            if (!entry.getKey().startsWith(propertyPrefix) || !(entry.getValue() instanceof double[])) {
+                continue;
+            }
+
+            String[] parts = entry.getKey().substring(propertyPrefix.length()).split(SEPARATOR, resolution == null ? 2 : 3);
+            int offset = resolution == null ? 0 : 1;
+
+            if (parts.length < offset + 2) {
+                continue;
+            }
+
+            if (resolution != null && Resolution.valueOf(parts[0]).compareTo(resolution) < 0) {
+                continue;
+            }
+
+            if (!BOTH.equals(direction) && !direction.name().equals(parts[offset])) {
+                continue;
+            }
+
+            if (types != null && !types.contains(parts[offset + 1])) {
+                continue;
+            }
+
+            merge(result, (double[]) entry.getValue());
+        }
+    }
+
+    /**
+     * Get the aggregate of a node events are attached to, for modification.
+     */
+    private static double[] own(Node target, String key) {
+        double[] aggregate = (double[]) target.getProperty(key, null);
+
+        if (aggregate == null) {
+            return new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0};
+        }
+
+        if (aggregate.length <= ATTACHED) {
+            //kept before the number of relationships was
+            aggregate = Arrays.copyOf(aggregate, ATTACHED + 1);
+            aggregate[ATTACHED] = aggregate[COUNT];
+        }
+
+        return aggregate;
+    }
+
+    private static void store(Node target, String key, double[] aggregate) {
+        if (aggregate[COUNT] <= 0) {
+            aggregate[COUNT] = 0;
+            aggregate[SUM] = 0;
+            aggregate[MIN] = Double.POSITIVE_INFINITY;
+            aggregate[MAX] = Double.NEGATIVE_INFINITY;
+        }
+
+        if (aggregate[COUNT] <= 0 && aggregate[ATTACHED] <= 0) {
+            target.removeProperty(key);
+        } else {
+            target.setProperty(key, aggregate);
+        }
+    }
+
+    private String key(String prefix, RelationshipType type, Direction direction) {
+        return prefix + SEPARATOR + property + SEPARATOR + direction.name() + SEPARATOR + type.name();
+    }
+
+    private static double[] empty() {
+        return new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    }
+
+    private static double[] noChange() {
+        return new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    }
+
+    private static void merge(double[] result, double[] other) {
+        result[COUNT] += other[COUNT];
+        result[SUM] += other[SUM];
+        result[MIN] = Math.min(result[MIN], other[MIN]);
+        result[MAX] = Math.max(result[MAX], other[MAX]);
+    }
+
+    private static Aggregate toAggregate(double[] aggregate) {
+        return new Aggregate((long) aggregate[COUNT], aggregate[SUM], aggregate[MIN], aggregate[MAX]);
+    }
+
+    private static Double toValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.BUCKET;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * Spreads events attached to hot time instants over bucket nodes, so that no instant becomes a super node. It is
+ * enabled by {@link EventSettings#withBucketing(int, int)}.
+ * <p>
+ * Once the degree of an instant reaches the threshold, the instant is assigned a fixed number of buckets, recorded on
+ * the instant, and every event attached to it afterwards is attached to one of the bucket nodes instead, using the same
+ * relationship type and direction. Buckets hang off the instant via
+ * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#BUCKET} relationships and are created lazily.
+ * The bucket of an event is chosen by its node ID, so an event always maps to the same bucket of an instant and
+ * concurrent attachments to the same instant lock different nodes. Events attached before the threshold was reached
+ * stay attached to the instant itself.
+ * <p>
+ * Reading events is unaffected by whether bucketing is enabled: events attached to buckets are always returned as if
+ * they were attached to the instant.
+ */
+public final class EventBuckets {
+
+    public static final int DEFAULT_BUCKET_COUNT = 16;
+
+    static final Label BUCKET_LABEL = Label.label("TimeTreeBucket");
+    static final String BUCKET_COUNT_PROPERTY = "bucketCount";
+    static final String BUCKET_PROPERTY = "bucket";
+
+    private final int threshold;
+    private final int bucketCount;
+
+    /**
+     * Create a new bucketing strategy.
+     *
+     * @param threshold   degree of an instant, from which new events are attached to its buckets. Must be positive.
+     * @param bucketCount number of buckets of a hot instant. Must be positive.
+     */
+    public EventBuckets(int threshold, int bucketCount) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Bucketing threshold must be positive");
+        }
+
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive");
+        }
+
+        this.threshold = threshold;
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * @return degree of an instant, from which new events are attached to its buckets.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return number of buckets of a hot instant.
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Get the node an event should be attached to, creating the bucket if needed.
+     *
+     * @param instant the event is being attached to.
+     * @param event   being attached.
+     * @return the instant itself, or one of its buckets if the instant is hot.
+     */
+    Node target(Node instant, Node event) {
+        int count = bucketCount(instant);
+
+        if (count == 0) {
+            if (instant.getDegree() < threshold) {
+                return instant;
+            }
+
+            count = bucketCount;
+            instant.setProperty(BUCKET_COUNT_PROPERTY, count);
+        }
+
+        int index = index(event, count);
+
+        Node bucket = findBucket(instant, index);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        //lock the instant, so that concurrent transactions don't create the same bucket twice, and look again
+        instant.setProperty(BUCKET_COUNT_PROPERTY, count);
+
+        bucket = findBucket(instant, index);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        bucket = instant.getGraphDatabase().createNode(BUCKET_LABEL);
+        bucket.setProperty(BUCKET_PROPERTY, index);
+        instant.createRelationshipTo(bucket, BUCKET);
+
+        return bucket;
+    }
+
+    /**
+     * Find the bucket an event would be attached to, without creating anything.
+     *
+     * @param instant the event would be attached to.
+     * @param event   to find the bucket for.
+     * @return bucket, <code>null</code> if the instant has no buckets or the bucket doesn't exist yet.
+     */
+    static Node bucketOf(Node instant, Node event) {
+        int count = bucketCount(instant);
+
+        if (count == 0) {
+            return null;
+        }
+
+        return findBucket(instant, index(event, count));
+    }
+
+    /**
+     * Get the number of relationships of the given type and direction an instant and all its buckets have, i.e. the
+     * number of events attached to the instant, no matter whether they have been spread over buckets.
+     *
+     * @param instant   time instant.
+     * @param type      of the relationships.
+     * @param direction of the relationships from the instant's point of view.
+     * @return number of relationships.
+     */
+    public static int degree(Node instant, RelationshipType type, Direction direction) {
+        int result = instant.getDegree(type, direction);
+
+        for (Relationship bucket : instant.getRelationships(OUTGOING, BUCKET)) {
+            result += bucket.getEndNode().getDegree(type, direction);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the instant a node, to which an event is attached, belongs to.
+     *
+     * @param node an instant or a bucket.
+     * @return the instant itself, or the instant owning the bucket.
+     */
+    static Node instantOf(Node node) {
+        if (!isBucket(node)) {
+            return node;
+        }
+
+        return node.getSingleRelationship(BUCKET, INCOMING).getStartNode();
+    }
+
+    /**
+     * Find out whether a node is a bucket.
+     *
+     * @param node to check.
+     * @return <code>true</code> iff the node is a bucket.
+     */
+    static boolean isBucket(Node node) {
+        return node.hasLabel(BUCKET_LABEL);
+    }
+
+    private static int bucketCount(Node instant) {
+        return ((Number) instant.getProperty(BUCKET_COUNT_PROPERTY, 0)).intValue();
+    }
+
+    private static int index(Node event, int count) {
+        return (int) (event.getId() % count);
+    }
+
+    private static Node findBucket(Node instant, int index) {
+        for (Relationship relationship : instant.getRelationships(OUTGOING, BUCKET)) {
+            Node bucket = relationship.getEndNode();
+            if (((Number) bucket.getProperty(BUCKET_PROPERTY)).intValue() == index) {
+                return bucket;
+            }
+        }
+
+        return null;
+    }
+}
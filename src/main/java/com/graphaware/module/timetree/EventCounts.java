@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.Resolution;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.Map;
+import java.util.Set;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.BUCKET;
+import static org.neo4j.graphdb.Direction.BOTH;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * Materialized numbers of events attached to time instants, maintained when event counting is enabled in the
+ * {@link EventSettings}.
+ * <p>
+ * The node an event is attached to, i.e. the instant or one of its buckets, holds for each direction and relationship
+ * type of the events attached to it a property with the number of such events. Every ancestor of the instant holds the
+ * same numbers for the events attached to its descendants, one property per resolution the events are attached at,
+ * because a range of instants only covers events attached to instants of the same or higher resolution. A range is
+ * therefore counted from the instants visited by {@link InstantRanges#cover(Node, Node, java.util.function.Consumer)}
+ * and their buckets, without visiting any other instants or events.
+ * <p>
+ * The numbers of the ancestors are updated through {@link RollUps}, once per transaction, so that transactions attaching
+ * events to different instants only contend for the coarse instants while they commit.
+ */
+final class EventCounts {
+
+    static final String PREFIX = "eventCount";
+    private static final String ROLL_UP_PREFIX = "eventCountRollUp";
+    private static final String PENDING_PREFIX = "eventCountPending";
+    private static final String SEPARATOR = ":";
+
+    private EventCounts() {
+    }
+
+    /**
+     * Record an event having been attached to an instant.
+     *
+     * @param target    the event has been attached to, i.e. the instant or one of its buckets.
+     * @param type      of the relationship between the event and the instant.
+     * @param direction of the relationship from the instant's point of view.
+     */
+    static void increment(Node target, RelationshipType type, Direction direction) {
+        update(target, type, direction, 1);
+    }
+
+    /**
+     * Record an event having been detached from an instant.
+     *
+     * @param target    the event has been detached from, i.e. the instant or one of its buckets.
+     * @param type      of the relationship between the event and the instant.
+     * @param direction of the relationship from the instant's point of view.
+     */
+    static void decrement(Node target, RelationshipType type, Direction direction) {
+        update(target, type, direction, -1);
+    }
+
+    /**
+     * Set the number of events attached to a node to the number of relationships attaching them, e.g. after some of the
+     * relationships have been deleted without detaching the events.
+     *
+     * @param target    events are attached to, i.e. an instant or one of its buckets.
+     * @param type      of the relationships between the events and the instant.
+     * @param direction of the relationships from the instant's point of view.
+     */
+    static void recount(Node target, RelationshipType type, Direction direction) {
+        long count = ((Number) target.getProperty(key(PREFIX, type, direction), 0L)).longValue();
+        long delta = target.getDegree(type, direction) - count;
+
+        if (delta != 0) {
+            update(target, type, direction, delta);
+        }
+    }
+
+    private static void update(Node target, RelationshipType type, Direction direction, long delta) {
+        if (InstantRanges.resolutionOf(EventBuckets.instantOf(target)) == null) {
+            return;
+        }
+
+        //events attached before counting was enabled aren't counted, so a count never drops below zero
+        String key = key(PREFIX, type, direction);
+        long count = ((Number) target.getProperty(key, 0L)).longValue();
+        long change = Math.max(0, count + delta) - count;
+
+        if (change == 0) {
+            return;
+        }
+
+        add(target, key, change);
+        add(target, key(PENDING_PREFIX, type, direction), change);
+        RollUps.pending(target);
+    }
+
+    /**
+     * Add the changes pending on a node to the counts of its instant's ancestors and clear them.
+     *
+     * @param target  events are attached to, i.e. an instant or one of its buckets.
+     * @param rollUps to add the changes to.
+     */
+    static void rollUp(Node target, RollUps rollUps) {
+        Node instant = EventBuckets.instantOf(target);
+        Resolution resolution = InstantRanges.resolutionOf(instant);
+
+        for (Map.Entry<String, Object> property : target.getAllProperties().entrySet()) {
+            if (!property.getKey().startsWith(PENDING_PREFIX + SEPARATOR)) {
+                continue;
+            }
+
+            target.removeProperty(property.getKey());
+
+            if (resolution == null) {
+                continue;
+            }
+
+            String key = ROLL_UP_PREFIX + SEPARATOR + resolution.name() + property.getKey().substring(PENDING_PREFIX.length());
+            long delta = ((Number) property.getValue()).longValue();
+
+            for (Node ancestor = InstantRanges.parentOrNull(instant); ancestor != null && InstantRanges.resolutionOf(ancestor) != null; ancestor = InstantRanges.parentOrNull(ancestor)) {
+                rollUps.count(ancestor, key, delta);
+            }
+        }
+    }
+
+    /**
+     * Apply changes of the counts held by an ancestor.
+     *
+     * @param ancestor holding the counts.
+     * @param deltas   by property key.
+     */
+    static void apply(Node ancestor, Map<String, Long> deltas) {
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+            add(ancestor, delta.getKey(), delta.getValue());
+        }
+    }
+
+    private static void add(Node node, String key, long delta) {
+        long count = ((Number) node.getProperty(key, 0L)).longValue() + delta;
+
+        if (count != 0) {
+            node.setProperty(key, count);
+        } else {
+            node.removeProperty(key);
+        }
+    }
+
+    private static String key(String prefix, RelationshipType type, Direction direction) {
+        return prefix + SEPARATOR + direction.name() + SEPARATOR + type.name();
+    }
+
+    /**
+     * Count the events attached to the instants between the given ones (inclusive) and all their children.
+     *
+     * @param first     first instant, must not be after the last one and must have the same resolution.
+     * @param last      last instant.
+     * @param types     names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @return number of events.
+     */
+    static long count(Node first, Node last, Set<String> types, Direction direction) {
+        RollUps.apply(first.getGraphDatabase());
+
+        Resolution resolution = Resolution.findForNode(first);
+        long[] result = new long[1];
+        InstantRanges.cover(first, last, node -> result[0] += count(node, resolution, types, direction));
+        return result[0];
+    }
+
+    /**
+     * Count the events attached directly to an instant or its buckets.
+     *
+     * @param instant   to count events for.
+     * @param types     names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @return number of events.
+     */
+    static long count(Node instant, Set<String> types, Direction direction) {
+        long result = sum(instant, PREFIX, null, types, direction);
+
+        for (Relationship bucket : instant.getRelationships(OUTGOING, BUCKET)) {
+            result += sum(bucket.getEndNode(), PREFIX, null, types, direction);
+        }
+
+        return result;
+    }
+
+    /**
+     * Count the events attached to an instant and all its descendants, from the numbers held by the instant and its
+     * buckets.
+     *
+     * @param instant    to count events for.
+     * @param resolution only events attached at this or higher resolution are counted.
+     * @param types      names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction  of relationships between instants and events from the instants' point of view.
+     * @return number of events.
+     */
+    private static long count(Node instant, Resolution resolution, Set<String> types, Direction direction) {
+        long result = sum(instant, ROLL_UP_PREFIX, resolution, types, direction);
+
+        if (Resolution.findForNode(instant).compareTo(resolution) >= 0) {
+            result += count(instant, types, direction);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sum the numbers held by a node.
+     *
+     * @param node       holding the numbers.
+     * @param prefix     of the properties holding the numbers.
+     * @param resolution the lowest resolution of events to count, <code>null</code> if the properties aren't per resolution.
+     * @param types      names of relationship types between instants and events, <code>null</code> for all.
+     * @param direction  of relationships between instants and events from the instants' point of view.
+     * @return sum.
+     */
+    private static long sum(Node node, String prefix, Resolution resolution, Set<String> types, Direction direction) {
+        long result = 0;
+
+        for (Map.Entry<String, Object> property : node.getAllProperties().entrySet()) {
+            if (!property.getKey().startsWith(prefix + SEPARATOR)) {
+                continue;
+            }
+
+            String[] parts = property.getKey().substring(prefix.length() + 1).split(SEPARATOR, resolution == null ? 2 : 3);
+            int offset = resolution == null ? 0 : 1;
+
+            if (parts.length < offset + 2) {
+                continue;
+            }
+
+            if (resolution != null && Resolution.valueOf(parts[0]).compareTo(resolution) < 0) {
+                continue;
+            }
+
+            if (!BOTH.equals(direction) && !direction.name().equals(parts[offset])) {
+                continue;
+            }
+
+            if (types != null && !types.contains(parts[offset + 1])) {
+                continue;
+            }
+
+            result += ((Number) property.getValue()).longValue();
+        }
+
+        return result;
+    }
+}
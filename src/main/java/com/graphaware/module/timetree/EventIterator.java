@@ -0,0 +1,727 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import com.graphaware.common.util.DirectionUtils;
+import com.graphaware.module.timetree.domain.CalendarFields;
+import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.Resolution;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.neo4j.graphdb.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.*;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * A lazy {@link ResourceIterator} over events attached to a range of time instants and all their children.
+ * <p>
+ * The instants in the range are visited by following {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#NEXT}
+ * relationships; the children of each instant are visited depth-first, using an explicit stack no deeper than the
+ * number of resolutions. Events are returned in the same order as {@link TimedEvents#getEvents(com.graphaware.module.timetree.domain.TimeInstant, com.graphaware.module.timetree.domain.TimeInstant)},
+ * i.e. chronologically with events attached to higher resolution instants before events attached to lower resolution
+ * ones. Events attached to the same instant are returned in chronological order if event ordering is enabled (see
+ * {@link EventOrder}), in no particular order otherwise. Only a single node's relationships are held at any time, so the
+ * memory used doesn't depend on the size of the range.
+ * <p>
+ * If the iterator has been given a transaction, the transaction is finished when the iterator is closed. Events must
+ * therefore be consumed before closing the iterator, unless the caller manages a transaction of its own. Like all
+ * Neo4j transactions, it is bound to the thread that has created the iterator.
+ * <p>
+ * The position of the iterator is described by a cursor, consisting of the ID of the instant whose events are being
+ * returned and the number of its relationships already consumed. An iteration resumed from a cursor rebuilds the
+ * stack from the instant's ancestors and skips the consumed relationships; it doesn't revisit anything before the
+ * cursor. Since relationships are counted rather than identified, events attached to or detached from the instant in
+ * the meantime may shift the position.
+ * <p>
+ * A range can have exact time {@link Bounds}, finer than its resolution. Instants between the first and the last one
+ * are then included entirely, whilst only the descendants of the first and the last instant, whose periods contain a
+ * bound, are visited and their events filtered by a timestamp property. Events without the property are never filtered
+ * out. Events kept in order are filtered by the time they have been attached with instead, which lets the iteration
+ * skip those before the start and stop at the first one after the end. Children of those instants lying entirely
+ * outside the bounds are skipped.
+ */
+class EventIterator implements ResumableEventIterator {
+
+    private static final long NO_CURSOR = -1;
+
+    private static final Set<String> TIME_TREE_RELATIONSHIPS = new HashSet<>(getTimeTreeRelationshipNames());
+
+    private final long endId;
+    private final RelationshipType[] types;
+    private final Direction direction;
+    private final Bounds bounds;
+    private Transaction tx;
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Node nextInstant;
+    private Node owner;
+    private Iterator<Relationship> relationships;
+    private boolean filtered;
+    private int consumed;
+    private Event next;
+    private long nextOwnerId;
+    private int nextOffset;
+    private long cursorInstantId = NO_CURSOR;
+    private int cursorOffset;
+
+    /**
+     * Create an iterator over the events attached to the instants between the given ones (inclusive) and all their
+     * children.
+     *
+     * @param start     first instant, must not be after the end instant and must have the same resolution.
+     * @param end       last instant.
+     * @param types     of relationships between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @param tx        transaction to finish when the iterator is closed, can be <code>null</code>.
+     */
+    EventIterator(Node start, Node end, Set<RelationshipType> types, Direction direction, Transaction tx) {
+        this(start, end, types, direction, null, tx);
+    }
+
+    /**
+     * Create an iterator over the events attached to the instants between the given ones (inclusive) and all their
+     * children, within exact time bounds.
+     *
+     * @param start     first instant, must not be after the end instant and must have the same resolution.
+     * @param end       last instant.
+     * @param types     of relationships between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @param bounds    exact time bounds of the range, <code>null</code> for none.
+     * @param tx        transaction to finish when the iterator is closed, can be <code>null</code>.
+     */
+    EventIterator(Node start, Node end, Set<RelationshipType> types, Direction direction, Bounds bounds, Transaction tx) {
+        this.nextInstant = start;
+        this.endId = end.getId();
+        this.types = toArray(types);
+        this.direction = direction;
+        this.bounds = bounds;
+        this.tx = tx;
+    }
+
+    /**
+     * Create an iterator over the events attached to the instants up to the given one (inclusive) and all their
+     * children, resuming from a position previously returned by {@link #getCursor()}.
+     *
+     * @param cursor    to resume from.
+     * @param database  the range lives in.
+     * @param startTime start of the range.
+     * @param endTime   end of the range, of the same resolution.
+     * @param end       last instant.
+     * @param types     of relationships between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     * @param bounds    exact time bounds of the range, <code>null</code> for none.
+     * @param tx        transaction to finish when the iterator is closed, can be <code>null</code>.
+     * @throws IllegalArgumentException in case the cursor is invalid or doesn't point into the given range of the tree
+     *                                  the last instant belongs to.
+     */
+    EventIterator(String cursor, GraphDatabaseService database, TimeInstant startTime, TimeInstant endTime, Node end, Set<RelationshipType> types, Direction direction, Bounds bounds, Transaction tx) {
+        this.endId = end.getId();
+        this.types = toArray(types);
+        this.direction = direction;
+        this.bounds = bounds;
+        this.tx = tx;
+
+        long[] position = decodeCursor(cursor);
+        Node instant;
+        try {
+            instant = database.getNodeById(position[0]);
+        } catch (NotFoundException e) {
+            throw new IllegalArgumentException("Cursor " + cursor + " points to an instant that no longer exists", e);
+        }
+        int offset = (int) position[1];
+        Resolution resolution = endTime.getResolution();
+
+        //rebuild the stack from the ancestors of the instant, up to the resolution of the range
+        Node top = instant;
+        Resolution topResolution = Resolution.findForNode(top);
+        while (topResolution.compareTo(resolution) > 0) {
+            Node parent = SingleTimeTree.parent(top);
+            stack.addLast(new Frame(parent, top));
+            top = parent;
+            topResolution = Resolution.findForNode(top);
+        }
+
+        if (topResolution != resolution) {
+            throw new IllegalArgumentException("Cursor " + cursor + " does not belong to a range of " + resolution + " resolution");
+        }
+
+        validateCursor(cursor, top, end, startTime, endTime);
+
+        if (top.getId() == endId) {
+            nextInstant = null;
+        } else {
+            Relationship nextRelationship = top.getSingleRelationship(NEXT, OUTGOING);
+            nextInstant = nextRelationship == null ? null : nextRelationship.getEndNode();
+        }
+
+        //the frames of the ancestors are visited again, so they need to know whether they lie on a bound
+        boolean onStartPath = bounds != null && bounds.isStart(top);
+        boolean onEndPath = bounds != null && bounds.isEnd(top);
+        Iterator<Frame> frames = stack.descendingIterator();
+        while (frames.hasNext()) {
+            Frame frame = frames.next();
+            frame.onStartPath = onStartPath;
+            frame.onEndPath = onEndPath;
+            onStartPath = onStartPath && bounds.compareToStart(frame.child) == 0;
+            onEndPath = onEndPath && bounds.compareToEnd(frame.child) == 0;
+        }
+
+        owner = instant;
+        filtered = onStartPath || onEndPath;
+        relationships = expand(instant, direction, this.types, false, onStartPath ? bounds.startTime : Long.MIN_VALUE, onEndPath ? bounds.endTime : Long.MAX_VALUE);
+        while (consumed < offset && relationships.hasNext()) {
+            relationships.next();
+            consumed++;
+        }
+
+        cursorInstantId = instant.getId();
+        cursorOffset = offset;
+    }
+
+    /**
+     * Verify that the instant a cursor points to (or its ancestor of the range's resolution) lies within the range and
+     * belongs to the same tree as the last instant of the range, so that a cursor from another range or another tree
+     * isn't silently resumed.
+     *
+     * @param cursor    being resumed from.
+     * @param top       ancestor of the cursor's instant of the range's resolution.
+     * @param end       last instant of the range.
+     * @param startTime start of the range.
+     * @param endTime   end of the range.
+     * @throws IllegalArgumentException in case the cursor doesn't point into the range.
+     */
+    private static void validateCursor(String cursor, Node top, Node end, TimeInstant startTime, TimeInstant endTime) {
+        int depth = endTime.getResolution().ordinal() + 1;
+
+        int[] path = new int[depth];
+        Node topRoot = top;
+        Node endRoot = end;
+        for (int level = depth - 1; level >= 0; level--) {
+            path[level] = ((Number) topRoot.getProperty(SingleTimeTree.VALUE_PROPERTY)).intValue();
+            topRoot = SingleTimeTree.parent(topRoot);
+            endRoot = SingleTimeTree.parent(endRoot);
+        }
+
+        if (topRoot.getId() != endRoot.getId()) {
+            throw new IllegalArgumentException("Cursor " + cursor + " belongs to a different time tree");
+        }
+
+        int[] startFields = new int[CalendarFields.NUMBER_OF_FIELDS];
+        int[] endFields = new int[CalendarFields.NUMBER_OF_FIELDS];
+        CalendarFields.forZone(startTime.getTimezone()).decompose(startTime.getTime(), startFields);
+        CalendarFields.forZone(endTime.getTimezone()).decompose(endTime.getTime(), endFields);
+
+        if (comparePath(path, startFields) < 0 || comparePath(path, endFields) > 0) {
+            throw new IllegalArgumentException("Cursor " + cursor + " does not belong to the requested range");
+        }
+    }
+
+    private static int comparePath(int[] path, int[] fields) {
+        for (int level = 0; level < path.length; level++) {
+            int compared = Integer.compare(path[level], fields[level]);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Create an empty iterator.
+     *
+     * @return empty iterator.
+     */
+    static EventIterator empty() {
+        return new EventIterator();
+    }
+
+    private EventIterator() {
+        this.nextInstant = null;
+        this.endId = -1;
+        this.types = null;
+        this.direction = null;
+        this.bounds = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = fetchNext();
+        }
+
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Event result = next;
+        next = null;
+        cursorInstantId = nextOwnerId;
+        cursorOffset = nextOffset;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCursor() {
+        if (cursorInstantId == NO_CURSOR) {
+            return null;
+        }
+
+        return encodeCursor(cursorInstantId, cursorOffset);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        stack.clear();
+        nextInstant = null;
+        relationships = null;
+        next = null;
+
+        if (tx != null) {
+            tx.success();
+            tx.close();
+            tx = null;
+        }
+    }
+
+    private Event fetchNext() {
+        while (true) {
+            if (relationships != null) {
+                while (relationships.hasNext()) {
+                    Relationship relationship = relationships.next();
+                    Event event = toEvent(relationship, owner);
+                    consumed++;
+                    if (event != null && (!filtered || EventOrder.isOrdered(relationship) || bounds.contains(event.getNode()))) {
+                        nextOwnerId = owner.getId();
+                        nextOffset = consumed;
+                        return event;
+                    }
+                }
+                relationships = null;
+                owner = null;
+            }
+
+            if (stack.isEmpty()) {
+                if (nextInstant == null) {
+                    return null;
+                }
+
+                Node instant = nextInstant;
+                stack.push(new Frame(instant, bounds != null && bounds.isStart(instant), bounds != null && bounds.isEnd(instant)));
+
+                if (instant.getId() == endId) {
+                    nextInstant = null;
+                } else {
+                    Relationship nextRelationship = instant.getSingleRelationship(NEXT, OUTGOING);
+                    nextInstant = nextRelationship == null ? null : nextRelationship.getEndNode();
+                }
+
+                continue;
+            }
+
+            Frame frame = stack.peek();
+            Node child = frame.nextChild();
+
+            if (child != null) {
+                Frame childFrame = frame.childFrame(child, bounds);
+                if (childFrame != null) {
+                    stack.push(childFrame);
+                }
+                continue;
+            }
+
+            //all children visited, the node's own events come last
+            stack.pop();
+            owner = frame.node;
+            filtered = frame.onStartPath || frame.onEndPath;
+            relationships = expand(frame.node, direction, types, false, frame.onStartPath ? bounds.startTime : Long.MIN_VALUE, frame.onEndPath ? bounds.endTime : Long.MAX_VALUE);
+            consumed = 0;
+        }
+    }
+
+    /**
+     * Convert relationship types to an array, leaving out the types of the time tree's own relationships.
+     *
+     * @param types to convert, can be <code>null</code>.
+     * @return array of types, <code>null</code> if the types are <code>null</code>.
+     */
+    static RelationshipType[] toArray(Set<RelationshipType> types) {
+        if (types == null) {
+            return null;
+        }
+
+        List<RelationshipType> result = new ArrayList<>(types.size());
+        for (RelationshipType type : types) {
+            if (!TIME_TREE_RELATIONSHIPS.contains(type.name())) {
+                result.add(type);
+            }
+        }
+
+        return result.toArray(new RelationshipType[result.size()]);
+    }
+
+    /**
+     * Expand the relationships of a time instant, which can represent events, followed by the relationships of its
+     * {@link EventBuckets buckets}, if any. When types are given, only relationships of those types are read from the
+     * database. If the instant keeps its events in order, they are returned in chronological order.
+     *
+     * @param instant   to expand.
+     * @param direction of the relationships from the instant's point of view.
+     * @param types     of the relationships, <code>null</code> for all.
+     * @return relationships, possibly including the time tree's own ones if no types are given.
+     */
+    static Iterator<Relationship> expand(Node instant, Direction direction, RelationshipType[] types) {
+        return expand(instant, direction, types, false);
+    }
+
+    /**
+     * Expand the relationships of a time instant like {@link #expand(Node, Direction, RelationshipType[])}.
+     *
+     * @param instant     to expand.
+     * @param direction   of the relationships from the instant's point of view.
+     * @param types       of the relationships, <code>null</code> for all.
+     * @param newestFirst <code>true</code> to return events of an instant keeping them in order newest first.
+     * @return relationships, possibly including the time tree's own ones if no types are given.
+     */
+    static Iterator<Relationship> expand(Node instant, Direction direction, RelationshipType[] types, boolean newestFirst) {
+        return expand(instant, direction, types, newestFirst, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Expand the relationships of a time instant like {@link #expand(Node, Direction, RelationshipType[])}, leaving out
+     * events kept in order that have been attached with a time outside the given bounds. The chronological order of such
+     * events is used to skip those before the lower bound without reading them and to stop at the first one after the
+     * upper bound. Events that aren't kept in order aren't bounded.
+     *
+     * @param instant     to expand.
+     * @param direction   of the relationships from the instant's point of view.
+     * @param types       of the relationships, <code>null</code> for all.
+     * @param newestFirst <code>true</code> to return events of an instant keeping them in order newest first.
+     * @param from        inclusive lower bound (ms since epoch), {@link Long#MIN_VALUE} for none.
+     * @param to          inclusive upper bound (ms since epoch), {@link Long#MAX_VALUE} for none.
+     * @return relationships, possibly including the time tree's own ones if no types are given.
+     */
+    static Iterator<Relationship> expand(Node instant, Direction direction, RelationshipType[] types, boolean newestFirst, long from, long to) {
+        if (types != null && types.length == 0) {
+            return Collections.emptyIterator();
+        }
+
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(instant);
+        for (Relationship bucket : instant.getRelationships(OUTGOING, BUCKET)) {
+            nodes.add(bucket.getEndNode());
+        }
+
+        if (!EventOrder.isOrdered(nodes)) {
+            return expand(nodes, direction, types);
+        }
+
+        return EventOrder.iterate(nodes, direction, types, newestFirst, from, to);
+    }
+
+    /**
+     * Expand the relationships of the given nodes one after another.
+     *
+     * @param nodes     to expand.
+     * @param direction of the relationships from the nodes' point of view.
+     * @param types     of the relationships, <code>null</code> for all.
+     * @return relationships, possibly including the time tree's own ones if no types are given.
+     */
+    static Iterator<Relationship> expand(final List<Node> nodes, final Direction direction, final RelationshipType[] types) {
+        return new Iterator<Relationship>() {
+            private int index = 0;
+            private Iterator<Relationship> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (index >= nodes.size()) {
+                        return false;
+                    }
+                    current = expandNode(nodes.get(index++), direction, types);
+                }
+                return true;
+            }
+
+            @Override
+            public Relationship next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private static Iterator<Relationship> expandNode(Node node, Direction direction, RelationshipType[] types) {
+        if (types == null) {
+            return node.getRelationships(direction).iterator();
+        }
+
+        return node.getRelationships(direction, types).iterator();
+    }
+
+    /**
+     * Convert a relationship of a time instant to an event, if it represents one.
+     *
+     * @param relationship of the instant.
+     * @param instant      the relationship belongs to, directly or via one of its buckets.
+     * @return event, <code>null</code> if the relationship is one of the time tree's own.
+     */
+    static Event toEvent(Relationship relationship, Node instant) {
+        RelationshipType type = relationship.getType();
+
+        if (TIME_TREE_RELATIONSHIPS.contains(type.name())) {
+            return null;
+        }
+
+        Node start = relationship.getStartNode();
+        Node end = relationship.getEndNode();
+
+        if (start.getId() != instant.getId() && end.getId() != instant.getId()) {
+            //attached to one of the instant's buckets
+            return EventBuckets.isBucket(start) ? new Event(end, type, OUTGOING) : new Event(start, type, INCOMING);
+        }
+
+        return new Event(relationship.getOtherNode(instant), type, DirectionUtils.resolveDirection(relationship, instant));
+    }
+
+    /**
+     * Encode a position into an opaque cursor.
+     *
+     * @param instantId ID of the instant.
+     * @param offset    number of the instant's relationships consumed.
+     * @return cursor.
+     */
+    static String encodeCursor(long instantId, int offset) {
+        String position = instantId + ":" + offset;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Decode a cursor produced by {@link #encodeCursor(long, int)}.
+     *
+     * @param cursor to decode.
+     * @return instant ID and offset.
+     * @throws IllegalArgumentException in case the cursor is invalid.
+     */
+    static long[] decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            int separator = position.indexOf(':');
+            long instantId = Long.parseLong(position.substring(0, separator));
+            int offset = Integer.parseInt(position.substring(separator + 1));
+
+            if (instantId < 0 || offset < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+
+            return new long[]{instantId, offset};
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+    /**
+     * Exact time bounds of a range, finer than the resolution of its instants. Events of instants whose periods
+     * contain a bound are filtered by the value of a timestamp property of the event nodes. Events without a numeric
+     * timestamp are kept, just like they are when attached to an instant lying entirely within the bounds.
+     */
+    static final class Bounds {
+
+        private final long startTime;
+        private final long endTime;
+        private final String timestampProperty;
+        private final long startInstantId;
+        private final long endInstantId;
+        private final int[] startFields = new int[CalendarFields.NUMBER_OF_FIELDS];
+        private final int[] endFields = new int[CalendarFields.NUMBER_OF_FIELDS];
+
+        /**
+         * Create new bounds.
+         *
+         * @param startTime         start of the range, its exact time (ms since epoch) is the inclusive lower bound.
+         * @param endTime           end of the range, its exact time (ms since epoch) is the inclusive upper bound.
+         * @param timestampProperty of the event nodes holding the time of the events.
+         * @param startInstant      instant of the range's resolution containing the start, <code>null</code> if it doesn't exist.
+         * @param endInstant        instant of the range's resolution containing the end, <code>null</code> if it doesn't exist.
+         */
+        Bounds(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Node startInstant, Node endInstant) {
+            this.startTime = startTime.getTime();
+            this.endTime = endTime.getTime();
+            this.timestampProperty = timestampProperty;
+            this.startInstantId = startInstant == null ? -1 : startInstant.getId();
+            this.endInstantId = endInstant == null ? -1 : endInstant.getId();
+            CalendarFields.forZone(startTime.getTimezone()).decompose(this.startTime, startFields);
+            CalendarFields.forZone(endTime.getTimezone()).decompose(this.endTime, endFields);
+        }
+
+        private boolean isStart(Node instant) {
+            return instant.getId() == startInstantId;
+        }
+
+        private boolean isEnd(Node instant) {
+            return instant.getId() == endInstantId;
+        }
+
+        /**
+         * Compare an instant, whose parent contains the start, to the start.
+         *
+         * @return negative if the instant is before the start, 0 if it contains the start, positive if it is after it.
+         */
+        private int compareToStart(Node instant) {
+            return Integer.compare(value(instant), startFields[Resolution.findForNode(instant).ordinal()]);
+        }
+
+        /**
+         * Compare an instant, whose parent contains the end, to the end.
+         *
+         * @return negative if the instant is before the end, 0 if it contains the end, positive if it is after it.
+         */
+        private int compareToEnd(Node instant) {
+            return Integer.compare(value(instant), endFields[Resolution.findForNode(instant).ordinal()]);
+        }
+
+        private boolean contains(Node event) {
+            Object timestamp = event.getProperty(timestampProperty, null);
+
+            if (!(timestamp instanceof Number)) {
+                return true;
+            }
+
+            long time = ((Number) timestamp).longValue();
+            return time >= startTime && time <= endTime;
+        }
+
+        private static int value(Node instant) {
+            return ((Number) instant.getProperty(SingleTimeTree.VALUE_PROPERTY)).intValue();
+        }
+    }
+
+    /**
+     * A time instant node being visited, together with the last of its children visited so far, and whether its period
+     * contains the start or the end bound of the range.
+     */
+    private static final class Frame {
+
+        private final Node node;
+        private Node child;
+        private long lastChildId = -1;
+        private boolean onStartPath;
+        private boolean onEndPath;
+        private boolean beyondEnd;
+
+        private Frame(Node node, boolean onStartPath, boolean onEndPath) {
+            this.node = node;
+            this.onStartPath = onStartPath;
+            this.onEndPath = onEndPath;
+        }
+
+        private Frame(Node node, Node child) {
+            this.node = node;
+            this.child = child;
+            Relationship lastRelationship = node.getSingleRelationship(LAST, OUTGOING);
+            this.lastChildId = lastRelationship == null ? -1 : lastRelationship.getEndNode().getId();
+        }
+
+        /**
+         * Create the frame of a child of this frame's node, unless the child lies outside the bounds.
+         *
+         * @param child  of the node.
+         * @param bounds of the range, <code>null</code> for none.
+         * @return frame, <code>null</code> if the child should be skipped.
+         */
+        private Frame childFrame(Node child, Bounds bounds) {
+            if (!onStartPath && !onEndPath) {
+                return new Frame(child, false, false);
+            }
+
+            int comparedToEnd = onEndPath ? bounds.compareToEnd(child) : -1;
+            if (comparedToEnd > 0) {
+                //children are ordered, none of the remaining ones is within the bounds
+                beyondEnd = true;
+                return null;
+            }
+
+            int comparedToStart = onStartPath ? bounds.compareToStart(child) : 1;
+            if (comparedToStart < 0) {
+                return null;
+            }
+
+            return new Frame(child, comparedToStart == 0, comparedToEnd == 0);
+        }
+
+        /**
+         * @return next child to visit, <code>null</code> if all children have been visited.
+         */
+        private Node nextChild() {
+            if (beyondEnd) {
+                return null;
+            }
+
+            if (child == null) {
+                Relationship firstRelationship = node.getSingleRelationship(FIRST, OUTGOING);
+                if (firstRelationship == null) {
+                    return null;
+                }
+
+                Relationship lastRelationship = node.getSingleRelationship(LAST, OUTGOING);
+                lastChildId = lastRelationship == null ? -1 : lastRelationship.getEndNode().getId();
+                child = firstRelationship.getEndNode();
+                return child;
+            }
+
+            if (child.getId() == lastChildId) {
+                return null;
+            }
+
+            Relationship nextRelationship = child.getSingleRelationship(NEXT, OUTGOING);
+            if (nextRelationship == null) {
+                return null;
+            }
+
+            Node nextChild = nextRelationship.getEndNode();
+
+            //without a LAST relationship, the end of the children is where the parent changes
+            if (lastChildId == -1 && SingleTimeTree.parent(nextChild).getId() != node.getId()) {
+                return null;
+            }
+
+            child = nextChild;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.common.log.LoggerFactory;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.values;
+import static org.neo4j.graphdb.Direction.BOTH;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * Chronological order of events attached to time instants, maintained when event ordering is enabled in the
+ * {@link EventSettings}.
+ * <p>
+ * Every node events are attached to, i.e. an instant or one of its {@link EventBuckets buckets}, keeps its events in a
+ * chain ordered by the time of the events. The relationships attaching the events hold the time and the IDs of their
+ * predecessor and successor in the chain, the node holds the IDs of the first and the last one. Events of a node with
+ * the same time are kept in the order they have been attached in. A new event is placed by walking the chain backwards from the
+ * newest event, so that attaching events in chronological order takes constant time and an event arriving late costs
+ * as much as the number of newer events attached to the same node. Only the node the event is attached to is locked and
+ * written, so events attached to different buckets of a hot instant don't contend with each other.
+ * <p>
+ * The chains of an instant and its buckets are merged lazily when read, holding a single position per chain. A read
+ * bounded by time starts at the first event within the bounds and stops at the first one beyond them.
+ * <p>
+ * Relationships that are not part of the order, e.g. because they have been created while ordering was disabled, are
+ * returned after the ordered ones, in no particular order. A chain broken by deleting relationships without
+ * {@link #unlinkDeleted(GraphDatabaseService, Iterable)} being told is read by sorting its events in memory, and rebuilt
+ * next time an event is attached to or detached from its node.
+ */
+final class EventOrder {
+
+    private static final Log LOG = LoggerFactory.getLogger(EventOrder.class);
+
+    static final String TIME_PROPERTY = "orderedTime";
+    static final String PREVIOUS_PROPERTY = "orderedPrevious";
+    static final String NEXT_PROPERTY = "orderedNext";
+    static final String FIRST_PROPERTY = "orderedFirst";
+    static final String LAST_PROPERTY = "orderedLast";
+    static final String COUNT_PROPERTY = "orderedCount";
+    private static final String LOCK_PROPERTY = "orderLock";
+
+    private EventOrder() {
+    }
+
+    /**
+     * Record an event having been attached to a node.
+     *
+     * @param holder       the event has been attached to, i.e. an instant or one of its buckets.
+     * @param relationship attaching the event to the holder.
+     * @param time         of the event in ms since epoch.
+     */
+    static void add(Node holder, Relationship relationship, long time) {
+        lock(holder);
+
+        //after all events with the same time, so that they stay in the order of attachment
+        Relationship next = null;
+        Relationship previous = null;
+        Long candidateId = (Long) holder.getProperty(LAST_PROPERTY, null);
+        while (candidateId != null) {
+            Relationship candidate = resolve(holder, candidateId);
+            if (candidate == null) {
+                rebuild(holder, -1);
+                add(holder, relationship, time);
+                return;
+            }
+
+            if (time(candidate) <= time) {
+                previous = candidate;
+                break;
+            }
+
+            next = candidate;
+            candidateId = (Long) candidate.getProperty(PREVIOUS_PROPERTY, null);
+        }
+
+        relationship.setProperty(TIME_PROPERTY, time);
+        link(holder, previous, relationship);
+        link(holder, relationship, next);
+        holder.setProperty(COUNT_PROPERTY, count(holder) + 1);
+    }
+
+    /**
+     * Record an event having been detached from a node.
+     *
+     * @param holder       the event has been detached from, i.e. an instant or one of its buckets.
+     * @param relationship that has attached the event to the holder, not deleted yet.
+     */
+    static void remove(Node holder, Relationship relationship) {
+        if (!isOrdered(relationship)) {
+            return;
+        }
+
+        lock(holder);
+
+        Long previousId = (Long) relationship.getProperty(PREVIOUS_PROPERTY, null);
+        Long nextId = (Long) relationship.getProperty(NEXT_PROPERTY, null);
+        Relationship previous = previousId == null ? null : resolve(holder, previousId);
+        Relationship next = nextId == null ? null : resolve(holder, nextId);
+
+        if ((previousId != null && previous == null) || (nextId != null && next == null)) {
+            rebuild(holder, relationship.getId());
+            return;
+        }
+
+        link(holder, previous, next);
+        holder.setProperty(COUNT_PROPERTY, count(holder) - 1);
+    }
+
+    /**
+     * Take relationships out of the chains they have been part of, after they have been deleted without being removed
+     * from the order by {@link #remove(Node, Relationship)}, e.g. by deleting the events they have attached. A
+     * relationship is only unlinked from neighbours and nodes still pointing to it, so relationships that have been
+     * removed from the order before being deleted are left alone.
+     *
+     * @param database to look up the neighbours of the deleted relationships in.
+     * @param deleted  relationships, with the properties they had before they were deleted.
+     */
+    static void unlinkDeleted(GraphDatabaseService database, Iterable<Relationship> deleted) {
+        Map<Long, Relationship> ordered = new HashMap<>();
+        for (Relationship relationship : deleted) {
+            if (isOrdered(relationship)) {
+                ordered.put(relationship.getId(), relationship);
+            }
+        }
+
+        for (Relationship relationship : ordered.values()) {
+            Node holder = findHolder(database, relationship);
+            if (holder == null) {
+                continue;
+            }
+
+            lock(holder);
+
+            //adjacent relationships may have been deleted too, link the nearest remaining ones
+            Long previousId = (Long) relationship.getProperty(PREVIOUS_PROPERTY, null);
+            while (previousId != null && ordered.containsKey(previousId)) {
+                previousId = (Long) ordered.get(previousId).getProperty(PREVIOUS_PROPERTY, null);
+            }
+            Long nextId = (Long) relationship.getProperty(NEXT_PROPERTY, null);
+            while (nextId != null && ordered.containsKey(nextId)) {
+                nextId = (Long) ordered.get(nextId).getProperty(NEXT_PROPERTY, null);
+            }
+
+            Relationship previous = previousId == null ? null : resolve(holder, previousId);
+            Relationship next = nextId == null ? null : resolve(holder, nextId);
+
+            if ((previousId != null && previous == null) || (nextId != null && next == null)) {
+                //already broken, will be rebuilt on next write
+                continue;
+            }
+
+            boolean unlinked = false;
+            if (previous == null ? pointsTo(holder, FIRST_PROPERTY, relationship) : pointsTo(previous, NEXT_PROPERTY, relationship)) {
+                set(previous == null ? holder : previous, previous == null ? FIRST_PROPERTY : NEXT_PROPERTY, nextId);
+                unlinked = true;
+            }
+            if (next == null ? pointsTo(holder, LAST_PROPERTY, relationship) : pointsTo(next, PREVIOUS_PROPERTY, relationship)) {
+                set(next == null ? holder : next, next == null ? LAST_PROPERTY : PREVIOUS_PROPERTY, previousId);
+                unlinked = true;
+            }
+            if (unlinked) {
+                holder.setProperty(COUNT_PROPERTY, Math.max(0, count(holder) - 1));
+            }
+        }
+    }
+
+    /**
+     * Find out whether a relationship is part of the order of its node.
+     *
+     * @param relationship to check.
+     * @return <code>true</code> iff the relationship has been ordered.
+     */
+    static boolean isOrdered(Relationship relationship) {
+        return relationship.hasProperty(TIME_PROPERTY);
+    }
+
+    /**
+     * Find out whether any of the given nodes keeps its events in order.
+     *
+     * @param holders an instant and its buckets.
+     * @return <code>true</code> iff at least one of the nodes keeps events in order.
+     */
+    static boolean isOrdered(List<Node> holders) {
+        for (Node holder : holders) {
+            if (holder.hasProperty(FIRST_PROPERTY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Iterate over the relationships of an instant and its buckets, which can represent events, in chronological
+     * order, within the given time bounds.
+     *
+     * @param holders     the instant and its buckets.
+     * @param direction   of the relationships from the instant's point of view.
+     * @param types       of the relationships, <code>null</code> for all.
+     * @param newestFirst <code>true</code> for reverse chronological order.
+     * @param from        time (ms since epoch) of the oldest ordered event to return, {@link Long#MIN_VALUE} for no bound.
+     * @param to          time (ms since epoch) of the newest ordered event to return, {@link Long#MAX_VALUE} for no bound.
+     * @return relationships, with those that aren't part of the order after (or, newest first, before) the ordered ones.
+     * Relationships that aren't part of the order aren't bounded.
+     */
+    static Iterator<Relationship> iterate(List<Node> holders, Direction direction, RelationshipType[] types, boolean newestFirst, long from, long to) {
+        Comparator<Chain> byTime = new Comparator<Chain>() {
+            @Override
+            public int compare(Chain first, Chain second) {
+                int result = Long.compare(first.currentTime, second.currentTime);
+                if (result == 0) {
+                    result = Integer.compare(first.index, second.index);
+                }
+                return newestFirst ? -result : result;
+            }
+        };
+
+        final PriorityQueue<Chain> chains = new PriorityQueue<>(Math.max(1, holders.size()), byTime);
+        final Set<Long> chained = new HashSet<>();
+        for (int i = 0; i < holders.size(); i++) {
+            Node holder = holders.get(i);
+            if (holder.hasProperty(FIRST_PROPERTY)) {
+                chained.add(holder.getId());
+                Chain chain = new Chain(holder, i, direction, types, newestFirst, from, to);
+                if (chain.current != null) {
+                    chains.add(chain);
+                }
+            }
+        }
+
+        final Iterator<Relationship> unordered = unordered(holders, direction, types);
+
+        return new Iterator<Relationship>() {
+            private Relationship next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = newestFirst ? fetchNewestFirst() : fetchOldestFirst();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Relationship next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Relationship result = next;
+                next = null;
+                return result;
+            }
+
+            private Relationship fetchOldestFirst() {
+                Relationship result = fetchOrdered();
+                return result != null ? result : fetchUnordered();
+            }
+
+            private Relationship fetchNewestFirst() {
+                Relationship result = fetchUnordered();
+                return result != null ? result : fetchOrdered();
+            }
+
+            private Relationship fetchOrdered() {
+                Chain chain = chains.poll();
+                if (chain == null) {
+                    return null;
+                }
+
+                Relationship result = chain.current;
+                chain.advance();
+                if (chain.current != null) {
+                    chains.add(chain);
+                }
+                return result;
+            }
+
+            private Relationship fetchUnordered() {
+                while (unordered.hasNext()) {
+                    Relationship relationship = unordered.next();
+                    if (!isOrdered(relationship) || (!chained.contains(relationship.getStartNode().getId()) && !chained.contains(relationship.getEndNode().getId()))) {
+                        return relationship;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Expand the relationships of those of the given nodes, which have events attached that aren't part of the order.
+     * Nodes whose events are all ordered aren't expanded at all, so that a bounded read doesn't have to go through all
+     * their events.
+     */
+    private static Iterator<Relationship> unordered(List<Node> holders, Direction direction, RelationshipType[] types) {
+        List<Node> toExpand = new ArrayList<>(holders.size());
+        for (Node holder : holders) {
+            if (!holder.hasProperty(FIRST_PROPERTY) || eventDegree(holder) > count(holder)) {
+                toExpand.add(holder);
+            }
+        }
+
+        return EventIterator.expand(toExpand, direction, types);
+    }
+
+    private static int eventDegree(Node holder) {
+        int degree = holder.getDegree();
+        for (RelationshipType type : values()) {
+            degree -= holder.getDegree(type);
+        }
+        return degree;
+    }
+
+    /**
+     * Rebuild the chain of a node from its ordered relationships.
+     *
+     * @param holder  whose chain to rebuild.
+     * @param without ID of a relationship to leave out, -1 for none.
+     */
+    private static void rebuild(Node holder, long without) {
+        LOG.warn("Order of events of " + holder + " has been broken, rebuilding it");
+
+        List<Relationship> relationships = sorted(holder, without);
+
+        holder.removeProperty(FIRST_PROPERTY);
+        holder.removeProperty(LAST_PROPERTY);
+
+        Relationship previous = null;
+        for (Relationship relationship : relationships) {
+            relationship.removeProperty(PREVIOUS_PROPERTY);
+            relationship.removeProperty(NEXT_PROPERTY);
+            link(holder, previous, relationship);
+            previous = relationship;
+        }
+        link(holder, previous, null);
+
+        holder.setProperty(COUNT_PROPERTY, relationships.size());
+        if (relationships.isEmpty()) {
+            holder.removeProperty(COUNT_PROPERTY);
+        }
+    }
+
+    /**
+     * @return ordered relationships of a node, sorted by time and ID, which approximates the order of attachment.
+     */
+    private static List<Relationship> sorted(Node holder, long without) {
+        List<Relationship> result = new ArrayList<>();
+        for (Relationship relationship : holder.getRelationships()) {
+            if (relationship.getId() != without && isOrdered(relationship)) {
+                result.add(relationship);
+            }
+        }
+
+        result.sort(new Comparator<Relationship>() {
+            @Override
+            public int compare(Relationship first, Relationship second) {
+                int result = Long.compare(time(first), time(second));
+                return result != 0 ? result : Long.compare(first.getId(), second.getId());
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Link two neighbours in the chain of a node.
+     *
+     * @param holder   of the chain.
+     * @param previous relationship, <code>null</code> if the next one is to be the first.
+     * @param next     relationship, <code>null</code> if the previous one is to be the last.
+     */
+    private static void link(Node holder, Relationship previous, Relationship next) {
+        Long previousId = previous == null ? null : previous.getId();
+        Long nextId = next == null ? null : next.getId();
+
+        set(previous == null ? holder : previous, previous == null ? FIRST_PROPERTY : NEXT_PROPERTY, nextId);
+        set(next == null ? holder : next, next == null ? LAST_PROPERTY : PREVIOUS_PROPERTY, previousId);
+    }
+
+    private static void set(PropertyContainer container, String property, Long id) {
+        if (id == null) {
+            container.removeProperty(property);
+        } else {
+            container.setProperty(property, id);
+        }
+    }
+
+    private static boolean pointsTo(PropertyContainer container, String property, Relationship relationship) {
+        Object id = container.getProperty(property, null);
+        return id instanceof Long && (Long) id == relationship.getId();
+    }
+
+    private static long time(Relationship relationship) {
+        return (Long) relationship.getProperty(TIME_PROPERTY);
+    }
+
+    private static long count(Node holder) {
+        return ((Number) holder.getProperty(COUNT_PROPERTY, 0L)).longValue();
+    }
+
+    /**
+     * Find the node keeping the chain a deleted relationship has been part of.
+     *
+     * @return node, <code>null</code> if it has been deleted too or has never kept a chain.
+     */
+    private static Node findHolder(GraphDatabaseService database, Relationship deleted) {
+        for (Node node : deleted.getNodes()) {
+            try {
+                Node candidate = database.getNodeById(node.getId());
+                if (candidate.hasProperty(COUNT_PROPERTY)) {
+                    return candidate;
+                }
+            } catch (NotFoundException e) {
+                //ok, deleted too
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolve a relationship that is part of the chain of a node.
+     *
+     * @return relationship, <code>null</code> if it doesn't exist anymore, doesn't belong to the node (its ID has
+     * been reused), or isn't ordered.
+     */
+    private static Relationship resolve(Node holder, long id) {
+        Relationship relationship;
+        try {
+            relationship = holder.getGraphDatabase().getRelationshipById(id);
+        } catch (NotFoundException e) {
+            return null;
+        }
+
+        if (relationship.getStartNode().getId() != holder.getId() && relationship.getEndNode().getId() != holder.getId()) {
+            return null;
+        }
+
+        if (!isOrdered(relationship)) {
+            return null;
+        }
+
+        return relationship;
+    }
+
+    private static boolean isOfType(Relationship relationship, RelationshipType[] types) {
+        for (RelationshipType type : types) {
+            if (relationship.isType(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lock a node, so that concurrent transactions don't overwrite each other's changes to its chain, which is read
+     * again afterwards.
+     */
+    private static void lock(Node holder) {
+        holder.setProperty(LOCK_PROPERTY, true);
+        holder.removeProperty(LOCK_PROPERTY);
+    }
+
+    /**
+     * Position in the chain of a single node, pointing to the next relationship of the given types and direction within
+     * the bounds.
+     */
+    private static final class Chain {
+
+        private final Node holder;
+        private final int index;
+        private final Direction direction;
+        private final RelationshipType[] types;
+        private final boolean newestFirst;
+        private final long from;
+        private final long to;
+
+        private Relationship current;
+        private long currentTime;
+
+        private Long nextId;
+        private Iterator<Relationship> fallback;
+
+        //relationships returned with the time of the last one, so that a fallback doesn't return them again
+        private long lastTime;
+        private final Set<Long> lastTimeIds = new HashSet<>();
+
+        private Chain(Node holder, int index, Direction direction, RelationshipType[] types, boolean newestFirst, long from, long to) {
+            this.holder = holder;
+            this.index = index;
+            this.direction = direction;
+            this.types = types;
+            this.newestFirst = newestFirst;
+            this.from = from;
+            this.to = to;
+            this.lastTime = newestFirst ? Long.MAX_VALUE : Long.MIN_VALUE;
+
+            if (newestFirst) {
+                nextId = (Long) holder.getProperty(LAST_PROPERTY, null);
+            } else if (from != Long.MIN_VALUE && to == Long.MAX_VALUE) {
+                nextId = seek();
+            } else {
+                nextId = (Long) holder.getProperty(FIRST_PROPERTY, null);
+            }
+
+            advance();
+        }
+
+        /**
+         * Find the oldest relationship not older than the lower bound by walking the chain back from the newest one, so
+         * that the relationships before the bound aren't read at all.
+         *
+         * @return ID of the relationship, <code>null</code> if there is none.
+         */
+        private Long seek() {
+            Long result = null;
+            Long candidateId = (Long) holder.getProperty(LAST_PROPERTY, null);
+            while (candidateId != null) {
+                Relationship candidate = resolve(holder, candidateId);
+                if (candidate == null) {
+                    //broken, let the walk forward fall back
+                    return (Long) holder.getProperty(FIRST_PROPERTY, null);
+                }
+                if (time(candidate) < from) {
+                    break;
+                }
+                result = candidateId;
+                candidateId = (Long) candidate.getProperty(PREVIOUS_PROPERTY, null);
+            }
+            return result;
+        }
+
+        /**
+         * Move to the next relationship to return, <code>null</code> if there is none.
+         */
+        private void advance() {
+            current = null;
+
+            while (true) {
+                Relationship relationship;
+                if (fallback != null) {
+                    if (!fallback.hasNext()) {
+                        return;
+                    }
+                    relationship = fallback.next();
+                } else {
+                    if (nextId == null) {
+                        return;
+                    }
+                    relationship = resolve(holder, nextId);
+                    if (relationship == null) {
+                        fallBack();
+                        continue;
+                    }
+                    nextId = (Long) relationship.getProperty(newestFirst ? PREVIOUS_PROPERTY : NEXT_PROPERTY, null);
+                }
+
+                long time = time(relationship);
+
+                if (newestFirst ? time < from : time > to) {
+                    //beyond the bound, so are all the remaining ones
+                    nextId = null;
+                    fallback = Collections.emptyIterator();
+                    return;
+                }
+
+                if ((newestFirst ? time > to : time < from) || !matches(relationship)) {
+                    continue;
+                }
+
+                if (time != lastTime) {
+                    lastTime = time;
+                    lastTimeIds.clear();
+                }
+                lastTimeIds.add(relationship.getId());
+
+                current = relationship;
+                currentTime = time;
+                return;
+            }
+        }
+
+        /**
+         * Continue with the relationships of the broken chain sorted in memory, leaving out those returned already.
+         */
+        private void fallBack() {
+            LOG.warn("Order of events of " + holder + " has been broken, sorting them in memory");
+
+            List<Relationship> sorted = sorted(holder, -1);
+            if (newestFirst) {
+                Collections.reverse(sorted);
+            }
+
+            List<Relationship> remaining = new ArrayList<>();
+            for (Relationship relationship : sorted) {
+                long time = time(relationship);
+                if ((newestFirst ? time < lastTime : time > lastTime) || (time == lastTime && !lastTimeIds.contains(relationship.getId()))) {
+                    remaining.add(relationship);
+                }
+            }
+
+            nextId = null;
+            fallback = remaining.iterator();
+        }
+
+        private boolean matches(Relationship relationship) {
+            if (!BOTH.equals(direction) && !direction.equals(relationship.getStartNode().getId() == holder.getId() ? OUTGOING : INCOMING)) {
+                return false;
+            }
+
+            return types == null || isOfType(relationship, types);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+/**
+ * Settings of {@link TimeTreeBackedEvents}, i.e. what is maintained on time instants when events are attached and
+ * detached, and how events are read. Settings are immutable; each <code>with*</code> method returns a new instance.
+ * <p>
+ * The settings are explicit rather than global: all {@link TimedEvents} attaching events to the same tree should use
+ * the same settings, otherwise e.g. counts maintained by one of them don't include events attached by the others.
+ * The {@link #DEFAULT} settings maintain nothing and read events sequentially.
+ */
+public final class EventSettings {
+
+    public static final EventSettings DEFAULT = new EventSettings(false, false, null, null, null);
+
+    private final boolean countingEvents;
+    private final boolean orderingEvents;
+    private final EventAggregator eventAggregator;
+    private final EventBuckets eventBuckets;
+    private final ParallelEventCollector parallelEventCollector;
+
+    private EventSettings(boolean countingEvents, boolean orderingEvents, EventAggregator eventAggregator, EventBuckets eventBuckets, ParallelEventCollector parallelEventCollector) {
+        this.countingEvents = countingEvents;
+        this.orderingEvents = orderingEvents;
+        this.eventAggregator = eventAggregator;
+        this.eventBuckets = eventBuckets;
+        this.parallelEventCollector = parallelEventCollector;
+    }
+
+    /**
+     * Enable or disable event counting. When enabled, every instant keeps the number of events attached to it, so that
+     * events in a range are counted without visiting them. Once enabled, it should stay enabled for the lifetime of the
+     * data, since events attached or detached while disabled are not reflected in the counts.
+     *
+     * @param countingEvents <code>true</code> to enable event counting.
+     * @return new instance.
+     */
+    public EventSettings withCountingEvents(boolean countingEvents) {
+        return new EventSettings(countingEvents, orderingEvents, eventAggregator, eventBuckets, parallelEventCollector);
+    }
+
+    /**
+     * Enable or disable event ordering. When enabled, events attached to the same instant are kept in chronological
+     * order, so that they are read in that order without sorting.
+     *
+     * @param orderingEvents <code>true</code> to enable event ordering.
+     * @return new instance.
+     */
+    public EventSettings withOrderingEvents(boolean orderingEvents) {
+        return new EventSettings(countingEvents, orderingEvents, eventAggregator, eventBuckets, parallelEventCollector);
+    }
+
+    /**
+     * Set the numeric property of events, whose count, sum, minimum and maximum are maintained on instants, see
+     * {@link EventAggregator}. Like counting, it should stay set for the lifetime of the data.
+     *
+     * @param property to aggregate, <code>null</code> to disable aggregation.
+     * @return new instance.
+     */
+    public EventSettings withAggregatedProperty(String property) {
+        return new EventSettings(countingEvents, orderingEvents, property == null ? null : new EventAggregator(property), eventBuckets, parallelEventCollector);
+    }
+
+    /**
+     * Enable or disable spreading events attached to hot instants over buckets, see {@link EventBuckets}.
+     *
+     * @param threshold   degree of an instant, from which new events are attached to its buckets, 0 to disable bucketing.
+     * @param bucketCount number of buckets of a hot instant.
+     * @return new instance.
+     */
+    public EventSettings withBucketing(int threshold, int bucketCount) {
+        return new EventSettings(countingEvents, orderingEvents, eventAggregator, threshold <= 0 ? null : new EventBuckets(threshold, bucketCount), parallelEventCollector);
+    }
+
+    /**
+     * Collect events in ranges in parallel when they are requested by {@link TimedEvents#getCommittedEvents}. The
+     * collector is owned by the caller, who is responsible for shutting it down.
+     *
+     * @param parallelEventCollector collector, <code>null</code> to collect events sequentially.
+     * @return new instance.
+     */
+    public EventSettings withParallelEventCollector(ParallelEventCollector parallelEventCollector) {
+        return new EventSettings(countingEvents, orderingEvents, eventAggregator, eventBuckets, parallelEventCollector);
+    }
+
+    /**
+     * @return <code>true</code> iff events are counted per instant.
+     */
+    public boolean isCountingEvents() {
+        return countingEvents;
+    }
+
+    /**
+     * @return <code>true</code> iff events attached to the same instant are kept in chronological order.
+     */
+    public boolean isOrderingEvents() {
+        return orderingEvents;
+    }
+
+    /**
+     * @return aggregator of event properties, <code>null</code> if no property is aggregated.
+     */
+    public EventAggregator getEventAggregator() {
+        return eventAggregator;
+    }
+
+    /**
+     * @return bucketing strategy of hot instants, <code>null</code> if bucketing is disabled.
+     */
+    public EventBuckets getEventBuckets() {
+        return eventBuckets;
+    }
+
+    /**
+     * @return collector of events in parallel, <code>null</code> if events are collected sequentially.
+     */
+    public ParallelEventCollector getParallelEventCollector() {
+        return parallelEventCollector;
+    }
+}
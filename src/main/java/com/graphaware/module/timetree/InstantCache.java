@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.Resolution;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTimeZone;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded, approximately least-recently-used cache of time instant node IDs. Entries are keyed by the ID of the tree root, the
+ * resolution and time zone of the instant, and the time of the instant truncated to its resolution, so that all
+ * {@link TimeInstant}s falling into the same time instant node share a single entry.
+ * <p>
+ * The cache holds node IDs only; callers are responsible for verifying that a cached node still exists. This class
+ * is thread-safe. Lookups do not lock: they read a {@link ConcurrentHashMap} and stamp the entry with its access time.
+ * Modifications are serialized; once the capacity is exceeded, the entries with the oldest stamps are evicted in a
+ * batch, so eviction order is only as exact as the stamps.
+ */
+class InstantCache {
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final int evictTo;
+    private final Map<Key, Entry> instants = new ConcurrentHashMap<>();
+    private final Map<Long, Key> keys = new HashMap<>();
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity maximum number of entries held by the cache. Least recently used entries are evicted first.
+     */
+    InstantCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Instant cache capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.evictTo = capacity - capacity / 16;
+    }
+
+    /**
+     * Create a cache key.
+     *
+     * @param rootId      ID of the root of the tree the instant belongs to.
+     * @param timeInstant the instant.
+     * @return key.
+     */
+    static Key key(long rootId, TimeInstant timeInstant) {
+        Resolution resolution = timeInstant.getResolution();
+        DateTimeZone timeZone = timeInstant.getTimezone();
+        return new Key(rootId, resolution, resolution.truncate(timeInstant.getTime(), timeZone), timeZone);
+    }
+
+    /**
+     * Get the ID of the node cached for the given key.
+     *
+     * @param key to look up.
+     * @return node ID, <code>null</code> if not cached.
+     */
+    Long get(Key key) {
+        Entry entry = instants.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.accessed = System.nanoTime();
+        return entry.nodeId;
+    }
+
+    /**
+     * Cache a node ID.
+     *
+     * @param key    of the instant.
+     * @param nodeId ID of the node representing the instant.
+     */
+    synchronized void put(Key key, long nodeId) {
+        Entry previous = instants.put(key, new Entry(nodeId));
+        if (previous != null && previous.nodeId != nodeId) {
+            keys.remove(previous.nodeId);
+        }
+        Key previousKey = keys.put(nodeId, key);
+        if (previousKey != null && !previousKey.equals(key)) {
+            instants.remove(previousKey);
+        }
+        if (instants.size() > capacity) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Evict the entries with the oldest access stamps until no more than {@link #evictTo} entries remain. Evicting in
+     * a batch amortizes the scan over the puts that follow.
+     */
+    private void evictLeastRecentlyUsed() {
+        List<Map.Entry<Key, Entry>> entries = new ArrayList<>(instants.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().accessed));
+
+        for (int i = 0; i < entries.size() - evictTo; i++) {
+            Map.Entry<Key, Entry> eldest = entries.get(i);
+            if (instants.remove(eldest.getKey(), eldest.getValue())) {
+                keys.remove(eldest.getValue().nodeId);
+            }
+        }
+    }
+
+    /**
+     * Evict the entry for a node, if there is one.
+     *
+     * @param nodeId ID of the node.
+     */
+    synchronized void evictNode(long nodeId) {
+        Key key = keys.remove(nodeId);
+        if (key != null) {
+            instants.remove(key);
+        }
+    }
+
+    /**
+     * Evict all entries belonging to a tree.
+     *
+     * @param rootId ID of the tree root.
+     */
+    synchronized void evictRoot(long rootId) {
+        Iterator<Map.Entry<Key, Entry>> iterator = instants.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().rootId == rootId) {
+                keys.remove(entry.getValue().nodeId);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> iff there are no entries.
+     */
+    boolean isEmpty() {
+        return instants.isEmpty();
+    }
+
+    /**
+     * @return number of entries.
+     */
+    int size() {
+        return instants.size();
+    }
+
+    /**
+     * Cached node ID with the time it was last accessed.
+     */
+    private static final class Entry {
+
+        private final long nodeId;
+        private volatile long accessed = System.nanoTime();
+
+        private Entry(long nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * Key of the cache.
+     */
+    static final class Key {
+
+        private final long rootId;
+        private final Resolution resolution;
+        private final long truncatedTime;
+        private final DateTimeZone timeZone;
+
+        Key(long rootId, Resolution resolution, long truncatedTime, DateTimeZone timeZone) {
+            this.rootId = rootId;
+            this.resolution = resolution;
+            this.truncatedTime = truncatedTime;
+            this.timeZone = timeZone;
+        }
+
+        Resolution getResolution() {
+            return resolution;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return rootId == key.rootId
+                    && truncatedTime == key.truncatedTime
+                    && resolution == key.resolution
+                    && timeZone.equals(key.timeZone);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (rootId ^ (rootId >>> 32));
+            result = 31 * result + resolution.hashCode();
+            result = 31 * result + (int) (truncatedTime ^ (truncatedTime >>> 32));
+            result = 31 * result + timeZone.hashCode();
+            return result;
+        }
+    }
+}
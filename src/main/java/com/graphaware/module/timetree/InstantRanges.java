@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.Resolution;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.function.Consumer;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.CHILD;
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.NEXT;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * Utilities for summarizing ranges of time instants from values rolled up to their ancestors.
+ */
+final class InstantRanges {
+
+    private InstantRanges() {
+    }
+
+    /**
+     * Visit the smallest set of instants whose subtrees together cover the instants between the given ones (inclusive).
+     * These are the coarsest instants fully covered by the range, plus the partially covered instants at its edges.
+     * Their number is bounded by the fan-out of the tree multiplied by its depth, regardless of the length of the range.
+     * <p>
+     * Note that the visited instants can have a lower resolution than the range. Values they hold for events
+     * attached directly to them, or to their descendants of a lower resolution than the range, must be ignored.
+     *
+     * @param first   first instant, must not be after the last one and must have the same resolution.
+     * @param last    last instant.
+     * @param visitor to visit the instants with.
+     */
+    static void cover(Node first, Node last, Consumer<Node> visitor) {
+        if (first.getId() == last.getId()) {
+            visitor.accept(first);
+            return;
+        }
+
+        Node firstParent = SingleTimeTree.parent(first);
+        Node lastParent = SingleTimeTree.parent(last);
+
+        if (firstParent.getId() == lastParent.getId()) {
+            for (Node node = first; node != null; node = neighbour(node, OUTGOING)) {
+                visitor.accept(node);
+                if (node.getId() == last.getId()) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        //the partially covered parents contribute their children within the range
+        for (Node node = first; node != null && isChildOf(node, firstParent); node = neighbour(node, OUTGOING)) {
+            visitor.accept(node);
+        }
+
+        for (Node node = last; node != null && isChildOf(node, lastParent); node = neighbour(node, INCOMING)) {
+            visitor.accept(node);
+        }
+
+        //the parents in between are fully covered
+        Node afterFirstParent = neighbour(firstParent, OUTGOING);
+        if (afterFirstParent != null && afterFirstParent.getId() != lastParent.getId()) {
+            cover(afterFirstParent, neighbour(lastParent, INCOMING), visitor);
+        }
+    }
+
+    /**
+     * Find the resolution of a node, if it is a time instant.
+     *
+     * @param node to find the resolution of.
+     * @return resolution, <code>null</code> if the node isn't a time instant.
+     */
+    static Resolution resolutionOf(Node node) {
+        for (Resolution resolution : Resolution.values()) {
+            if (node.hasLabel(resolution.getLabel())) {
+                return resolution;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the parent of a time instant.
+     *
+     * @param node time instant.
+     * @return parent, <code>null</code> if the instant has no parent.
+     */
+    static Node parentOrNull(Node node) {
+        Relationship parent = node.getSingleRelationship(CHILD, INCOMING);
+        return parent == null ? null : parent.getStartNode();
+    }
+
+    private static Node neighbour(Node node, Direction direction) {
+        Relationship next = node.getSingleRelationship(NEXT, direction);
+        return next == null ? null : next.getOtherNode(node);
+    }
+
+    private static boolean isChildOf(Node node, Node parent) {
+        Relationship relationship = node.getSingleRelationship(CHILD, INCOMING);
+        return relationship != null && relationship.getStartNode().getId() == parent.getId();
+    }
+}
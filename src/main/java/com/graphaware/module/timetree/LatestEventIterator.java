@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.Event;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.*;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
+
+/**
+ * A lazy {@link Iterator} over events attached to a time instant, all instants before it, and all their children,
+ * newest first.
+ * <p>
+ * This is the exact reverse of the traversal performed by {@link EventIterator}: instants are visited by following
+ * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#NEXT} relationships backwards, an instant's
+ * own events are returned before its children are visited, and children are visited from the
+ * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST} one backwards. Nothing is visited
+ * beyond what is needed to produce the events consumed, so the cost of fetching the latest N events is proportional
+ * to N rather than to the size of the enclosing period. Events attached to the same instant are returned newest first
+ * if event ordering is enabled (see {@link EventOrder}), in no particular order otherwise.
+ */
+class LatestEventIterator implements Iterator<Event> {
+
+    private final RelationshipType[] types;
+    private final Direction direction;
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Node previousInstant;
+    private Node owner;
+    private Iterator<Relationship> relationships;
+    private Event next;
+
+    /**
+     * Create an iterator over the events attached to the given instant, all instants of the same resolution before
+     * it, and all their children.
+     *
+     * @param latest    latest instant, <code>null</code> for an empty iterator.
+     * @param types     of relationships between instants and events, <code>null</code> for all.
+     * @param direction of relationships between instants and events from the instants' point of view.
+     */
+    LatestEventIterator(Node latest, Set<RelationshipType> types, Direction direction) {
+        this.previousInstant = latest;
+        this.types = EventIterator.toArray(types);
+        this.direction = direction;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = fetchNext();
+        }
+
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Event result = next;
+        next = null;
+        return result;
+    }
+
+    private Event fetchNext() {
+        while (true) {
+            if (relationships != null) {
+                while (relationships.hasNext()) {
+                    Event event = EventIterator.toEvent(relationships.next(), owner);
+                    if (event != null) {
+                        return event;
+                    }
+                }
+                relationships = null;
+                owner = null;
+            }
+
+            if (stack.isEmpty()) {
+                if (previousInstant == null) {
+                    return null;
+                }
+
+                Node instant = previousInstant;
+                Relationship previousRelationship = instant.getSingleRelationship(NEXT, INCOMING);
+                previousInstant = previousRelationship == null ? null : previousRelationship.getStartNode();
+
+                visit(instant);
+                continue;
+            }
+
+            Node child = stack.peek().previousChild();
+
+            if (child != null) {
+                visit(child);
+            } else {
+                stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Visit a node: its own events come first, its children afterwards.
+     */
+    private void visit(Node node) {
+        owner = node;
+        relationships = EventIterator.expand(node, direction, types, true);
+        stack.push(new Frame(node));
+    }
+
+    /**
+     * A time instant node being visited, together with the last of its children visited so far.
+     */
+    private static final class Frame {
+
+        private final Node node;
+        private Node child;
+        private long firstChildId = -1;
+
+        private Frame(Node node) {
+            this.node = node;
+        }
+
+        /**
+         * @return previous child to visit, <code>null</code> if all children have been visited.
+         */
+        private Node previousChild() {
+            if (child == null) {
+                Relationship lastRelationship = node.getSingleRelationship(LAST, OUTGOING);
+                if (lastRelationship == null) {
+                    return null;
+                }
+
+                Relationship firstRelationship = node.getSingleRelationship(FIRST, OUTGOING);
+                firstChildId = firstRelationship == null ? -1 : firstRelationship.getEndNode().getId();
+                child = lastRelationship.getEndNode();
+                return child;
+            }
+
+            if (child.getId() == firstChildId) {
+                return null;
+            }
+
+            Relationship previousRelationship = child.getSingleRelationship(NEXT, INCOMING);
+            if (previousRelationship == null) {
+                return null;
+            }
+
+            Node previousChild = previousRelationship.getStartNode();
+
+            //without a FIRST relationship, the beginning of the children is where the parent changes
+            if (firstChildId == -1 && SingleTimeTree.parent(previousChild).getId() != node.getId()) {
+                return null;
+            }
+
+            child = previousChild;
+            return child;
+        }
+    }
+}
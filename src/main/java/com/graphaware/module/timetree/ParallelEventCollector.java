@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.common.log.LoggerFactory;
+import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.Resolution;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTimeZone;
+import org.joda.time.DurationField;
+import org.joda.time.chrono.ISOChronology;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Collects events attached to a range of time instants in parallel. The range is split into consecutive calendar
+ * periods (e.g. one per month when the range spans a year), which correspond to independent sub-trees of a time tree.
+ * Events of each period are collected on a shared {@link ForkJoinPool}, each in its own read transaction, and the results
+ * are concatenated in chronological order, so they are identical to collecting the whole range sequentially.
+ * <p>
+ * Since the periods are read in separate transactions, events attached within the caller's transaction that hasn't been
+ * committed yet are not seen. The collector is therefore only used by {@link TimedEvents#getCommittedEvents}, never by
+ * {@link TimedEvents#getEvents(TimeInstant, TimeInstant, Set, Direction)}.
+ * <p>
+ * The size of the pool caps the number of threads used by all parallel queries together, so a single query cannot
+ * starve the server. This class is thread-safe.
+ */
+public final class ParallelEventCollector {
+
+    private static final Log LOG = LoggerFactory.getLogger(ParallelEventCollector.class);
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a new collector.
+     *
+     * @param parallelism maximum number of threads used for collecting events, must be at least 2.
+     */
+    public ParallelEventCollector(int parallelism) {
+        if (parallelism < 2) {
+            throw new IllegalArgumentException("Parallelism must be at least 2");
+        }
+
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return maximum number of threads used for collecting events.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Stop the threads of this collector. Queries submitted afterwards fail.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Collect events attached to a range of time instants.
+     *
+     * @param events    to collect the events of each period from.
+     * @param database  to start the read transactions in.
+     * @param startTime start of the range, validated by the caller.
+     * @param endTime   end of the range, validated by the caller.
+     * @param types     of the relationships attaching the events, <code>null</code> for all.
+     * @param direction of the relationships attaching the events from the instants' point of view.
+     * @return events in chronological order.
+     */
+    List<Event> getEvents(final TimeTreeBackedEvents events, final GraphDatabaseService database, final TimeInstant startTime, final TimeInstant endTime, final Set<RelationshipType> types, final Direction direction) {
+        List<TimeInstant[]> periods = split(startTime, endTime);
+
+        if (periods.size() < 2) {
+            return events.collectEvents(startTime, endTime, types, direction);
+        }
+
+        LOG.debug("Collecting events in %s periods", periods.size());
+
+        List<ForkJoinTask<List<Event>>> tasks = new ArrayList<>(periods.size());
+        try {
+            for (final TimeInstant[] period : periods) {
+                tasks.add(pool.submit(() -> {
+                    try (Transaction tx = database.beginTx()) {
+                        List<Event> result = events.collectEvents(period[0], period[1], types, direction);
+                        tx.success();
+                        return result;
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            //collector has been shut down in the meantime
+            for (ForkJoinTask<List<Event>> task : tasks) {
+                task.cancel(false);
+            }
+            return events.collectEvents(startTime, endTime, types, direction);
+        }
+
+        List<Event> result = new ArrayList<>();
+        for (ForkJoinTask<List<Event>> task : tasks) {
+            result.addAll(task.join());
+        }
+        return result;
+    }
+
+    /**
+     * Split a range into consecutive periods of the coarsest resolution that yields at least as many periods as there are
+     * threads, or of the range's own resolution if none does.
+     *
+     * @param startTime start of the range.
+     * @param endTime   end of the range.
+     * @return periods as pairs of start and end, in chronological order.
+     */
+    List<TimeInstant[]> split(TimeInstant startTime, TimeInstant endTime) {
+        Resolution resolution = startTime.getResolution();
+        DateTimeZone timezone = startTime.getTimezone();
+
+        long from = resolution.truncate(startTime.getTime(), timezone);
+        long to = resolution.truncate(endTime.getTime(), timezone);
+
+        for (Resolution level : Resolution.values()) {
+            if (level.compareTo(resolution) >= 0 || countPeriods(from, to, level, timezone) >= parallelism) {
+                return periods(from, to, level, startTime);
+            }
+        }
+
+        throw new IllegalStateException("Resolution " + resolution + " is not among resolutions");
+    }
+
+    private int countPeriods(long from, long to, Resolution level, DateTimeZone timezone) {
+        DurationField unit = unit(level, timezone);
+
+        int count = 0;
+        for (long period = level.truncate(from, timezone); period <= to && count < parallelism; period = unit.add(period, 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private List<TimeInstant[]> periods(long from, long to, Resolution level, TimeInstant template) {
+        DateTimeZone timezone = template.getTimezone();
+        DurationField unit = unit(level, timezone);
+
+        List<TimeInstant[]> result = new ArrayList<>();
+        for (long period = level.truncate(from, timezone); period <= to; ) {
+            long next = unit.add(period, 1);
+            result.add(new TimeInstant[]{
+                    instant(Math.max(period, from), template),
+                    instant(Math.min(next - 1, to), template)});
+            period = next;
+        }
+        return result;
+    }
+
+    private DurationField unit(Resolution level, DateTimeZone timezone) {
+        return level.getDateTimeFieldType().getDurationType().getField(ISOChronology.getInstance(timezone));
+    }
+
+    private TimeInstant instant(long time, TimeInstant template) {
+        return TimeInstant.instant(time).with(template.getResolution()).with(template.getTimezone());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.Event;
+import org.neo4j.graphdb.ResourceIterator;
+
+/**
+ * A {@link ResourceIterator} over events, which can tell where it has got to, so that a later iteration over the same
+ * range can continue from there.
+ */
+public interface ResumableEventIterator extends ResourceIterator<Event> {
+
+    /**
+     * Get an opaque cursor pointing just past the last event returned by {@link #next()}. When passed to
+     * {@link TimedEvents#iterateEvents(com.graphaware.module.timetree.domain.TimeInstant, com.graphaware.module.timetree.domain.TimeInstant, java.util.Set, org.neo4j.graphdb.Direction, String)}
+     * together with the same range, types, and direction, the iteration continues with the following event.
+     *
+     * @return cursor, the cursor this iteration has been resumed from if no event has been returned yet, or
+     * <code>null</code> if the iteration hasn't been resumed and no event has been returned yet.
+     */
+    String getCursor();
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+
+import java.util.*;
+
+/**
+ * Changes of the values that {@link EventCounts} and {@link EventAggregator} maintain on the ancestors of time instants,
+ * deferred until the end of the transaction making them.
+ * <p>
+ * Attaching or detaching an event only writes to the node the event is attached to, i.e. the instant or one of its
+ * buckets, which records the change of its ancestors in a pending property, and the thread remembers the node. Before
+ * the transaction commits, the pending changes of all such nodes are merged and each ancestor is written once, finest
+ * resolution first and in the order of node IDs, so that an ancestor can recompute an extreme from its children. Coarse instants like years are therefore only locked while the
+ * transaction commits, no matter how many events it attaches, and all transactions lock them in the same order. Reads
+ * of the rolled up values apply the pending changes of the current transaction first.
+ * <p>
+ * Pending changes live in the graph rather than in memory, so that those of a transaction that has been rolled back
+ * disappear with it and the nodes remembered by the thread merely have nothing pending. Changes left pending by a
+ * commit, e.g. made by a transaction event handler running after the one applying them, are applied with the next
+ * change of the same node.
+ */
+final class RollUps {
+
+    private static final ThreadLocal<Set<Long>> PENDING = new ThreadLocal<Set<Long>>() {
+        @Override
+        protected Set<Long> initialValue() {
+            return new LinkedHashSet<>();
+        }
+    };
+
+    private final Map<Long, Node> ancestors = new HashMap<>();
+    private final Map<Long, Map<String, Long>> counts = new HashMap<>();
+    private final Map<Long, Map<String, double[]>> aggregates = new HashMap<>();
+
+    private RollUps() {
+    }
+
+    /**
+     * Remember a node whose pending property has been written in the current transaction.
+     *
+     * @param target node events are attached to.
+     */
+    static void pending(Node target) {
+        Set<Long> pending = PENDING.get();
+
+        if (pending.isEmpty()) {
+            //the registry's transaction event handler applies the changes before commit
+            TimeTreeRegistry.forDatabase(target.getGraphDatabase());
+        }
+
+        pending.add(target.getId());
+    }
+
+    /**
+     * Apply the changes pending in the current transaction to the ancestors of the nodes they have been recorded on.
+     *
+     * @param database the transaction runs against.
+     */
+    static void apply(GraphDatabaseService database) {
+        Set<Long> pending = PENDING.get();
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Long> targetIds = new ArrayList<>(pending);
+        pending.clear();
+
+        RollUps rollUps = new RollUps();
+        for (long targetId : targetIds) {
+            Node target;
+            try {
+                target = database.getNodeById(targetId);
+            } catch (NotFoundException e) {
+                continue;
+            }
+
+            EventCounts.rollUp(target, rollUps);
+            EventAggregator.rollUp(target, rollUps);
+        }
+
+        rollUps.apply();
+    }
+
+    /**
+     * Forget the nodes remembered by the current thread, once its transaction has finished.
+     */
+    static void discard() {
+        PENDING.remove();
+    }
+
+    /**
+     * Add a change of a count held by an ancestor.
+     *
+     * @param ancestor holding the count.
+     * @param key      of the property holding the count.
+     * @param delta    to add.
+     */
+    void count(Node ancestor, String key, long delta) {
+        ancestors.put(ancestor.getId(), ancestor);
+
+        Map<String, Long> deltas = counts.get(ancestor.getId());
+        if (deltas == null) {
+            deltas = new HashMap<>();
+            counts.put(ancestor.getId(), deltas);
+        }
+
+        Long previous = deltas.get(key);
+        deltas.put(key, previous == null ? delta : previous + delta);
+    }
+
+    /**
+     * Add a change of an aggregate held by an ancestor.
+     *
+     * @param ancestor holding the aggregate.
+     * @param key      of the property holding the aggregate.
+     * @param change   to add, see {@link EventAggregator#mergeChange(double[], double[])}.
+     */
+    void aggregate(Node ancestor, String key, double[] change) {
+        ancestors.put(ancestor.getId(), ancestor);
+
+        Map<String, double[]> changes = aggregates.get(ancestor.getId());
+        if (changes == null) {
+            changes = new HashMap<>();
+            aggregates.put(ancestor.getId(), changes);
+        }
+
+        double[] previous = changes.get(key);
+        if (previous == null) {
+            changes.put(key, change.clone());
+        } else {
+            EventAggregator.mergeChange(previous, change);
+        }
+    }
+
+    private void apply() {
+        List<Node> ordered = new ArrayList<>(ancestors.values());
+        ordered.sort(new Comparator<Node>() {
+            @Override
+            public int compare(Node first, Node second) {
+                int result = Integer.compare(InstantRanges.resolutionOf(second).ordinal(), InstantRanges.resolutionOf(first).ordinal());
+                return result != 0 ? result : Long.compare(first.getId(), second.getId());
+            }
+        });
+
+        for (Node ancestor : ordered) {
+            Map<String, Long> deltas = counts.get(ancestor.getId());
+            if (deltas != null) {
+                EventCounts.apply(ancestor, deltas);
+            }
+
+            Map<String, double[]> changes = aggregates.get(ancestor.getId());
+            if (changes != null) {
+                EventAggregator.apply(ancestor, changes);
+            }
+        }
+    }
+}
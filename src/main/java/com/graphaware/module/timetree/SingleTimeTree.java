@@ -18,17 +18,17 @@ package com.graphaware.module.timetree;
 
 import com.graphaware.common.log.LoggerFactory;
 import com.graphaware.common.util.IterableUtils;
+import com.graphaware.module.timetree.domain.CalendarFields;
 import com.graphaware.module.timetree.domain.Resolution;
 import com.graphaware.module.timetree.domain.TimeInstant;
 import com.graphaware.module.timetree.domain.TimeTreeLabels;
-import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.logging.Log;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.graphaware.common.util.PropertyContainerUtils.getInt;
@@ -37,6 +37,7 @@ import static com.graphaware.module.timetree.domain.Resolution.YEAR;
 import static com.graphaware.module.timetree.domain.Resolution.findForNode;
 import static com.graphaware.module.timetree.domain.TimeTreeLabels.TimeTreeRoot;
 import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.*;
+import static com.graphaware.module.timetree.domain.ValidationUtils.validateRange;
 import static org.neo4j.graphdb.Direction.INCOMING;
 import static org.neo4j.graphdb.Direction.OUTGOING;
 
@@ -49,8 +50,14 @@ public class SingleTimeTree implements TimeTree {
 
     protected static final String VALUE_PROPERTY = "value";
 
+    private static final long NO_ROOT = -1;
+
     private final GraphDatabaseService database;
     private final ReentrantLock rootLock = new ReentrantLock();
+    private final TimeTreeCache cache;
+    private final InstantCache instantCache;
+    private final ChildDirectory childDirectory;
+    private volatile long rootId = NO_ROOT;
 
     /**
      * Constructor for time tree.
@@ -58,44 +65,117 @@ public class SingleTimeTree implements TimeTree {
      * @param database to talk to.
      */
     public SingleTimeTree(GraphDatabaseService database) {
-        this.database = database;
+        this(database, InstantCache.DEFAULT_CAPACITY);
+    }
 
+    /**
+     * Constructor for time tree.
+     *
+     * @param database             to talk to.
+     * @param instantCacheCapacity maximum number of time instant nodes, whose IDs are cached in order to avoid
+     *                             traversing the tree when looking them up.
+     */
+    public SingleTimeTree(GraphDatabaseService database, int instantCacheCapacity) {
+        this(database, new TimeTreeCache(instantCacheCapacity));
+
+        final TimeTreeCache cache = this.cache;
         database.registerTransactionEventHandler(new TransactionEventHandler<Boolean>() {
             @Override
             public Boolean beforeCommit(TransactionData transactionData) throws Exception {
-                if (!rootLock.isLocked()) {
-                    return false;
-                }
-
-                for (Node node : transactionData.createdNodes()) {
-                    if (node.hasLabel(TimeTreeRoot)) {
-                        return true;
-                    }
-                }
-
-                return false;
+                return SingleTimeTree.this.beforeCommit(transactionData);
             }
 
             @Override
             public void afterCommit(TransactionData transactionData, Boolean rootCreated) {
-                if (rootCreated) {
-                    if (rootLock.isHeldByCurrentThread()) {
-                        rootLock.unlock();
-                    }
-                }
+                cache.afterCommit(transactionData);
+                SingleTimeTree.this.afterCommit(transactionData, rootCreated);
             }
 
             @Override
             public void afterRollback(TransactionData transactionData, Boolean rootCreated) {
-                if (rootCreated) {
-                    if (rootLock.isHeldByCurrentThread()) {
-                        rootLock.unlock();
-                    }
-                }
+                cache.afterRollback();
+                SingleTimeTree.this.afterRollback(rootCreated);
             }
         });
     }
 
+    /**
+     * Constructor for a time tree, which shares its caches with other trees. No transaction event handler is
+     * registered; it is the caller's responsibility to keep the caches consistent and to call
+     * {@link #beforeCommit(TransactionData)}, {@link #afterCommit(TransactionData, boolean)}, and
+     * {@link #afterRollback(boolean)} for every transaction.
+     *
+     * @param database to talk to.
+     * @param cache    shared caches.
+     */
+    SingleTimeTree(GraphDatabaseService database, TimeTreeCache cache) {
+        this.database = database;
+        this.cache = cache;
+        this.instantCache = cache.getInstantCache();
+        this.childDirectory = cache.getChildDirectory();
+    }
+
+    /**
+     * Find out whether a transaction about to be committed creates the root of this tree.
+     *
+     * @param transactionData of the transaction.
+     * @return true iff the root is being created.
+     */
+    boolean beforeCommit(TransactionData transactionData) {
+        if (!rootLock.isLocked()) {
+            return false;
+        }
+
+        for (Node node : transactionData.createdNodes()) {
+            if (node.hasLabel(TimeTreeRoot)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget the root of this tree if the committed transaction has deleted it, and release the root lock if the
+     * transaction has created it. The shared caches are not touched.
+     *
+     * @param transactionData of the committed transaction.
+     * @param rootCreated     result of {@link #beforeCommit(TransactionData)}.
+     */
+    void afterCommit(TransactionData transactionData, boolean rootCreated) {
+        if (rootId != NO_ROOT) {
+            for (Node node : transactionData.deletedNodes()) {
+                if (node.getId() == rootId) {
+                    rootId = NO_ROOT;
+                }
+            }
+        }
+
+        afterRollback(rootCreated);
+    }
+
+    /**
+     * Release the root lock if the transaction has attempted to create the root.
+     *
+     * @param rootCreated result of {@link #beforeCommit(TransactionData)}.
+     */
+    void afterRollback(boolean rootCreated) {
+        if (rootCreated) {
+            if (rootLock.isHeldByCurrentThread()) {
+                rootLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the database this tree lives in.
+     *
+     * @return database.
+     */
+    GraphDatabaseService getDatabase() {
+        return database;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -125,13 +205,30 @@ public class SingleTimeTree implements TimeTree {
      */
     @Override
     public List<Node> getInstants(TimeInstant startTime, TimeInstant endTime) {
-        List<Node> result = new LinkedList<>();
+        validateRange(startTime, endTime);
 
-        for (TimeInstant instant : TimeInstant.getInstants(startTime, endTime)) {
-            Node toAdd = getInstant(instant);
-            if (toAdd != null) {
-                result.add(toAdd);
+        List<Node> result = new ArrayList<>();
+
+        try (Transaction tx = database.beginTx()) {
+            Node startNode = getInstantAtOrAfter(startTime);
+            Node endNode = startNode == null ? null : getInstantAtOrBefore(endTime);
+
+            //when there is nothing in the range, the instant before the range is followed by the instant after it
+            if (endNode != null && !isNext(startNode, endNode)) {
+                Node instant = startNode;
+                while (instant != null) {
+                    result.add(instant);
+
+                    if (instant.getId() == endNode.getId()) {
+                        break;
+                    }
+
+                    Relationship next = instant.getSingleRelationship(NEXT, OUTGOING);
+                    instant = next == null ? null : next.getEndNode();
+                }
             }
+
+            tx.success();
         }
 
         return result;
@@ -145,11 +242,16 @@ public class SingleTimeTree implements TimeTree {
         Node instant;
 
         try (Transaction tx = database.beginTx()) {
-            DateTime dateTime = new DateTime(timeInstant.getTime(), timeInstant.getTimezone());
-
             Node timeRoot = getTimeRoot();
-            tx.acquireWriteLock(timeRoot);
-            instant = getOrCreateInstant(timeRoot, dateTime, timeInstant.getResolution());
+            InstantCache.Key key = InstantCache.key(timeRoot.getId(), timeInstant);
+
+            instant = getCachedInstant(key);
+
+            if (instant == null) {
+                instant = getOrCreateInstant(tx, timeRoot, timeRoot, calendarFields(timeInstant), timeInstant.getResolution());
+
+                cacheInstant(key, instant);
+            }
 
             tx.success();
         }
@@ -162,10 +264,102 @@ public class SingleTimeTree implements TimeTree {
      */
     @Override
     public List<Node> getOrCreateInstants(TimeInstant startTime, TimeInstant endTime) {
-        List<Node> result = new LinkedList<>();
+        List<Node> result;
 
-        for (TimeInstant instant : TimeInstant.getInstants(startTime, endTime)) {
-            result.add(getOrCreateInstant(instant));
+        try (Transaction tx = database.beginTx()) {
+            result = getOrCreateInstants(tx, TimeInstant.getInstants(startTime, endTime), false);
+            tx.success();
+        }
+
+        return result;
+    }
+
+    /**
+     * Get nodes representing the given time instants, creating the ones that don't exist. The instants are visited in a
+     * single walk down the tree, which starts from the path to the previously visited instant rather than from the root,
+     * like {@link #getOrCreateInstants(TimeInstant, TimeInstant)} does for a range.
+     *
+     * @param instants in chronological order, possibly of different resolutions and time zones, repeated instants allowed.
+     * @return nodes representing the instants, in the same order.
+     */
+    List<Node> getOrCreateInstants(List<TimeInstant> instants) {
+        List<Node> result;
+
+        try (Transaction tx = database.beginTx()) {
+            result = getOrCreateInstants(tx, instants, true);
+            tx.success();
+        }
+
+        return result;
+    }
+
+    private List<Node> getOrCreateInstants(Transaction tx, List<TimeInstant> instants, boolean cached) {
+        List<Node> result = new ArrayList<>(instants.size());
+        Node timeRoot = getTimeRoot();
+
+        //nodes (and their values) on the path to the previously visited instant, per level
+        Node[] path = new Node[CalendarFields.NUMBER_OF_FIELDS];
+        int[] pathValues = new int[CalendarFields.NUMBER_OF_FIELDS];
+
+        DateTimeZone timezone = null;
+        CalendarFields calendarFields = null;
+        int[] fields = new int[CalendarFields.NUMBER_OF_FIELDS];
+
+        for (TimeInstant instant : instants) {
+            InstantCache.Key key = null;
+            if (cached) {
+                key = InstantCache.key(timeRoot.getId(), instant);
+                Node cachedInstant = getCachedInstant(key);
+                if (cachedInstant != null) {
+                    result.add(cachedInstant);
+                    continue;
+                }
+            }
+
+            if (!instant.getTimezone().equals(timezone)) {
+                //calendar fields of different time zones don't follow each other, start from the root
+                timezone = instant.getTimezone();
+                calendarFields = CalendarFields.forZone(timezone);
+                Arrays.fill(path, null);
+            }
+
+            calendarFields.decompose(instant.getTime(), fields);
+            Node parent = timeRoot;
+            boolean pathChanged = false;
+
+            for (int level = 0; level <= instant.getResolution().ordinal(); level++) {
+                int value = fields[level];
+
+                if (!pathChanged && path[level] != null && pathValues[level] == value) {
+                    parent = path[level];
+                    continue;
+                }
+
+                Node child;
+                if (!pathChanged && path[level] != null && pathValues[level] + 1 == value) {
+                    child = findOrCreateNextChild(tx, parent, path[level], value);
+                } else {
+                    child = findChild(parent, value, RETURN_NULL);
+                    if (child == null) {
+                        child = findOrCreateChild(tx, timeRoot, parent, value);
+                    }
+                }
+
+                if (!pathChanged) {
+                    Arrays.fill(path, level + 1, path.length, null);
+                }
+
+                pathChanged = true;
+                path[level] = child;
+                pathValues[level] = value;
+                parent = child;
+            }
+
+            result.add(parent);
+
+            if (cached) {
+                cacheInstant(key, parent);
+            }
         }
 
         return result;
@@ -177,15 +371,10 @@ public class SingleTimeTree implements TimeTree {
      * @return root of the time tree.
      */
     protected Node getTimeRoot() {
-        Node timeTreeRoot = IterableUtils.getSingleOrNull(database.findNodes(TimeTreeRoot));
+        Node timeTreeRoot = findTimeRoot();
 
         if (timeTreeRoot != null) {
-            try {
-                timeTreeRoot.getDegree();
-                return timeTreeRoot;
-            } catch (NotFoundException e) {
-                //ok
-            }
+            return timeTreeRoot;
         }
 
         rootLock.lock();
@@ -199,20 +388,102 @@ public class SingleTimeTree implements TimeTree {
 
         LOG.info("Creating time tree root");
         timeTreeRoot = database.createNode(TimeTreeRoot);
+        cache.markUncommitted(timeTreeRoot);
 
         return timeTreeRoot;
     }
 
+    /**
+     * Find the root of the time tree. Never create it and never lock anything.
+     *
+     * @return root of the time tree, <code>null</code> if it does not exist.
+     */
+    protected Node findTimeRoot() {
+        Node timeTreeRoot = getCachedRoot();
+
+        if (timeTreeRoot != null) {
+            return timeTreeRoot;
+        }
+
+        timeTreeRoot = IterableUtils.getSingleOrNull(database.findNodes(TimeTreeRoot));
+
+        if (timeTreeRoot != null) {
+            try {
+                timeTreeRoot.getDegree();
+                cacheRoot(timeTreeRoot);
+                return timeTreeRoot;
+            } catch (NotFoundException e) {
+                //ok
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the root of the time tree from the cache, verifying that it still exists.
+     *
+     * @return cached root, <code>null</code> if not cached or no longer valid.
+     */
+    private Node getCachedRoot() {
+        long cachedRootId = rootId;
+
+        if (cachedRootId == NO_ROOT) {
+            return null;
+        }
+
+        try {
+            Node timeTreeRoot = database.getNodeById(cachedRootId);
+            if (timeTreeRoot.hasLabel(TimeTreeRoot)) {
+                return timeTreeRoot;
+            }
+        } catch (NotFoundException e) {
+            //ok, deleted in the meantime
+        }
+
+        rootId = NO_ROOT;
+        return null;
+    }
+
+    private void cacheRoot(Node timeTreeRoot) {
+        //a root created by the current transaction will be cached when looked up after commit
+        if (!cache.isUncommitted(timeTreeRoot.getId())) {
+            rootId = timeTreeRoot.getId();
+        }
+    }
+
+    /**
+     * Get a node representing a time instant, without creating anything and without taking any locks, so that reads
+     * run concurrently with each other and are only isolated from writers by the database itself.
+     *
+     * @param timeInstant         time instant.
+     * @param childNotFoundPolicy what to do when the instant isn't found.
+     * @return instant node, or a value specified by the given {@link ChildNotFoundPolicy}.
+     */
     private Node getInstant(TimeInstant timeInstant, ChildNotFoundPolicy childNotFoundPolicy) {
         Node instant;
 
         try (Transaction tx = database.beginTx()) {
-            DateTime dateTime = new DateTime(timeInstant.getTime(), timeInstant.getTimezone());
+            Node timeRoot = findTimeRoot();
 
-            Node timeRoot = getTimeRoot();
-            tx.acquireWriteLock(timeRoot);
+            if (timeRoot == null) {
+                tx.success();
+                return null;
+            }
+
+            InstantCache.Key key = InstantCache.key(timeRoot.getId(), timeInstant);
+
+            //an existing instant is the answer regardless of the policy
+            instant = getCachedInstant(key);
 
-            instant = getInstant(timeRoot, dateTime, timeInstant.getResolution(), childNotFoundPolicy);
+            if (instant == null) {
+                instant = getInstant(timeRoot, calendarFields(timeInstant), timeInstant.getResolution(), childNotFoundPolicy);
+
+                //only RETURN_NULL guarantees that a non-null instant is the requested one
+                if (instant != null && RETURN_NULL.equals(childNotFoundPolicy)) {
+                    cacheInstant(key, instant);
+                }
+            }
 
             tx.success();
         }
@@ -220,7 +491,56 @@ public class SingleTimeTree implements TimeTree {
         return instant;
     }
 
-    private Node getInstant(Node parent, DateTime dateTime, Resolution targetResolution, ChildNotFoundPolicy childNotFoundPolicy) {
+    /**
+     * Get an instant node from the cache.
+     *
+     * @param key of the instant.
+     * @return cached instant node, <code>null</code> if not cached or no longer valid.
+     */
+    private Node getCachedInstant(InstantCache.Key key) {
+        Long nodeId = instantCache.get(key);
+
+        if (nodeId == null) {
+            return null;
+        }
+
+        try {
+            Node node = database.getNodeById(nodeId);
+            if (node.hasLabel(key.getResolution().getLabel())) {
+                return node;
+            }
+        } catch (NotFoundException e) {
+            //ok, deleted in the meantime
+        }
+
+        instantCache.evictNode(nodeId);
+        return null;
+    }
+
+    /**
+     * Cache an instant node. If the node has been created by the current transaction, it will only be cached once
+     * the transaction commits.
+     *
+     * @param key     of the instant.
+     * @param instant node representing the instant.
+     */
+    private void cacheInstant(InstantCache.Key key, Node instant) {
+        cache.cacheInstant(key, instant.getId());
+    }
+
+    /**
+     * Decompose a time instant into calendar fields in its time zone.
+     *
+     * @param timeInstant to decompose.
+     * @return calendar fields, indexed by {@link Resolution#ordinal()}.
+     */
+    private int[] calendarFields(TimeInstant timeInstant) {
+        int[] fields = new int[CalendarFields.NUMBER_OF_FIELDS];
+        CalendarFields.forZone(timeInstant.getTimezone()).decompose(timeInstant.getTime(), fields);
+        return fields;
+    }
+
+    private Node getInstant(Node parent, int[] fields, Resolution targetResolution, ChildNotFoundPolicy childNotFoundPolicy) {
         Resolution currentResolution = currentResolution(parent);
 
         if (targetResolution.equals(currentResolution)) {
@@ -229,46 +549,93 @@ public class SingleTimeTree implements TimeTree {
 
         Resolution newCurrentResolution = childResolution(parent);
 
-        Node child = findChild(parent, dateTime.get(newCurrentResolution.getDateTimeFieldType()), RETURN_NULL);
+        Node child = findChild(parent, fields[newCurrentResolution.ordinal()], RETURN_NULL);
 
         if (child == null) {
             switch (childNotFoundPolicy) {
                 case RETURN_NULL:
                     return null;
                 case RETURN_NEXT:
-                    return getInstantViaClosestChild(parent, dateTime, targetResolution, childNotFoundPolicy, newCurrentResolution, FIRST);
+                    return getInstantViaClosestChild(parent, fields, targetResolution, childNotFoundPolicy, newCurrentResolution, FIRST);
                 case RETURN_PREVIOUS:
-                    return getInstantViaClosestChild(parent, dateTime, targetResolution, childNotFoundPolicy, newCurrentResolution, LAST);
+                    return getInstantViaClosestChild(parent, fields, targetResolution, childNotFoundPolicy, newCurrentResolution, LAST);
             }
         }
 
         //recursion
-        return getInstant(child, dateTime, targetResolution, childNotFoundPolicy);
+        return getInstant(child, fields, targetResolution, childNotFoundPolicy);
     }
 
-    private Node getInstantViaClosestChild(Node parent, DateTime dateTime, Resolution targetResolution, ChildNotFoundPolicy childNotFoundPolicy, Resolution newCurrentResolution, RelationshipType relationshipType) {
-        Node closestChild = findChild(parent, dateTime.get(newCurrentResolution.getDateTimeFieldType()), childNotFoundPolicy);
+    private Node getInstantViaClosestChild(Node parent, int[] fields, Resolution targetResolution, ChildNotFoundPolicy childNotFoundPolicy, Resolution newCurrentResolution, RelationshipType relationshipType) {
+        Node closestChild = findChild(parent, fields[newCurrentResolution.ordinal()], childNotFoundPolicy);
+
+        if (closestChild == null && !parent.hasRelationship(FIRST, OUTGOING)) {
+            //parent without children, continue with its neighbours on the same level
+            closestChild = neighbour(parent, relationshipType);
+        }
+
         if (closestChild == null) {
             return null;
         }
-        return findChild(closestChild, relationshipType, targetResolution);
+
+        return findDescendant(closestChild, relationshipType, targetResolution);
     }
 
-    private Node findChild(Node parent, RelationshipType relationshipType, Resolution targetResolution) {
-        if (!isRoot(parent)) {
-            Resolution currentResolution = findForNode(parent);
+    private boolean isNext(Node node, Node previous) {
+        Relationship next = previous.getSingleRelationship(NEXT, OUTGOING);
+        return next != null && next.getEndNode().getId() == node.getId();
+    }
+
+    /**
+     * Find the first (for {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST}) or the last
+     * (for {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST}) descendant of a node at the
+     * target resolution. Nodes without children are skipped in favour of the following (or preceding, respectively)
+     * nodes on the same level.
+     *
+     * @param node             to start from.
+     * @param relationshipType {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST} or
+     *                         {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST}.
+     * @param targetResolution resolution of the descendant.
+     * @return descendant, <code>null</code> if there is no such node.
+     */
+    private Node findDescendant(Node node, RelationshipType relationshipType, Resolution targetResolution) {
+        Node current = node;
 
-            if (currentResolution.equals(targetResolution)) {
-                return parent;
+        while (current != null) {
+            if (!isRoot(current) && findForNode(current).equals(targetResolution)) {
+                return current;
             }
+
+            Relationship r = current.getSingleRelationship(relationshipType, OUTGOING);
+            if (r != null) {
+                //the child's level is searched all the way to its end, no need to continue on this one
+                return findDescendant(r.getEndNode(), relationshipType, targetResolution);
+            }
+
+            current = neighbour(current, relationshipType);
         }
 
-        Relationship r = parent.getSingleRelationship(relationshipType, OUTGOING);
-        if (r == null) {
-            return null;
+        return null;
+    }
+
+    /**
+     * Get the following (for {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST}) or the
+     * preceding (for {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST}) node on the same
+     * level.
+     *
+     * @param node             to start from.
+     * @param relationshipType {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST} or
+     *                         {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST}.
+     * @return neighbouring node, <code>null</code> if there is none.
+     */
+    private Node neighbour(Node node, RelationshipType relationshipType) {
+        if (FIRST.name().equals(relationshipType.name())) {
+            Relationship next = node.getSingleRelationship(NEXT, OUTGOING);
+            return next == null ? null : next.getEndNode();
         }
 
-        return findChild(r.getEndNode(), relationshipType, targetResolution);
+        Relationship previous = node.getSingleRelationship(NEXT, INCOMING);
+        return previous == null ? null : previous.getStartNode();
     }
 
     private Resolution currentResolution(Node parent) {
@@ -293,14 +660,17 @@ public class SingleTimeTree implements TimeTree {
 
     /**
      * Get a node representing a specific time instant. If one doesn't exist, it will be created as well as any missing
-     * nodes on the way down from parent (recursively).
+     * nodes on the way down from parent (recursively). Existing nodes are found without taking any locks, only a parent
+     * missing the requested child is locked (see {@link #findOrCreateChild(Transaction, Node, Node, int)}).
      *
+     * @param tx               current transaction.
+     * @param timeRoot         root of the time tree.
      * @param parent           parent node on path to desired instant node.
-     * @param dateTime         time instant.
+     * @param fields           calendar fields of the time instant, see {@link CalendarFields}.
      * @param targetResolution target child resolution. Recursion stops when at this level.
      * @return node representing the time instant at the desired resolution level.
      */
-    private Node getOrCreateInstant(Node parent, DateTime dateTime, Resolution targetResolution) {
+    private Node getOrCreateInstant(Transaction tx, Node timeRoot, Node parent, int[] fields, Resolution targetResolution) {
         Resolution currentResolution = currentResolution(parent);
 
         if (targetResolution.equals(currentResolution)) {
@@ -308,16 +678,26 @@ public class SingleTimeTree implements TimeTree {
         }
 
         Resolution newCurrentResolution = childResolution(parent);
+        int value = fields[newCurrentResolution.ordinal()];
 
-        Node child = findOrCreateChild(parent, dateTime.get(newCurrentResolution.getDateTimeFieldType()));
+        Node child = findChild(parent, value, RETURN_NULL);
+
+        if (child == null) {
+            child = findOrCreateChild(tx, timeRoot, parent, value);
+        }
 
         //recursion
-        return getOrCreateInstant(child, dateTime, targetResolution);
+        return getOrCreateInstant(tx, timeRoot, child, fields, targetResolution);
     }
 
     /**
      * Find a child node with value equal to the given value. If no such child exists, return a value according to the
      * provided {@link ChildNotFoundPolicy}.
+     * <p>
+     * The child is located by binary search in the parent's {@link ChildDirectory}, which is read from the graph the
+     * first time it is needed. Nodes found in the directory are verified against the graph; if the verification fails,
+     * or if the parent's children have been changed by the current transaction, the children are walked in the graph
+     * instead.
      *
      * @param parent              parent of the node to be found.
      * @param value               value of the node to be found.
@@ -325,6 +705,131 @@ public class SingleTimeTree implements TimeTree {
      * @return child node, or a value specified by the given {@link ChildNotFoundPolicy}.
      */
     private Node findChild(Node parent, int value, ChildNotFoundPolicy childNotFoundPolicy) {
+        if (cache.isChanged(parent.getId())) {
+            return findChildInGraph(parent, value, childNotFoundPolicy);
+        }
+
+        ChildDirectory.Children children = getChildren(parent);
+
+        if (children.size() == 0) {
+            return null;
+        }
+
+        int index = children.indexOf(value);
+
+        if (index < 0) {
+            switch (childNotFoundPolicy) {
+                case RETURN_NULL:
+                    return null;
+                case RETURN_NEXT:
+                    index = -index - 1;
+                    break;
+                case RETURN_PREVIOUS:
+                    index = -index - 2;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown child not found policy: " + childNotFoundPolicy);
+            }
+        }
+
+        if (index >= children.size()) {
+            Node lastChild = getVerifiedChild(parent, children, children.size() - 1);
+            if (lastChild != null) {
+                Relationship nextRelationship = lastChild.getSingleRelationship(NEXT, OUTGOING);
+                return nextRelationship == null ? null : nextRelationship.getEndNode();
+            }
+        } else if (index < 0) {
+            Node firstChild = getVerifiedChild(parent, children, 0);
+            if (firstChild != null) {
+                Relationship previousRelationship = firstChild.getSingleRelationship(NEXT, INCOMING);
+                return previousRelationship == null ? null : previousRelationship.getStartNode();
+            }
+        } else {
+            Node child = getVerifiedChild(parent, children, index);
+            if (child != null) {
+                return child;
+            }
+        }
+
+        childDirectory.evict(parent.getId());
+        return findChildInGraph(parent, value, childNotFoundPolicy);
+    }
+
+    /**
+     * Get the children of a parent from the {@link ChildDirectory}. Read them from the graph and cache them if they
+     * aren't cached yet.
+     *
+     * @param parent whose children to get.
+     * @return children.
+     */
+    private ChildDirectory.Children getChildren(Node parent) {
+        ChildDirectory.Children children = childDirectory.get(parent.getId());
+
+        if (children != null) {
+            return children;
+        }
+
+        long generation = childDirectory.generation();
+
+        SortedMap<Integer, Long> sorted = new TreeMap<>();
+        for (Relationship relationship : parent.getRelationships(CHILD, OUTGOING)) {
+            Node child = relationship.getEndNode();
+            sorted.put(getInt(child, VALUE_PROPERTY), child.getId());
+        }
+
+        int[] values = new int[sorted.size()];
+        long[] ids = new long[sorted.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+            values[i] = entry.getKey();
+            ids[i] = entry.getValue();
+            i++;
+        }
+
+        children = new ChildDirectory.Children(values, ids);
+        childDirectory.put(parent.getId(), children, generation);
+
+        return children;
+    }
+
+    /**
+     * Get a child node from the {@link ChildDirectory}, verifying that it still exists, has the expected value, and
+     * belongs to the parent.
+     *
+     * @param parent   of the child.
+     * @param children children of the parent.
+     * @param index    of the child.
+     * @return child node, <code>null</code> if the directory is no longer valid.
+     */
+    private Node getVerifiedChild(Node parent, ChildDirectory.Children children, int index) {
+        try {
+            Node child = database.getNodeById(children.getId(index));
+
+            if (!child.hasProperty(VALUE_PROPERTY) || getInt(child, VALUE_PROPERTY) != children.getValue(index)) {
+                return null;
+            }
+
+            Relationship parentRelationship = child.getSingleRelationship(CHILD, INCOMING);
+            if (parentRelationship == null || parentRelationship.getStartNode().getId() != parent.getId()) {
+                return null;
+            }
+
+            return child;
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find a child node with value equal to the given value by walking the parent's children in the graph. If no such
+     * child exists, return a value according to the provided {@link ChildNotFoundPolicy}.
+     *
+     * @param parent              parent of the node to be found.
+     * @param value               value of the node to be found.
+     * @param childNotFoundPolicy what to do when child isn't found?
+     * @return child node, or a value specified by the given {@link ChildNotFoundPolicy}.
+     */
+    private Node findChildInGraph(Node parent, int value, ChildNotFoundPolicy childNotFoundPolicy) {
         Relationship firstRelationship = parent.getSingleRelationship(FIRST, OUTGOING);
         if (firstRelationship == null) {
             return null;
@@ -378,151 +883,199 @@ public class SingleTimeTree implements TimeTree {
 
     /**
      * Find a child node with value equal to the given value. If no such child exists, create one.
+     * <p>
+     * Two nodes are write-locked: the parent, whose {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST},
+     * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST} and
+     * {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#CHILD} relationships change, and the node
+     * whose {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#NEXT} relationship changes (the
+     * following node if there is no previous one, the time tree root if the level is still empty). They are always
+     * locked in ascending order of their IDs (see {@link #acquireWriteLocks(Transaction, Node...)}), so that two
+     * transactions creating instants never wait for each other's locks in opposite orders. Once locked, the child is
+     * looked up again in the graph, as it could have been created by another transaction in the meantime and the
+     * {@link ChildDirectory} may not know about it yet, and the position of the new child is re-validated. If another
+     * node turns out to precede or follow the child, the locks are released and taken again.
+     * Transactions creating instants in unrelated parts of the tree therefore do not wait for each other.
      *
-     * @param parent parent of the node to be found or created.
-     * @param value  value of the node to be found or created.
+     * @param tx       current transaction.
+     * @param timeRoot root of the time tree.
+     * @param parent   parent of the node to be found or created.
+     * @param value    value of the node to be found or created.
      * @return child node.
      */
-    private Node findOrCreateChild(Node parent, int value) {
-        Relationship firstRelationship = parent.getSingleRelationship(FIRST, OUTGOING);
-        if (firstRelationship == null) {
-            return createFirstChildEver(parent, value);
-        }
+    private Node findOrCreateChild(Transaction tx, Node timeRoot, Node parent, int value) {
+        Node previous = findPrevious(parent, value, false);
+        Node next = findNext(parent, previous);
+
+        while (true) {
+            Node neighbour = previous != null ? previous : next != null ? next : timeRoot;
+            List<Lock> locks = acquireWriteLocks(tx, parent, neighbour);
+
+            //a miss in the directory could be stale, the graph is authoritative once the parent is locked
+            Node existingChild = findChildInGraph(parent, value, RETURN_NULL);
+            if (existingChild != null) {
+                releaseLocks(locks);
+                return existingChild;
+            }
 
-        Node existingChild = firstRelationship.getEndNode();
-        boolean isFirst = true;
-        while (getInt(existingChild, VALUE_PROPERTY) < value && parent(existingChild).getId() == parent.getId()) {
-            isFirst = false;
-            Relationship nextRelationship = existingChild.getSingleRelationship(NEXT, OUTGOING);
+            Node validPrevious = findPrevious(parent, value, true);
+            Node validNext = findNext(parent, validPrevious);
 
-            if (nextRelationship == null || parent(nextRelationship.getEndNode()).getId() != parent.getId()) {
-                return createLastChild(parent, existingChild, nextRelationship == null ? null : nextRelationship.getEndNode(), value);
+            if (sameNode(previous, validPrevious) && sameNode(next, validNext)) {
+                return createChild(parent, previous, next, value);
             }
 
-            existingChild = nextRelationship.getEndNode();
+            releaseLocks(locks);
+            previous = validPrevious;
+            next = validNext;
         }
+    }
 
-        if (getInt(existingChild, VALUE_PROPERTY) == value) {
-            return existingChild;
+    /**
+     * Find a child node with value equal to the given value, which follows a known child of the same parent with a
+     * lower value. If no such child exists, create one right after the known child. Used when creating instants in
+     * chronological order, so that the parent's children never need to be searched. Locks are taken the same way as in
+     * {@link #findOrCreateChild(Transaction, Node, Node, int)}.
+     *
+     * @param tx       current transaction.
+     * @param parent   parent of the node to be found or created.
+     * @param previous child of the parent with a lower value than the node to be found or created.
+     * @param value    value of the node to be found or created.
+     * @return child node.
+     */
+    private Node findOrCreateNextChild(Transaction tx, Node parent, Node previous, int value) {
+        Node next = findNext(parent, previous);
+
+        if (next != null && parent(next).getId() == parent.getId() && getInt(next, VALUE_PROPERTY) == value) {
+            return next;
         }
 
-        Relationship previousRelationship = existingChild.getSingleRelationship(NEXT, INCOMING);
+        acquireWriteLocks(tx, parent, previous);
+
+        next = findNext(parent, previous);
 
-        if (isFirst) {
-            return createFirstChild(parent, previousRelationship == null ? null : previousRelationship.getStartNode(), existingChild, value);
+        if (next == null || parent(next).getId() != parent.getId() || getInt(next, VALUE_PROPERTY) > value) {
+            return createChild(parent, previous, next, value);
         }
 
-        return createChild(parent, previousRelationship.getStartNode(), existingChild, value);
+        if (getInt(next, VALUE_PROPERTY) == value) {
+            return next;
+        }
+
+        //next has a lower value too, the child, if it exists, follows it
+        return findOrCreateNextChild(tx, parent, next, value);
     }
 
     /**
-     * Create the first ever child of a parent.
+     * Write-lock nodes in ascending order of their IDs, which is the one order all locks taken when creating a single
+     * instant follow.
      *
-     * @param parent to create child for.
-     * @param value  value of the node to be created.
-     * @return child node.
+     * @param tx    current transaction.
+     * @param nodes to lock, the same node can be passed more than once.
+     * @return acquired locks.
+     */
+    private List<Lock> acquireWriteLocks(Transaction tx, Node... nodes) {
+        Node[] sorted = nodes.clone();
+        Arrays.sort(sorted, (first, second) -> Long.compare(first.getId(), second.getId()));
+
+        List<Lock> locks = new ArrayList<>(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i].getId() != sorted[i - 1].getId()) {
+                locks.add(tx.acquireWriteLock(sorted[i]));
+            }
+        }
+
+        return locks;
+    }
+
+    /**
+     * Release locks taken by {@link #acquireWriteLocks(Transaction, Node...)}. Locks held by the transaction because
+     * it has written to the nodes are kept until it finishes.
+     *
+     * @param locks to release.
+     */
+    private void releaseLocks(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).release();
+        }
+    }
+
+    /**
+     * Find the node that will precede a child with the given value, which does not exist yet, on the child's level.
+     *
+     * @param parent  of the child.
+     * @param value   of the child.
+     * @param inGraph true to walk the parent's children in the graph rather than use the {@link ChildDirectory}, which
+     *                is what the position of a new child is validated against.
+     * @return previous node, possibly with a different parent, <code>null</code> if the child will be the first one on
+     * its level.
      */
-    private Node createFirstChildEver(Node parent, int value) {
-        if (parent.getSingleRelationship(LAST, OUTGOING) != null) { //sanity check
+    private Node findPrevious(Node parent, int value, boolean inGraph) {
+        if (parent.hasRelationship(FIRST, OUTGOING)) {
+            return inGraph ? findChildInGraph(parent, value, RETURN_PREVIOUS) : findChild(parent, value, RETURN_PREVIOUS);
+        }
+
+        if (parent.hasRelationship(LAST, OUTGOING)) { //sanity check
             LOG.error(parent + " has no " + FIRST + " relationship, but has a " + LAST + " one!");
             throw new IllegalStateException(parent + " has no " + FIRST + " relationship, but has a " + LAST + " one!");
         }
 
-        Node previousChild = null;
         Node previousParent = parent;
-        while (previousChild == null) {
+        while (true) {
             Relationship previousParentRelationship = previousParent.getSingleRelationship(NEXT, INCOMING);
             if (previousParentRelationship == null) {
-                break;
+                return null;
             }
 
             previousParent = previousParentRelationship.getStartNode();
-            Relationship currentParentLastChildRelationship = previousParent.getSingleRelationship(LAST, OUTGOING);
-            if (currentParentLastChildRelationship != null) {
-                previousChild = currentParentLastChildRelationship.getEndNode();
+            Relationship previousParentLastChildRelationship = previousParent.getSingleRelationship(LAST, OUTGOING);
+            if (previousParentLastChildRelationship != null) {
+                return previousParentLastChildRelationship.getEndNode();
             }
         }
-
-        Node nextChild = null;
-        Node nextParent = parent;
-        while (nextChild == null) {
-            Relationship nextParentRelationship = nextParent.getSingleRelationship(NEXT, OUTGOING);
-            if (nextParentRelationship == null) {
-                break;
-            }
-
-            nextParent = nextParentRelationship.getEndNode();
-            Relationship nextParentFirstChildRelationship = nextParent.getSingleRelationship(FIRST, OUTGOING);
-            if (nextParentFirstChildRelationship != null) {
-                nextChild = nextParentFirstChildRelationship.getEndNode();
-            }
-        }
-
-        Node child = createChild(parent, previousChild, nextChild, value);
-
-        parent.createRelationshipTo(child, FIRST);
-        parent.createRelationshipTo(child, LAST);
-
-        return child;
     }
 
     /**
-     * Create the first child node that belongs to a specific parent. "First" is with respect to ordering, not the
-     * number of nodes. In other words, the node being created is not the first parent's child, but it is the child with
-     * the lowest ordering.
+     * Find the node that will follow a child, which does not exist yet, on the child's level.
      *
-     * @param parent        to create child for.
-     * @param previousChild previous child (has different parent), or null for no such child.
-     * @param nextChild     next child (has same parent).
-     * @param value         value of the node to be created.
-     * @return child node.
+     * @param parent   of the child.
+     * @param previous node that will precede the child, <code>null</code> if the child will be the first one on its level.
+     * @return next node, possibly with a different parent, <code>null</code> if the child will be the last one on its
+     * level.
      */
-    private Node createFirstChild(Node parent, Node previousChild, Node nextChild, int value) {
-        Relationship firstRelationship = parent.getSingleRelationship(FIRST, OUTGOING);
-
-        if (nextChild.getId() != firstRelationship.getEndNode().getId()) { //sanity check
-            LOG.error(nextChild + " seems to be the first child of node " + parent + ", but there is no " + FIRST + " relationship between the two!");
-            throw new IllegalStateException(nextChild + " seems to be the first child of node " + parent + ", but there is no " + FIRST + " relationship between the two!");
+    private Node findNext(Node parent, Node previous) {
+        if (previous != null) {
+            Relationship nextRelationship = previous.getSingleRelationship(NEXT, OUTGOING);
+            return nextRelationship == null ? null : nextRelationship.getEndNode();
         }
 
-        firstRelationship.delete();
-
-        Node child = createChild(parent, previousChild, nextChild, value);
+        Node nextParent = parent;
+        while (true) {
+            Relationship nextParentFirstChildRelationship = nextParent.getSingleRelationship(FIRST, OUTGOING);
+            if (nextParentFirstChildRelationship != null) {
+                return nextParentFirstChildRelationship.getEndNode();
+            }
 
-        parent.createRelationshipTo(child, FIRST);
+            Relationship nextParentRelationship = nextParent.getSingleRelationship(NEXT, OUTGOING);
+            if (nextParentRelationship == null) {
+                return null;
+            }
 
-        return child;
+            nextParent = nextParentRelationship.getEndNode();
+        }
     }
 
-    /**
-     * Create the last child node that belongs to a specific parent.
-     *
-     * @param parent        to create child for.
-     * @param previousChild previous child (has same parent).
-     * @param nextChild     next child (has different parent), or null for no such child.
-     * @param value         value of the node to be created.
-     * @return child node.
-     */
-    private Node createLastChild(Node parent, Node previousChild, Node nextChild, int value) {
-        Relationship lastRelationship = parent.getSingleRelationship(LAST, OUTGOING);
-
-        Node endNode = lastRelationship.getEndNode();
-        if (previousChild.getId() != endNode.getId()) { //sanity check
-            LOG.error(previousChild + " seems to be the last child of node " + parent + ", but there is no " + LAST + " relationship between the two!");
-            throw new IllegalStateException(previousChild + " seems to be the last child of node " + parent + ", but there is no " + LAST + " relationship between the two!");
+    private boolean sameNode(Node node1, Node node2) {
+        if (node1 == null || node2 == null) {
+            return node1 == node2;
         }
 
-        lastRelationship.delete();
-
-        Node child = createChild(parent, previousChild, nextChild, value);
-
-        parent.createRelationshipTo(child, LAST);
-
-        return child;
+        return node1.getId() == node2.getId();
     }
 
     /**
-     * Create a child node.
+     * Create a child node, including its {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#FIRST}
+     * and {@link com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes#LAST} relationships from the parent,
+     * if it becomes the parent's first or last child with respect to ordering.
      *
      * @param parent   parent node.
      * @param previous previous node on the same level, null if the child is the first one.
@@ -539,6 +1092,8 @@ public class SingleTimeTree implements TimeTree {
         Node child = database.createNode(TimeTreeLabels.getChild(parent));
         child.setProperty(VALUE_PROPERTY, value);
         parent.createRelationshipTo(child, CHILD);
+        cache.markUncommitted(child);
+        cache.markChanged(parent);
 
         if (previous != null) {
             Relationship nextRelationship = previous.getSingleRelationship(NEXT, OUTGOING);
@@ -552,6 +1107,22 @@ public class SingleTimeTree implements TimeTree {
             child.createRelationshipTo(next, NEXT);
         }
 
+        if (previous == null || parent(previous).getId() != parent.getId()) {
+            Relationship firstRelationship = parent.getSingleRelationship(FIRST, OUTGOING);
+            if (firstRelationship != null) {
+                firstRelationship.delete();
+            }
+            parent.createRelationshipTo(child, FIRST);
+        }
+
+        if (next == null || parent(next).getId() != parent.getId()) {
+            Relationship lastRelationship = parent.getSingleRelationship(LAST, OUTGOING);
+            if (lastRelationship != null) {
+                lastRelationship.delete();
+            }
+            parent.createRelationshipTo(child, LAST);
+        }
+
         return child;
     }
 
@@ -560,16 +1131,20 @@ public class SingleTimeTree implements TimeTree {
      */
     @Override
     public void removeAll() {
-        removeChildren(getTimeRoot());
+        Node timeRoot = getTimeRoot();
+        instantCache.evictRoot(timeRoot.getId());
+        rootId = NO_ROOT;
+        removeChildren(timeRoot);
     }
 
     private void removeChildren(Node root) {
         for (Relationship relationship : root.getRelationships(OUTGOING)) {
             relationship.delete();
-            if (relationship.isType(CHILD)) {
+            if (relationship.isType(CHILD) || relationship.isType(BUCKET)) {
                 removeChildren(relationship.getEndNode());
             }
         }
+        cache.markDeleted(root);
         root.delete();
     }
 
@@ -583,6 +1158,8 @@ public class SingleTimeTree implements TimeTree {
             return;
         }
 
+        cache.markDeleted(instantNode);
+
         Relationship first = instantNode.getSingleRelationship(FIRST, INCOMING);
         Relationship last = instantNode.getSingleRelationship(LAST, INCOMING);
 
@@ -623,9 +1200,11 @@ public class SingleTimeTree implements TimeTree {
 
         if (instantNode.hasRelationship(CHILD, INCOMING)) {
             Relationship toParent = instantNode.getSingleRelationship(CHILD, INCOMING);
+            cache.markChanged(toParent.getStartNode());
             toParent.delete();
             removeInstant(toParent.getStartNode());
         }
+        instantCache.evictNode(instantNode.getId());
         instantNode.delete();
     }
 
@@ -648,6 +1227,13 @@ public class SingleTimeTree implements TimeTree {
     }
 
     private boolean isRoot(Node node) {
-        return node.getId() == getTimeRoot().getId();
+        long timeRootId = rootId;
+
+        if (timeRootId == NO_ROOT) {
+            Node timeRoot = findTimeRoot();
+            return timeRoot != null && node.getId() == timeRoot.getId();
+        }
+
+        return node.getId() == timeRootId;
     }
 }
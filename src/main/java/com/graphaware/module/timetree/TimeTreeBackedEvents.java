@@ -16,18 +16,30 @@
 
 package com.graphaware.module.timetree;
 
+import com.graphaware.common.log.LoggerFactory;
 import com.graphaware.common.util.DirectionUtils;
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventPage;
+import com.graphaware.module.timetree.domain.EventToAttach;
+import com.graphaware.module.timetree.domain.Resolution;
 import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTimeZone;
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.logging.Log;
 
 import java.util.*;
+import java.util.function.Supplier;
 
-import static com.graphaware.module.timetree.SingleTimeTree.parent;
-import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.*;
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.NEXT;
 import static com.graphaware.module.timetree.domain.ValidationUtils.validateRange;
 import static org.neo4j.graphdb.Direction.INCOMING;
 import static org.neo4j.graphdb.Direction.OUTGOING;
@@ -37,12 +49,46 @@ import static org.neo4j.graphdb.Direction.OUTGOING;
  */
 public class TimeTreeBackedEvents implements TimedEvents {
 
-    private final TimeTree timeTree;
+    private static final Log LOG = LoggerFactory.getLogger(TimeTreeBackedEvents.class);
+
+    private static final int MAX_ATTEMPTS = 3;
 
-    private static final List<String> timeTreeRelationships = getTimeTreeRelationshipNames();
+    private final TimeTree timeTree;
+    private final Supplier<EventSettings> settings;
 
     public TimeTreeBackedEvents(TimeTree timeTree) {
+        this(timeTree, EventSettings.DEFAULT);
+    }
+
+    /**
+     * Create events backed by a time tree.
+     *
+     * @param timeTree to attach events to.
+     * @param settings of what is maintained when events are attached and how events are read.
+     */
+    public TimeTreeBackedEvents(TimeTree timeTree, EventSettings settings) {
         this.timeTree = timeTree;
+        this.settings = () -> settings;
+    }
+
+    /**
+     * Create events backed by a time tree, whose settings are read from a registry on every call, so that they follow
+     * the settings published by the {@link com.graphaware.module.timetree.module.TimeTreeModule} whenever it starts,
+     * stops, or is reconfigured.
+     *
+     * @param timeTree to attach events to.
+     * @param registry to read the settings from.
+     */
+    public TimeTreeBackedEvents(TimeTree timeTree, TimeTreeRegistry registry) {
+        this.timeTree = timeTree;
+        this.settings = registry::getEventSettings;
+    }
+
+    /**
+     * @return current settings of these events.
+     */
+    public EventSettings getSettings() {
+        return settings.get();
     }
 
     /**
@@ -62,25 +108,343 @@ public class TimeTreeBackedEvents implements TimedEvents {
             throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
         }
 
-        Node instant = timeTree.getOrCreateInstant(timeInstant);
+        return attach(event, relationshipType, direction, timeTree.getOrCreateInstant(timeInstant), timeInstant.getTime());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Boolean> attachEvents(Collection<EventToAttach> events) {
+        BulkAttachment attachment = new BulkAttachment(events);
+        attachment.attach(0, attachment.size());
+        return attachment.getResult();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Boolean> attachEvents(Collection<EventToAttach> events, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        BulkAttachment attachment = new BulkAttachment(events);
+
+        if (attachment.size() == 0) {
+            return attachment.getResult();
+        }
 
-        for (Relationship existing : event.getRelationships(DirectionUtils.reverse(direction), relationshipType)) {
-            if (existing.getEndNode().getId() == instant.getId()) {
-                return false;
+        GraphDatabaseService database = events.iterator().next().getNode().getGraphDatabase();
+
+        for (int from = 0; from < attachment.size(); from += batchSize) {
+            attachBatch(database, attachment, from, Math.min(from + batchSize, attachment.size()));
+        }
+
+        return attachment.getResult();
+    }
+
+    /**
+     * Attach a batch of events in its own transaction. A batch creating several instants can deadlock with another
+     * transaction doing the same in a different order; it is rolled back and retried up to {@link #MAX_ATTEMPTS} times.
+     */
+    private void attachBatch(GraphDatabaseService database, BulkAttachment attachment, int from, int to) {
+        for (int attempt = 1; ; attempt++) {
+            try (Transaction tx = database.beginTx()) {
+                attachment.attach(from, to);
+                tx.success();
+                return;
+            } catch (DeadlockDetectedException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.warn("Deadlock detected when attaching events, retrying (attempt " + attempt + ")");
             }
         }
+    }
+
+    private boolean attach(Node event, RelationshipType relationshipType, Direction direction, Node instant, long time) {
+        EventSettings settings = getSettings();
+
+        if (isAttached(event, relationshipType, direction, instant)) {
+            return false;
+        }
+
+        Node bucket = EventBuckets.bucketOf(instant, event);
+        if (bucket != null && isAttached(event, relationshipType, direction, bucket)) {
+            return false;
+        }
+
+        EventBuckets buckets = settings.getEventBuckets();
+        Node target = buckets == null ? instant : buckets.target(instant, event);
 
+        Relationship relationship;
         if (INCOMING.equals(direction)) {
-            event.createRelationshipTo(instant, relationshipType);
-            return true;
+            relationship = event.createRelationshipTo(target, relationshipType);
+        } else {
+            relationship = target.createRelationshipTo(event, relationshipType);
+        }
+
+        if (settings.isOrderingEvents()) {
+            EventOrder.add(target, relationship, time);
+        }
+
+        if (settings.isCountingEvents()) {
+            EventCounts.increment(target, relationshipType, direction);
+        }
+
+        EventAggregator aggregator = settings.getEventAggregator();
+        if (aggregator != null) {
+            aggregator.attached(target, event, relationshipType, direction);
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int detachEvent(Node event, RelationshipType relationshipType, Direction direction) {
+        if (!INCOMING.equals(direction) && !OUTGOING.equals(direction)) {
+            throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
+        }
+
+        int detached = 0;
+        for (Relationship relationship : event.getRelationships(DirectionUtils.reverse(direction), relationshipType)) {
+            detach(relationship, event, relationshipType, direction);
+            detached++;
+        }
+
+        return detached;
+    }
+
+    /**
+     * Bring the event counts and aggregates maintained on a node, to which events are attached, in line with the events
+     * attached to it now. Needed when relationships attaching events have been deleted other than through
+     * {@link #detachEvent(Node, RelationshipType, Direction)}, e.g. by deleting the events. Reconciling a node that
+     * is already up to date changes nothing.
+     *
+     * @param node             events are attached to; nothing happens if it isn't a time instant or one of its buckets.
+     * @param relationshipType of the relationships attaching the events.
+     * @param direction        of the relationships attaching the events from the instant's point of view.
+     */
+    public void reconcile(Node node, RelationshipType relationshipType, Direction direction) {
+        EventSettings settings = getSettings();
+
+        if (InstantRanges.resolutionOf(EventBuckets.instantOf(node)) == null) {
+            return;
+        }
+
+        if (settings.isCountingEvents()) {
+            EventCounts.recount(node, relationshipType, direction);
+        }
+
+        EventAggregator aggregator = settings.getEventAggregator();
+        if (aggregator != null) {
+            aggregator.recompute(node, relationshipType, direction);
+        }
+    }
+
+    /**
+     * Bring the event counts and aggregates maintained on a node, to which events are attached, in line with the events
+     * attached to it now, after the given relationships have been deleted in the current transaction, e.g. by deleting
+     * the events. Unlike {@link #reconcile(Node, RelationshipType, Direction)}, it takes the values of the deleted events
+     * out of the aggregate rather than visiting the events still attached, unless some of the relationships have been
+     * deleted by {@link #detachEvent(Node, RelationshipType, Direction)} and others not. Reconciling a node that is
+     * already up to date changes nothing.
+     *
+     * @param node             events were attached to; nothing happens if it isn't a time instant or one of its buckets.
+     * @param deleted          relationships of the node deleted in the current transaction, whose event nodes still hold
+     *                         the properties they had before the transaction (see
+     *                         {@link com.graphaware.tx.event.improved.api.ImprovedTransactionData#getAllDeletedRelationships()}).
+     * @param relationshipType of the relationships attaching the events.
+     * @param direction        of the relationships attaching the events from the instant's point of view.
+     */
+    public void reconcile(Node node, Collection<Relationship> deleted, RelationshipType relationshipType, Direction direction) {
+        EventSettings settings = getSettings();
+
+        if (InstantRanges.resolutionOf(EventBuckets.instantOf(node)) == null) {
+            return;
+        }
+
+        if (settings.isCountingEvents()) {
+            EventCounts.recount(node, relationshipType, direction);
         }
 
-        if (OUTGOING.equals(direction)) {
-            instant.createRelationshipTo(event, relationshipType);
-            return true;
+        EventAggregator aggregator = settings.getEventAggregator();
+        if (aggregator != null) {
+            aggregator.reconcile(node, deleted, relationshipType, direction);
+        }
+    }
+
+    /**
+     * Apply the changes of event counts and aggregates held by coarse time instants, which attaching and detaching events
+     * in the current transaction has deferred until the end of the transaction. It is done automatically before the
+     * transaction commits, unless the events are attached by a transaction event handler, which must then call this
+     * method once it is done.
+     *
+     * @param database the transaction runs against.
+     */
+    public void applyRollUps(GraphDatabaseService database) {
+        RollUps.apply(database);
+    }
+
+    /**
+     * Take deleted relationships out of the chronological order of events kept on the nodes they have attached events
+     * to. Needed when relationships attaching events have been deleted other than through
+     * {@link #detachEvent(Node, RelationshipType, Direction)}, e.g. by deleting the events, so that the order doesn't
+     * have to be rebuilt. Relationships that have been detached through this class, or that have never been part of
+     * the order, are left alone. Does nothing unless events are being ordered.
+     *
+     * @param database      the relationships have been deleted from.
+     * @param relationships deleted in the current transaction, with the properties they had before they were deleted.
+     */
+    public void relationshipsDeleted(GraphDatabaseService database, Iterable<Relationship> relationships) {
+        if (getSettings().isOrderingEvents()) {
+            EventOrder.unlinkDeleted(database, relationships);
+        }
+    }
+
+    /**
+     * Find events attached directly to a time instant (via a relationship of the specified type and direction), which
+     * can be moved to the instant's children at the next finer resolution by
+     * {@link #moveEventsToChildren(TimeInstant, List, RelationshipType, Direction, String)}. Events without a
+     * <code>long</code> timestamp within the instant can't be placed in a child and are left out, so that they are read
+     * only once, however many batches the events are moved in.
+     *
+     * @param timeInstant       whose events to find. Must not be of the finest resolution.
+     * @param relationshipType  of the relationships attaching the events.
+     * @param direction         of the relationships attaching the events from the instant's point of view.
+     * @param timestampProperty of the event nodes holding the time of the events.
+     * @return IDs of the relationships attaching the events that can be moved, empty if there are none.
+     */
+    public List<Long> findEventsToMove(TimeInstant timeInstant, RelationshipType relationshipType, Direction direction, String timestampProperty) {
+        if (!INCOMING.equals(direction) && !OUTGOING.equals(direction)) {
+            throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
+        }
+
+        Node instant = timeTree.getInstant(timeInstant);
+
+        if (instant == null) {
+            return Collections.emptyList();
+        }
+
+        List<Long> result = new ArrayList<>();
+
+        Iterator<Relationship> relationships = EventIterator.expand(instant, direction, new RelationshipType[]{relationshipType});
+        while (relationships.hasNext()) {
+            Relationship relationship = relationships.next();
+            if (childOf(relationship, instant, timeInstant, direction, timestampProperty) != null) {
+                result.add(relationship.getId());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Move events found by {@link #findEventsToMove(TimeInstant, RelationshipType, Direction, String)} to the
+     * instant's children at the next finer resolution, determined by a timestamp property of the events. The children
+     * are created as needed. Events that have been detached or whose timestamp has changed since they were found are
+     * skipped.
+     * <p>
+     * Events returned by range queries stay the same, since a range includes the children of its instants. Counts and
+     * aggregates are maintained like when detaching and attaching the events.
+     *
+     * @param timeInstant       whose events to move. Must not be of the finest resolution.
+     * @param relationshipIds   IDs of the relationships attaching the events to move.
+     * @param relationshipType  of the relationships attaching the events.
+     * @param direction         of the relationships attaching the events from the instant's point of view.
+     * @param timestampProperty of the event nodes holding the time of the events.
+     * @return number of events moved.
+     */
+    public int moveEventsToChildren(TimeInstant timeInstant, List<Long> relationshipIds, RelationshipType relationshipType, Direction direction, String timestampProperty) {
+        if (!INCOMING.equals(direction) && !OUTGOING.equals(direction)) {
+            throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
+        }
+
+        Node instant = timeTree.getInstant(timeInstant);
+
+        if (instant == null) {
+            return 0;
+        }
+
+        GraphDatabaseService database = instant.getGraphDatabase();
+
+        int moved = 0;
+        for (long relationshipId : relationshipIds) {
+            Relationship relationship;
+            try {
+                relationship = database.getRelationshipById(relationshipId);
+            } catch (NotFoundException e) {
+                continue;
+            }
+
+            if (!relationship.isType(relationshipType)) {
+                continue;
+            }
+
+            TimeInstant child = childOf(relationship, instant, timeInstant, direction, timestampProperty);
+            if (child == null) {
+                continue;
+            }
+
+            Node event = EventIterator.toEvent(relationship, instant).getNode();
+            detach(relationship, event, relationshipType, direction);
+            attach(event, relationshipType, direction, timeTree.getOrCreateInstant(child), child.getTime());
+            moved++;
+        }
+
+        return moved;
+    }
+
+    /**
+     * Determine the child of an instant an event should be moved to.
+     *
+     * @return child at the next finer resolution, <code>null</code> if the relationship doesn't attach an event to the
+     * instant (or one of its buckets) in the given direction, or the event has no <code>long</code> timestamp within
+     * the instant.
+     */
+    private TimeInstant childOf(Relationship relationship, Node instant, TimeInstant timeInstant, Direction direction, String timestampProperty) {
+        Event event = EventIterator.toEvent(relationship, instant);
+
+        if (event == null || !direction.equals(event.getDirection())) {
+            return null;
+        }
+
+        Node target = relationship.getOtherNode(event.getNode());
+        if (EventBuckets.instantOf(target).getId() != instant.getId()) {
+            return null;
+        }
+
+        Object timestamp = event.getNode().getProperty(timestampProperty, null);
+        Resolution resolution = timeInstant.getResolution();
+        DateTimeZone timezone = timeInstant.getTimezone();
+
+        if (!(timestamp instanceof Long) || resolution.truncate((Long) timestamp, timezone) != resolution.truncate(timeInstant.getTime(), timezone)) {
+            return null;
+        }
+
+        return TimeInstant.instant((Long) timestamp).with(resolution.getChild()).with(timezone);
+    }
+
+    private void detach(Relationship relationship, Node event, RelationshipType relationshipType, Direction direction) {
+        EventSettings settings = getSettings();
+
+        Node target = relationship.getOtherNode(event);
+        EventOrder.remove(target, relationship);
+        relationship.delete();
+
+        if (settings.isCountingEvents()) {
+            EventCounts.decrement(target, relationshipType, direction);
         }
 
-        throw new IllegalStateException("This must never happen - it is a bug");
+        EventAggregator aggregator = settings.getEventAggregator();
+        if (aggregator != null) {
+            aggregator.detached(target, event, relationshipType, direction);
+        }
     }
 
     /**
@@ -134,7 +498,7 @@ public class TimeTreeBackedEvents implements TimedEvents {
             return Collections.emptyList();
         }
 
-        return getEventsAttachedToNodeAndChildren(instantNode, types, direction);
+        return toList(new EventIterator(instantNode, instantNode, types, direction, null));
     }
 
     /**
@@ -152,88 +516,427 @@ public class TimeTreeBackedEvents implements TimedEvents {
     public List<Event> getEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction) {
         validateRange(startTime, endTime);
 
-        List<Event> events = new LinkedList<>();
+        return collectEvents(startTime, endTime, types, direction);
+    }
 
-        Node startTimeNode = timeTree.getInstantAtOrAfter(startTime);
-        Node endTimeNode = timeTree.getInstantAtOrBefore(endTime);
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The range is read in parallel if a {@link ParallelEventCollector} has been configured, sequentially otherwise.
+     */
+    @Override
+    public List<Event> getCommittedEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction) {
+        EventSettings settings = getSettings();
+
+        validateRange(startTime, endTime);
+
+        ParallelEventCollector collector = settings.getParallelEventCollector();
+
+        //the periods resolve their own end instants, the tree only needs to tell the collector where it lives
+        if (collector != null && timeTree instanceof SingleTimeTree) {
+            return collector.getEvents(this, ((SingleTimeTree) timeTree).getDatabase(), startTime, endTime, types, direction);
+        }
+
+        return collectEvents(startTime, endTime, types, direction);
+    }
+
+    /**
+     * Collect events attached to a range of time instants sequentially, in the caller's transaction.
+     *
+     * @param startTime start of the range.
+     * @param endTime   end of the range.
+     * @param types     of the relationships attaching the events, <code>null</code> for all.
+     * @param direction of the relationships attaching the events from the instants' point of view.
+     * @return events in chronological order.
+     */
+    List<Event> collectEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction) {
+        return toList(iterateEvents(startTime, endTime, types, direction, null, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResourceIterator<Event> iterateEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction) {
+        return iterateEvents(startTime, endTime, types, direction, null, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResumableEventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction, String cursor) {
+        return iterateEvents(startTime, endTime, types, direction, cursor, true);
+    }
 
-        if (startTimeNode == null || endTimeNode == null) {
-            return events;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EventPage getEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction, int limit, String cursor) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
         }
 
-        events.addAll(getEventsAttachedToNodeAndChildren(startTimeNode, types, direction));
+        return getPage(iterateEvents(startTime, endTime, types, direction, cursor, false), limit);
+    }
+
+    private EventPage getPage(EventIterator eventIterator, int limit) {
+        List<Event> events = new ArrayList<>();
+
+        try (EventIterator iterator = eventIterator) {
+            while (events.size() < limit && iterator.hasNext()) {
+                events.add(iterator.next());
+            }
 
-        if (startTimeNode.getId() == endTimeNode.getId()) {
-            return events;
+            return new EventPage(events, iterator.hasNext() ? iterator.getCursor() : null);
         }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Event> getEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> types, Direction direction) {
+        validateTimestampProperty(timestampProperty);
+
+        return toList(iterateEvents(startTime, endTime, timestampProperty, types, direction, null, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResumableEventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> types, Direction direction, String cursor) {
+        validateTimestampProperty(timestampProperty);
 
-        Relationship next = startTimeNode.getSingleRelationship(NEXT, OUTGOING);
-        while (next != null && !(next.getEndNode().equals(endTimeNode))) {
-            Node timeInstant = next.getEndNode();
-            events.addAll(getEventsAttachedToNodeAndChildren(timeInstant, types, direction));
-            next = timeInstant.getSingleRelationship(NEXT, OUTGOING);
+        return iterateEvents(startTime, endTime, timestampProperty, types, direction, cursor, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EventPage getEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> types, Direction direction, int limit, String cursor) {
+        validateTimestampProperty(timestampProperty);
+
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
         }
-        events.addAll(getEventsAttachedToNodeAndChildren(endTimeNode, types, direction));
 
-        return events;
+        return getPage(iterateEvents(startTime, endTime, timestampProperty, types, direction, cursor, false), limit);
     }
 
-    private List<Event> getEventsAttachedToNodeAndChildren(Node parent, Set<RelationshipType> types, Direction direction) {
-        List<Event> result = new ArrayList<>();
+    private void validateTimestampProperty(String timestampProperty) {
+        if (timestampProperty == null || timestampProperty.isEmpty()) {
+            throw new IllegalArgumentException("Timestamp property must be specified");
+        }
+    }
 
-        Relationship firstRelationship = parent.getSingleRelationship(FIRST, OUTGOING);
-        if (firstRelationship == null) {
-            return getEventsAttachedToNode(parent, types, direction);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Event> getLatestEvents(TimeInstant timeInstant, Set<RelationshipType> types, Direction direction, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
         }
 
-        Node child = null;
+        Node latest = timeTree.getInstantAtOrBefore(timeInstant);
 
-        while (true) {
-            if (child == null) {
-                child = firstRelationship.getEndNode();
-            } else {
-                Relationship nextRelationship = child.getSingleRelationship(NEXT, OUTGOING);
+        List<Event> events = new ArrayList<>();
 
-                if (nextRelationship == null || parent(nextRelationship.getEndNode()).getId() != parent.getId()) {
-                    break;
-                }
+        Iterator<Event> iterator = new LatestEventIterator(latest, types, direction);
+        while (events.size() < limit && iterator.hasNext()) {
+            events.add(iterator.next());
+        }
+
+        return events;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long countEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes) {
+        return countEvents(startTime, endTime, relationshipTypes, INCOMING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long countEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction) {
+        EventSettings settings = getSettings();
+
+        validateRange(startTime, endTime);
+
+        Node endTimeNode = timeTree.getInstantAtOrBefore(endTime);
+        Node startTimeNode = timeTree.getInstantAtOrAfter(startTime);
 
-                child = nextRelationship.getEndNode();
+        if (endTimeNode == null || startTimeNode == null || isNext(endTimeNode, startTimeNode)) {
+            return 0;
+        }
+
+        if (settings.isCountingEvents()) {
+            return EventCounts.count(startTimeNode, endTimeNode, toNames(types), direction);
+        }
+
+        long count = 0;
+        try (EventIterator iterator = new EventIterator(startTimeNode, endTimeNode, types, direction, null)) {
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
             }
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Aggregate aggregateEvents(TimeInstant startTime, TimeInstant endTime, String property, Set<RelationshipType> types, Direction direction) {
+        EventSettings settings = getSettings();
+
+        validateRange(startTime, endTime);
+
+        if (property == null || property.isEmpty()) {
+            throw new IllegalArgumentException("Property to aggregate must be specified");
+        }
 
-            result.addAll(getEventsAttachedToNodeAndChildren(child, types, direction));
+        Node endTimeNode = timeTree.getInstantAtOrBefore(endTime);
+        Node startTimeNode = timeTree.getInstantAtOrAfter(startTime);
+
+        if (endTimeNode == null || startTimeNode == null || isNext(endTimeNode, startTimeNode)) {
+            return new Aggregate(0, 0, 0, 0);
         }
 
-        result.addAll(getEventsAttachedToNode(parent, types, direction));
+        EventAggregator aggregator = settings.getEventAggregator();
+        if (aggregator != null && aggregator.getProperty().equals(property)) {
+            return aggregator.aggregate(startTimeNode, endTimeNode, toNames(types), direction);
+        }
 
-        return result;
+        try (EventIterator iterator = new EventIterator(startTimeNode, endTimeNode, types, direction, null)) {
+            return EventAggregator.aggregate(iterator, property);
+        }
     }
 
-    private List<Event> getEventsAttachedToNode(Node node, Set<RelationshipType> types, Direction direction) {
-        List<Event> result = new LinkedList<>();
+    private EventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> types, Direction direction, String cursor, boolean ownTransaction) {
+        return iterateEvents(startTime, endTime, null, types, direction, cursor, ownTransaction);
+    }
+
+    private EventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> types, Direction direction, String cursor, boolean ownTransaction) {
+        validateRange(startTime, endTime);
+
+        Node endTimeNode = timeTree.getInstantAtOrBefore(endTime);
 
-        for (Relationship rel : node.getRelationships(direction)) {
-            if (!timeTreeRelationships.contains(rel.getType().name())) {
-                if (types == null || contains(types, rel.getType())) {
-                    result.add(new Event(rel.getOtherNode(node), rel.getType(), DirectionUtils.resolveDirection(rel, node)));
+        if (endTimeNode == null) {
+            return EventIterator.empty();
+        }
+
+        GraphDatabaseService database = endTimeNode.getGraphDatabase();
+
+        EventIterator.Bounds bounds = null;
+        if (timestampProperty != null) {
+            bounds = new EventIterator.Bounds(startTime, endTime, timestampProperty, timeTree.getInstant(startTime), timeTree.getInstant(endTime));
+        }
+
+        if (cursor != null) {
+            Transaction tx = ownTransaction ? database.beginTx() : null;
+            try {
+                return new EventIterator(cursor, database, startTime, endTime, endTimeNode, types, direction, bounds, tx);
+            } catch (RuntimeException e) {
+                //nothing has been written, don't fail the caller's transaction
+                if (tx != null) {
+                    tx.success();
+                    tx.close();
                 }
+                throw e;
             }
         }
 
-        return result;
+        Node startTimeNode = timeTree.getInstantAtOrAfter(startTime);
+
+        if (startTimeNode == null) {
+            return EventIterator.empty();
+        }
+
+        Transaction tx = ownTransaction ? database.beginTx() : null;
+
+        if (isNext(endTimeNode, startTimeNode)) {
+            if (tx != null) {
+                tx.success();
+                tx.close();
+            }
+            return EventIterator.empty();
+        }
+
+        return new EventIterator(startTimeNode, endTimeNode, types, direction, bounds, tx);
     }
 
-    private boolean contains(Set<RelationshipType> types, RelationshipType toCheck) {
-        if (types == null || toCheck == null) {
-            throw new IllegalArgumentException("Relationship types must not be null, this is a bug");
+    /**
+     * Is the event already attached to the instant? Relationships are only iterated on the side with fewer of them, so that
+     * neither a hot instant nor an event attached to many instants makes the check expensive. Degrees are cheap to obtain,
+     * since dense nodes keep counts per relationship type and direction.
+     */
+    private boolean isAttached(Node event, RelationshipType relationshipType, Direction direction, Node instant) {
+        Direction fromEvent = DirectionUtils.reverse(direction);
+
+        Node from = event;
+        Node to = instant;
+        Direction fromDirection = fromEvent;
+
+        if (instant.getDegree(relationshipType, direction) < event.getDegree(relationshipType, fromEvent)) {
+            from = instant;
+            to = event;
+            fromDirection = direction;
         }
 
-        for (RelationshipType type : types) {
-            if (toCheck.name().equals(type.name())) {
+        for (Relationship existing : from.getRelationships(fromDirection, relationshipType)) {
+            if (existing.getOtherNode(from).getId() == to.getId()) {
                 return true;
             }
         }
 
         return false;
     }
+
+    /**
+     * Is the second node next to the first one? If so, there are no instants between the start and the end of a range.
+     */
+    private boolean isNext(Node first, Node second) {
+        Relationship next = first.getSingleRelationship(NEXT, OUTGOING);
+        return next != null && next.getEndNode().getId() == second.getId();
+    }
+
+    private Set<String> toNames(Set<RelationshipType> types) {
+        if (types == null) {
+            return null;
+        }
+
+        Set<String> result = new HashSet<>();
+        for (RelationshipType type : types) {
+            result.add(type.name());
+        }
+        return result;
+    }
+
+    /**
+     * Events being attached in bulk, ordered chronologically, so that events sharing a time instant are adjacent and the
+     * instant only has to be looked up once for all of them.
+     */
+    private final class BulkAttachment {
+
+        private final List<EventToAttach> events;
+        private final long[] times;
+        private final Integer[] order;
+        private final Boolean[] result;
+
+        private BulkAttachment(Collection<EventToAttach> events) {
+            this.events = new ArrayList<>(events);
+            this.times = new long[this.events.size()];
+            this.order = new Integer[this.events.size()];
+            this.result = new Boolean[this.events.size()];
+
+            for (int i = 0; i < this.events.size(); i++) {
+                EventToAttach event = this.events.get(i);
+                if (event == null) {
+                    throw new IllegalArgumentException("Events to attach must not be null");
+                }
+                TimeInstant timeInstant = event.getTimeInstant();
+                times[i] = timeInstant.getResolution().truncate(timeInstant.getTime(), timeInstant.getTimezone());
+                order[i] = i;
+            }
+
+            Arrays.sort(order, (first, second) -> {
+                int compared = Long.compare(times[first], times[second]);
+                if (compared == 0) {
+                    compared = getResolution(first).compareTo(getResolution(second));
+                }
+                if (compared == 0) {
+                    compared = getTimezone(first).getID().compareTo(getTimezone(second).getID());
+                }
+                return compared;
+            });
+        }
+
+        private int size() {
+            return events.size();
+        }
+
+        /**
+         * Attach events between two positions in chronological order. The distinct instants of the events are looked up
+         * (or created) in a single walk down the tree before any event is attached.
+         *
+         * @param from position of the first event to attach, inclusive.
+         * @param to   position of the last event to attach, exclusive.
+         */
+        private void attach(int from, int to) {
+            List<TimeInstant> instants = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                if (i == from || !sameInstant(order[i - 1], order[i])) {
+                    instants.add(events.get(order[i]).getTimeInstant());
+                }
+            }
+
+            List<Node> instantNodes = getOrCreateInstants(instants);
+
+            int instant = -1;
+            for (int i = from; i < to; i++) {
+                int index = order[i];
+                EventToAttach event = events.get(index);
+
+                if (i == from || !sameInstant(order[i - 1], index)) {
+                    instant++;
+                }
+
+                result[index] = TimeTreeBackedEvents.this.attach(event.getNode(), event.getRelationshipType(), event.getDirection(), instantNodes.get(instant), event.getTimeInstant().getTime());
+            }
+        }
+
+        private List<Boolean> getResult() {
+            return Arrays.asList(result);
+        }
+
+        private boolean sameInstant(int first, int second) {
+            return times[first] == times[second]
+                    && getResolution(first) == getResolution(second)
+                    && getTimezone(first).equals(getTimezone(second));
+        }
+
+        private Resolution getResolution(int index) {
+            return events.get(index).getTimeInstant().getResolution();
+        }
+
+        private DateTimeZone getTimezone(int index) {
+            return events.get(index).getTimeInstant().getTimezone();
+        }
+    }
+
+    /**
+     * Get nodes representing time instants in chronological order, creating the ones that don't exist.
+     *
+     * @param instants in chronological order.
+     * @return nodes in the same order.
+     */
+    private List<Node> getOrCreateInstants(List<TimeInstant> instants) {
+        if (timeTree instanceof SingleTimeTree) {
+            return ((SingleTimeTree) timeTree).getOrCreateInstants(instants);
+        }
+
+        List<Node> result = new ArrayList<>(instants.size());
+        for (TimeInstant instant : instants) {
+            result.add(timeTree.getOrCreateInstant(instant));
+        }
+        return result;
+    }
+
+    private List<Event> toList(Iterator<Event> iterator) {
+        List<Event> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.CHILD;
+
+/**
+ * Caches used by {@link SingleTimeTree}s, i.e. the {@link InstantCache}, the {@link ChildDirectory}, and the record of
+ * nodes changed by transactions that haven't been committed yet. A single instance can be shared by any number of
+ * trees in the same database, since all entries are keyed by node IDs.
+ * <p>
+ * The caches are kept consistent with the graph by calling {@link #afterCommit(TransactionData)} and
+ * {@link #afterRollback()} from a single {@link org.neo4j.graphdb.event.TransactionEventHandler}, no matter how many
+ * trees share them. This class is thread-safe.
+ * <p>
+ * The record of uncommitted changes lives exactly as long as the transaction it belongs to, as far as the transaction
+ * event handler can tell: it is discarded when the handler is told the transaction has committed or rolled back. Neo4j
+ * doesn't notify the handlers of a transaction marked as failed before it got to commit, so what such a transaction
+ * has recorded stays with its thread until the thread's next transaction commits or rolls back. The record is therefore
+ * only ever used to keep things <b>out</b> of the caches: instant nodes created by a transaction are never cached
+ * before it commits, but looked up and cached afresh afterwards, and the children of a changed parent are read from
+ * the graph. A stale record can thus make the caches miss, but never return anything wrong.
+ */
+class TimeTreeCache {
+
+    private final InstantCache instantCache;
+    private final ChildDirectory childDirectory = new ChildDirectory(ChildDirectory.DEFAULT_CAPACITY);
+
+    //instant nodes created and parents changed by the current thread's transaction, not yet committed
+    private final ThreadLocal<Uncommitted> uncommitted = new ThreadLocal<>();
+
+    /**
+     * Create new caches.
+     *
+     * @param instantCacheCapacity maximum number of time instant nodes, whose IDs are cached.
+     */
+    TimeTreeCache(int instantCacheCapacity) {
+        this.instantCache = new InstantCache(instantCacheCapacity);
+    }
+
+    InstantCache getInstantCache() {
+        return instantCache;
+    }
+
+    ChildDirectory getChildDirectory() {
+        return childDirectory;
+    }
+
+    /**
+     * Cache an instant node, unless it has been created by the current transaction, which has not been committed yet.
+     * Such a node is cached when it is looked up again after the transaction has committed.
+     *
+     * @param key    of the instant.
+     * @param nodeId ID of the node representing the instant.
+     */
+    void cacheInstant(InstantCache.Key key, long nodeId) {
+        if (!isUncommitted(nodeId)) {
+            instantCache.put(key, nodeId);
+        }
+    }
+
+    /**
+     * Remember that a node has been created by the current thread's transaction, which has not been committed yet.
+     *
+     * @param node created node.
+     */
+    void markUncommitted(Node node) {
+        getOrCreateUncommitted().nodes.add(node.getId());
+    }
+
+    /**
+     * Has the node been created by the current thread's transaction, which has not been committed yet?
+     *
+     * @param nodeId ID of the node.
+     * @return true iff the node is uncommitted.
+     */
+    boolean isUncommitted(long nodeId) {
+        Uncommitted state = uncommitted.get();
+        return state != null && state.nodes.contains(nodeId);
+    }
+
+    /**
+     * Remember that the children of a node have been changed by the current thread's transaction, which has not been
+     * committed yet.
+     *
+     * @param parent whose children have changed.
+     */
+    void markChanged(Node parent) {
+        getOrCreateUncommitted().parents.add(parent.getId());
+    }
+
+    /**
+     * Have the children of a node been changed by the current thread's transaction, which has not been committed yet?
+     *
+     * @param parentId ID of the parent.
+     * @return true iff the children have changed.
+     */
+    boolean isChanged(long parentId) {
+        Uncommitted state = uncommitted.get();
+        return state != null && state.parents.contains(parentId);
+    }
+
+    /**
+     * Remember that a node is about to be deleted by the current thread's transaction.
+     *
+     * @param node to be deleted.
+     */
+    void markDeleted(Node node) {
+        Uncommitted state = uncommitted.get();
+
+        if (state != null) {
+            state.nodes.remove(node.getId());
+        }
+    }
+
+    /**
+     * Evict whatever the committed transaction has changed or deleted and forget about its uncommitted changes.
+     *
+     * @param transactionData of the committed transaction.
+     */
+    void afterCommit(TransactionData transactionData) {
+        evictDeletedNodes(transactionData);
+        evictChangedParents(transactionData);
+        uncommitted.remove();
+    }
+
+    /**
+     * Forget about everything the rolled back transaction has created or changed.
+     */
+    void afterRollback() {
+        uncommitted.remove();
+    }
+
+    private Uncommitted getOrCreateUncommitted() {
+        Uncommitted state = uncommitted.get();
+
+        if (state == null) {
+            state = new Uncommitted();
+            uncommitted.set(state);
+        }
+
+        return state;
+    }
+
+    private void evictChangedParents(TransactionData transactionData) {
+        if (childDirectory.isEmpty()) {
+            return;
+        }
+
+        for (Relationship relationship : transactionData.createdRelationships()) {
+            if (relationship.isType(CHILD)) {
+                childDirectory.evict(relationship.getStartNode().getId());
+            }
+        }
+
+        for (Node node : transactionData.deletedNodes()) {
+            childDirectory.evict(node.getId());
+        }
+    }
+
+    private void evictDeletedNodes(TransactionData transactionData) {
+        if (instantCache.isEmpty()) {
+            return;
+        }
+
+        for (Node node : transactionData.deletedNodes()) {
+            instantCache.evictNode(node.getId());
+        }
+    }
+
+    /**
+     * Nodes created and parents changed by a single transaction, which has not been committed yet.
+     */
+    private static final class Uncommitted {
+
+        private final Set<Long> nodes = new HashSet<>();
+        private final Set<Long> parents = new HashSet<>();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import com.graphaware.common.log.LoggerFactory;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.logging.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A registry of {@link TimeTree}s in a single database. It hands out one shared, thread-safe instance of the default
+ * {@link SingleTimeTree} and one per custom root, so that callers don't have to construct trees on every request.
+ * <p>
+ * All trees handed out by a registry share a single {@link TimeTreeCache} and a single
+ * {@link TransactionEventHandler}, so the cost of a commit doesn't grow with the number of trees in use. The handler
+ * also applies the changes of event counts and aggregates deferred by {@link RollUps}. Trees with
+ * custom roots that haven't been asked for during {@link #DEFAULT_IDLE_TIMEOUT} are dropped from the registry; they
+ * remain fully functional for callers still holding them, since they keep no state of their own.
+ * <p>
+ * Use {@link #forDatabase(GraphDatabaseService)} to obtain the registry of a database. This class is thread-safe.
+ */
+public final class TimeTreeRegistry {
+
+    private static final Log LOG = LoggerFactory.getLogger(TimeTreeRegistry.class);
+
+    static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private static final Map<GraphDatabaseService, TimeTreeRegistry> REGISTRIES = new HashMap<>();
+
+    private final GraphDatabaseService database;
+    private final TimeTreeCache cache;
+    private final SingleTimeTree defaultTree;
+    private final ConcurrentMap<Long, Entry> customTrees = new ConcurrentHashMap<>();
+    private final long idleTimeout;
+    private volatile long lastEviction;
+    private volatile EventSettings eventSettings = EventSettings.DEFAULT;
+
+    /**
+     * Get the registry of a database, creating it the first time it is asked for. The registry is discarded when the
+     * database shuts down.
+     *
+     * @param database to get the registry for.
+     * @return registry.
+     */
+    public static TimeTreeRegistry forDatabase(final GraphDatabaseService database) {
+        synchronized (REGISTRIES) {
+            TimeTreeRegistry registry = REGISTRIES.get(database);
+
+            if (registry == null) {
+                registry = new TimeTreeRegistry(database, DEFAULT_IDLE_TIMEOUT);
+                REGISTRIES.put(database, registry);
+
+                database.registerKernelEventHandler(new KernelEventHandler() {
+                    @Override
+                    public void beforeShutdown() {
+                        synchronized (REGISTRIES) {
+                            REGISTRIES.remove(database);
+                        }
+                    }
+
+                    @Override
+                    public void kernelPanic(ErrorState error) {
+                        //do nothing
+                    }
+
+                    @Override
+                    public Object getResource() {
+                        return null;
+                    }
+
+                    @Override
+                    public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+                        return ExecutionOrder.DOESNT_MATTER;
+                    }
+                });
+            }
+
+            return registry;
+        }
+    }
+
+    /**
+     * Create a new registry.
+     *
+     * @param database    to create the registry for.
+     * @param idleTimeout number of ms after which an unused tree with a custom root is dropped from the registry.
+     */
+    TimeTreeRegistry(GraphDatabaseService database, long idleTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+
+        this.database = database;
+        this.idleTimeout = idleTimeout;
+        this.cache = new TimeTreeCache(InstantCache.DEFAULT_CAPACITY);
+        this.defaultTree = new SingleTimeTree(database, cache);
+        this.lastEviction = System.currentTimeMillis();
+
+        database.registerTransactionEventHandler(new TransactionEventHandler<Boolean>() {
+            @Override
+            public Boolean beforeCommit(TransactionData transactionData) throws Exception {
+                RollUps.apply(database);
+                return defaultTree.beforeCommit(transactionData);
+            }
+
+            @Override
+            public void afterCommit(TransactionData transactionData, Boolean rootCreated) {
+                RollUps.discard();
+                cache.afterCommit(transactionData);
+                defaultTree.afterCommit(transactionData, rootCreated);
+                removeDeletedRoots(transactionData);
+            }
+
+            @Override
+            public void afterRollback(TransactionData transactionData, Boolean rootCreated) {
+                RollUps.discard();
+                cache.afterRollback();
+                defaultTree.afterRollback(rootCreated);
+            }
+        });
+    }
+
+    /**
+     * Get the default time tree, which maintains its own root.
+     *
+     * @return default tree.
+     */
+    public TimeTree getDefaultTimeTree() {
+        return defaultTree;
+    }
+
+    /**
+     * Get the time tree with a custom root. Must be called within a transaction.
+     *
+     * @param root of the tree.
+     * @return tree.
+     */
+    public TimeTree getTimeTree(Node root) {
+        return getTimeTree(root.getId());
+    }
+
+    /**
+     * Get the time tree with a custom root. Must be called within a transaction.
+     *
+     * @param rootId ID of the root of the tree.
+     * @return tree.
+     * @throws org.neo4j.graphdb.NotFoundException in case the root does not exist.
+     */
+    public TimeTree getTimeTree(long rootId) {
+        long now = System.currentTimeMillis();
+
+        evictIdle(now);
+
+        Entry entry = customTrees.get(rootId);
+
+        if (entry == null) {
+            Entry newEntry = new Entry(new CustomRootTimeTree(database.getNodeById(rootId), cache));
+            entry = customTrees.putIfAbsent(rootId, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+
+        entry.lastUsed = now;
+
+        return entry.tree;
+    }
+
+    /**
+     * Get the settings of events attached to trees in this database, published by whoever maintains them (i.e. the
+     * {@link com.graphaware.module.timetree.module.TimeTreeModule}), so that the APIs read and attach events the same way.
+     *
+     * @return settings, {@link EventSettings#DEFAULT} if none have been published.
+     */
+    public EventSettings getEventSettings() {
+        return eventSettings;
+    }
+
+    /**
+     * Publish the settings of events attached to trees in this database.
+     *
+     * @param eventSettings settings, <code>null</code> to go back to {@link EventSettings#DEFAULT}.
+     */
+    public void setEventSettings(EventSettings eventSettings) {
+        this.eventSettings = eventSettings == null ? EventSettings.DEFAULT : eventSettings;
+    }
+
+    /**
+     * @return number of trees with custom roots currently held by the registry.
+     */
+    int size() {
+        return customTrees.size();
+    }
+
+    private void evictIdle(long now) {
+        if (now - lastEviction < idleTimeout) {
+            return;
+        }
+
+        lastEviction = now;
+
+        Iterator<Entry> iterator = customTrees.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUsed >= idleTimeout) {
+                iterator.remove();
+            }
+        }
+
+        LOG.debug("Evicted idle time trees, %s remaining", customTrees.size());
+    }
+
+    private void removeDeletedRoots(TransactionData transactionData) {
+        if (customTrees.isEmpty()) {
+            return;
+        }
+
+        for (Node node : transactionData.deletedNodes()) {
+            customTrees.remove(node.getId());
+        }
+    }
+
+    private static final class Entry {
+
+        private final CustomRootTimeTree tree;
+        private volatile long lastUsed;
+
+        private Entry(CustomRootTimeTree tree) {
+            this.tree = tree;
+        }
+    }
+}
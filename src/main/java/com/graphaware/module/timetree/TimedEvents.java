@@ -16,14 +16,23 @@
 
 package com.graphaware.module.timetree;
 
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventPage;
+import com.graphaware.module.timetree.domain.EventToAttach;
 import com.graphaware.module.timetree.domain.TimeInstant;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * API for representing events in time.
@@ -53,6 +62,43 @@ public interface TimedEvents {
      */
     boolean attachEvent(Node event, RelationshipType relationshipType, Direction direction, TimeInstant timeInstant);
 
+    /**
+     * Detach an event from all time instants it is attached to using a relationship of the specified direction
+     * (from the time instants' point of view) and the specified type.
+     *
+     * @param event            event node to be detached.
+     * @param relationshipType type of the relationship between the event node and the time instant nodes.
+     * @param direction        of the relationship between the time instants and the event from the time instants' point of view. Must not be {@link Direction#BOTH}.
+     * @return number of relationships removed.
+     */
+    int detachEvent(Node event, RelationshipType relationshipType, Direction direction);
+
+    /**
+     * Attach events to nodes representing their time instants within the current transaction. Time instants that don't
+     * exist will be created. The events are processed in chronological order and each distinct time instant is only
+     * looked up once, which makes this much cheaper than attaching the events one by one when many of them share
+     * time instants.
+     *
+     * @param events to attach.
+     * @return for each event in the order of the given collection, <code>true</code> iff the event was attached,
+     * <code>false</code> iff it was already attached.
+     */
+    List<Boolean> attachEvents(Collection<EventToAttach> events);
+
+    /**
+     * Attach events to nodes representing their time instants, committing a separate transaction for every
+     * <code>batchSize</code> events, so that loading a large number of events doesn't require a single huge transaction.
+     * Must be called outside of a transaction; if an error occurs, the batches committed so far stay committed. A batch
+     * that deadlocks with another transaction is retried.
+     *
+     * @param events    to attach.
+     * @param batchSize maximum number of events attached in a single transaction, must be positive.
+     * @return for each event in the order of the given collection, <code>true</code> iff the event was attached,
+     * <code>false</code> iff it was already attached.
+     * @see #attachEvents(Collection)
+     */
+    List<Boolean> attachEvents(Collection<EventToAttach> events, int batchSize);
+
     /**
      * Get events attached (using any incoming relationship) to a specific time instant and all its children.
      * If the time instant doesn't exist, it will <b>not</b> be created and an empty list will be returned.
@@ -145,4 +191,212 @@ public interface TimedEvents {
      * resolution before events with lower resolution.
      */
     List<Event> getEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Get events like {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)}, reading only what has been
+     * committed. Implementations may read parts of the range concurrently, each in its own transaction, so changes made
+     * in the caller's transaction that haven't been committed yet may not be returned. Only use this method when the
+     * caller hasn't written anything in its transaction. The time instants that don't exist will <b>not</b> be created.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return events attached to all time instants in the interval and their children, in the same order as
+     * {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)}.
+     */
+    List<Event> getCommittedEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Lazily iterate over events attached (via a relationship of one of the specified types and the specified direction)
+     * to all time instants in the specified range (inclusive) and all their children, in the same order as
+     * {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)}. The time tree is walked as the iterator is
+     * consumed, so the memory used doesn't depend on the number of events in the range.
+     * The time instants that don't exist will <b>not</b> be created.
+     * <p>
+     * The iterator begins a transaction, which is finished when the iterator is closed. When called within a
+     * transaction managed by the caller, the iterator takes part in it. Otherwise, the events must be consumed before
+     * the iterator is closed, on the thread that has called this method. The iterator must always be closed,
+     * preferably using try-with-resources.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return iterator over events attached to all time instants in the interval and their children.
+     */
+    ResourceIterator<Event> iterateEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Lazily iterate over events like {@link #iterateEvents(TimeInstant, TimeInstant, Set, Direction)}, optionally
+     * resuming from a cursor obtained from {@link ResumableEventIterator#getCursor()} or {@link EventPage#getCursor()}.
+     * A resumed iteration continues right after the event the cursor was obtained for, without walking the part of
+     * the range before it.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive), ignored when resuming.
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @param cursor            to resume from, <code>null</code> to start from the beginning of the range.
+     * @return iterator over events attached to all time instants in the interval and their children.
+     * @throws IllegalArgumentException in case the cursor is invalid.
+     */
+    ResumableEventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction, String cursor);
+
+    /**
+     * Get a page of at most <code>limit</code> events attached (via a relationship of one of the specified types and
+     * the specified direction) to all time instants in the specified range (inclusive) and all their children,
+     * optionally continuing from the cursor of a previous page. The time instants that don't exist will <b>not</b>
+     * be created.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive), ignored when resuming.
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @param limit             maximum number of events on the page, must be positive.
+     * @param cursor            of the previous page, <code>null</code> for the first page.
+     * @return page of events, with a cursor for the next page if there are more events in the range.
+     * @throws IllegalArgumentException in case the limit is not positive or the cursor is invalid.
+     */
+    EventPage getEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction, int limit, String cursor);
+
+    /**
+     * Get events attached (via a relationship of one of the specified types and the specified direction) to all time
+     * instants in the specified range (inclusive) and all their children, whose timestamp lies between the exact times
+     * of the start and the end of the range (inclusive). For example, a range from 10:15:30 to 10:17:05 of a tree with
+     * events attached to days only returns the events of that day, which have a timestamp within those 95 seconds.
+     * <p>
+     * Only events attached to the first and the last instant of the range and their descendants are filtered by the
+     * timestamp property; descendants lying entirely outside the bounds are not visited. Events of the instants in
+     * between are returned without reading their timestamps. Events without a numeric timestamp property can't be
+     * placed more precisely than the instant they are attached to, so they are always returned, wherever in the range
+     * that instant lies. The time instants that don't exist will <b>not</b> be created.
+     *
+     * @param startTime         Time instant representing the start of the interval, its time (in ms) being the inclusive lower bound.
+     * @param endTime           Time instant representing the end of the interval, its time (in ms) being the inclusive upper bound.
+     * @param timestampProperty of the event nodes holding the time (in ms since epoch) of the events.
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return events within the bounds, in the same order as {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)}.
+     * @throws IllegalArgumentException in case the timestamp property is not specified.
+     */
+    List<Event> getEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Lazily iterate over events like {@link #getEvents(TimeInstant, TimeInstant, String, Set, Direction)}, optionally
+     * resuming from a cursor, see {@link #iterateEvents(TimeInstant, TimeInstant, Set, Direction, String)}.
+     *
+     * @param startTime         Time instant representing the start of the interval, its time (in ms) being the inclusive lower bound.
+     * @param endTime           Time instant representing the end of the interval, its time (in ms) being the inclusive upper bound.
+     * @param timestampProperty of the event nodes holding the time (in ms since epoch) of the events.
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @param cursor            to resume from, <code>null</code> to start from the beginning of the range.
+     * @return iterator over events within the bounds.
+     * @throws IllegalArgumentException in case the timestamp property is not specified or the cursor is invalid.
+     */
+    ResumableEventIterator iterateEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> relationshipTypes, Direction direction, String cursor);
+
+    /**
+     * Get a page of at most <code>limit</code> events like {@link #getEvents(TimeInstant, TimeInstant, String, Set, Direction)},
+     * optionally continuing from the cursor of a previous page.
+     *
+     * @param startTime         Time instant representing the start of the interval, its time (in ms) being the inclusive lower bound.
+     * @param endTime           Time instant representing the end of the interval, its time (in ms) being the inclusive upper bound.
+     * @param timestampProperty of the event nodes holding the time (in ms since epoch) of the events.
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @param limit             maximum number of events on the page, must be positive.
+     * @param cursor            of the previous page, <code>null</code> for the first page.
+     * @return page of events, with a cursor for the next page if there are more events within the bounds.
+     * @throws IllegalArgumentException in case the timestamp property is not specified, the limit is not positive or the cursor is invalid.
+     */
+    EventPage getEvents(TimeInstant startTime, TimeInstant endTime, String timestampProperty, Set<RelationshipType> relationshipTypes, Direction direction, int limit, String cursor);
+
+    /**
+     * Get the latest events attached (via a relationship of one of the specified types and the specified direction)
+     * to the time instant at or before the specified one, all time instants of the same resolution before it, and all
+     * their children. Events are returned newest first, i.e. in the reverse order of
+     * {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)}, and the tree is only walked as far as needed to
+     * find <code>limit</code> events. The time instants that don't exist will <b>not</b> be created.
+     *
+     * @param timeInstant       Time instant representing the latest time of interest (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @param limit             maximum number of events to return, must be positive.
+     * @return at most <code>limit</code> latest events, newest first.
+     * @throws IllegalArgumentException in case the limit is not positive.
+     */
+    List<Event> getLatestEvents(TimeInstant timeInstant, Set<RelationshipType> relationshipTypes, Direction direction, int limit);
+
+    /**
+     * Count events attached (via an incoming relationship of one of the specified types) to all time instants in the
+     * specified range (inclusive) and all their children, i.e. the events
+     * {@link #getEvents(TimeInstant, TimeInstant, Set)} would return. The time instants that don't exist will
+     * <b>not</b> be created.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @return number of events.
+     * @see #countEvents(TimeInstant, TimeInstant, Set, Direction)
+     */
+    long countEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes);
+
+    /**
+     * Count events attached (via a relationship of one of the specified types and the specified direction) to all time
+     * instants in the specified range (inclusive) and all their children, i.e. the events
+     * {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)} would return. The time instants that don't exist
+     * will <b>not</b> be created.
+     * <p>
+     * When event counting is enabled in the {@link EventSettings}, the number is summed from counts rolled up to the
+     * time instants covering the range, and no events are visited. It then only reflects events attached and detached using
+     * {@link #attachEvent(Node, RelationshipType, Direction, TimeInstant)} and
+     * {@link #detachEvent(Node, RelationshipType, Direction)} while counting was enabled, as well as deletions of
+     * relationships of the type the {@link com.graphaware.module.timetree.module.TimeTreeModule} is configured with,
+     * e.g. by deleting events. Otherwise, the events are visited one by one.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return number of events.
+     */
+    long countEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Aggregate a numeric property of events attached (via a relationship of one of the specified types and the
+     * specified direction) to all time instants in the specified range (inclusive) and all their children, i.e. the
+     * events {@link #getEvents(TimeInstant, TimeInstant, Set, Direction)} would return. Events without a numeric value
+     * of the property are ignored. The time instants that don't exist will <b>not</b> be created.
+     * <p>
+     * When the property is aggregated by the {@link EventSettings}' {@link EventAggregator}, the aggregate is computed
+     * from values rolled up to the time instants covering the range, and no events are visited. Otherwise, the events are visited
+     * one by one.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param property          of the event nodes to aggregate.
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return count, sum, minimum, maximum and average of the property's values.
+     * @throws IllegalArgumentException in case the property is not specified.
+     */
+    Aggregate aggregateEvents(TimeInstant startTime, TimeInstant endTime, String property, Set<RelationshipType> relationshipTypes, Direction direction);
+
+    /**
+     * Lazily stream events attached (via a relationship of one of the specified types and the specified direction)
+     * to all time instants in the specified range (inclusive) and all their children. The stream is backed by
+     * {@link #iterateEvents(TimeInstant, TimeInstant, Set, Direction)} and must be closed in the same way.
+     *
+     * @param startTime         Time instant representing the start of the interval (inclusive).
+     * @param endTime           Time instant representing the end of the interval (inclusive).
+     * @param relationshipTypes of the relationships between the event and the time instants, <code>null</code> for all.
+     * @param direction         of the relationships between the time instants and the events from the time instants' point of view.
+     * @return ordered stream of events attached to all time instants in the interval and their children.
+     */
+    default Stream<Event> streamEvents(TimeInstant startTime, TimeInstant endTime, Set<RelationshipType> relationshipTypes, Direction direction) {
+        ResourceIterator<Event> iterator = iterateEvents(startTime, endTime, relationshipTypes, direction);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
+    }
 }
@@ -16,9 +16,9 @@
 
 package com.graphaware.module.timetree.api;
 
-import com.graphaware.module.timetree.SingleTimeTree;
 import com.graphaware.module.timetree.TimeTree;
 import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.TimeTreeRegistry;
 import com.graphaware.module.timetree.TimedEvents;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,11 +36,11 @@ public class TimeTreeSpringConfig {
 
     @Bean
     public TimeTree timeTree() {
-        return new SingleTimeTree(database);
+        return TimeTreeRegistry.forDatabase(database).getDefaultTimeTree();
     }
 
     @Bean
     public TimedEvents timedEvents() {
-        return new TimeTreeBackedEvents(timeTree());
+        return new TimeTreeBackedEvents(timeTree(), TimeTreeRegistry.forDatabase(database));
     }
 }
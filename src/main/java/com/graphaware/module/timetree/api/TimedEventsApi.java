@@ -19,10 +19,13 @@ package com.graphaware.module.timetree.api;
 import com.graphaware.api.json.JsonNode;
 import com.graphaware.api.json.LongIdJsonNode;
 import com.graphaware.common.log.LoggerFactory;
-import com.graphaware.module.timetree.CustomRootTimeTree;
+import com.graphaware.module.timetree.TimeTree;
 import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.TimeTreeRegistry;
 import com.graphaware.module.timetree.TimedEvents;
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventPage;
 import com.graphaware.module.timetree.domain.TimeInstant;
 import com.graphaware.module.timetree.logic.TimedEventsBusinessLogic;
 import com.graphaware.module.timetree.logic.TimedEventsBusinessLogic.EventAttachedResult;
@@ -45,6 +48,16 @@ public class TimedEventsApi {
 
     private static final Log LOG = LoggerFactory.getLogger(TimedEventsApi.class);
 
+    /**
+     * Response header carrying the cursor to fetch the next page of events with, present only if there are more events.
+     */
+    public static final String CURSOR_HEADER = "X-TimeTree-Cursor";
+
+    /**
+     * Number of events attached in a single transaction by a batch request, unless specified otherwise.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     private final GraphDatabaseService database;
     private final TimedEventsBusinessLogic timedEventsLogic;
 
@@ -90,6 +103,15 @@ public class TimedEventsApi {
         return result;
     }
 
+    @RequestMapping(value = "/events/batch", method = RequestMethod.POST)
+    @ResponseBody
+    public List<EventAttachedResult> attachEvents(
+            @RequestBody List<TimedEventVO> events,
+            @RequestParam(required = false) Integer batchSize) {
+
+        return timedEventsLogic.attachEvents(events, batchSize == null ? DEFAULT_BATCH_SIZE : batchSize);
+    }
+
     @RequestMapping(value = "/range/{startTime}/{endTime}/events", method = RequestMethod.GET)
     @ResponseBody
     public List<EventVO> getEvents(
@@ -98,15 +120,109 @@ public class TimedEventsApi {
             @RequestParam(required = false) String resolution,
             @RequestParam(required = false) String timezone,
             @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction,
+            @RequestParam(required = false) String timestampProperty,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor,
+            HttpServletResponse response) {
+
+        if (limit == null && cursor == null) {
+            return convertEvents(timedEventsLogic.getEvents(startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction));
+        }
+
+        EventPage page = timedEventsLogic.getEvents(startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, limit == null ? Integer.MAX_VALUE : limit, cursor);
+
+        return convertPage(page, response);
+    }
+
+    
+    @RequestMapping(value = "/range/{startTime}/{endTime}/count", method = RequestMethod.GET)
+    @ResponseBody
+    public long countEvents(
+            @PathVariable long startTime,
+            @PathVariable long endTime,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction) {
+
+        return timedEventsLogic.countEvents(startTime, endTime, resolution, timezone, relationshipTypes, direction);
+    }
+
+    @RequestMapping(value = "/{rootNodeId}/range/{startTime}/{endTime}/count", method = RequestMethod.GET)
+    @ResponseBody
+    public long countEventsCustomRoot(
+            @PathVariable long rootNodeId,
+            @PathVariable long startTime,
+            @PathVariable long endTime,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction) {
+
+        return timedEventsLogic.countEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, relationshipTypes, direction);
+    }
+
+    @RequestMapping(value = "/range/{startTime}/{endTime}/aggregate", method = RequestMethod.GET)
+    @ResponseBody
+    public Aggregate aggregateEvents(
+            @PathVariable long startTime,
+            @PathVariable long endTime,
+            @RequestParam String property,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
             @RequestParam(required = false) String direction) {
 
+        return timedEventsLogic.aggregateEvents(startTime, endTime, resolution, timezone, property, relationshipTypes, direction);
+    }
+
+    @RequestMapping(value = "/{rootNodeId}/range/{startTime}/{endTime}/aggregate", method = RequestMethod.GET)
+    @ResponseBody
+    public Aggregate aggregateEventsCustomRoot(
+            @PathVariable long rootNodeId,
+            @PathVariable long startTime,
+            @PathVariable long endTime,
+            @RequestParam String property,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction) {
 
-        List<Event> events = timedEventsLogic.getEvents(startTime, endTime, resolution, timezone, relationshipTypes, direction);
+        return timedEventsLogic.aggregateEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, property, relationshipTypes, direction);
+    }
+
+    @RequestMapping(value = "/latest/{time}/events", method = RequestMethod.GET)
+    @ResponseBody
+    public List<EventVO> getLatestEvents(
+            @PathVariable long time,
+            @RequestParam int limit,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction) {
+
+        List<Event> events = timedEventsLogic.getLatestEvents(time, resolution, timezone, relationshipTypes, direction, limit);
+
+        return convertEvents(events);
+    }
+
+    @RequestMapping(value = "/{rootNodeId}/latest/{time}/events", method = RequestMethod.GET)
+    @ResponseBody
+    public List<EventVO> getLatestEventsCustomRoot(
+            @PathVariable long rootNodeId,
+            @PathVariable long time,
+            @RequestParam int limit,
+            @RequestParam(required = false) String resolution,
+            @RequestParam(required = false) String timezone,
+            @RequestParam(required = false) Set<String> relationshipTypes,
+            @RequestParam(required = false) String direction) {
+
+        List<Event> events = timedEventsLogic.getLatestEventsCustomRoot(rootNodeId, time, resolution, timezone, relationshipTypes, direction, limit);
 
         return convertEvents(events);
     }
 
-    
     @RequestMapping(value = "/{rootNodeId}/single/{time}/events", method = RequestMethod.GET)
     @ResponseBody
     public List<EventVO> getEventsCustomRoot(
@@ -132,11 +248,19 @@ public class TimedEventsApi {
             @RequestParam(required = false) String resolution,
             @RequestParam(required = false) String timezone,
             @RequestParam(required = false) Set<String> relationshipTypes,
-            @RequestParam(required = false) String direction) {
+            @RequestParam(required = false) String direction,
+            @RequestParam(required = false) String timestampProperty,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor,
+            HttpServletResponse response) {
+
+        if (limit == null && cursor == null) {
+            return convertEvents(timedEventsLogic.getEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction));
+        }
 
-        List<Event> events = timedEventsLogic.getEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, relationshipTypes, direction);
+        EventPage page = timedEventsLogic.getEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, limit == null ? Integer.MAX_VALUE : limit, cursor);
 
-        return convertEvents(events);
+        return convertPage(page, response);
     }
 
     @RequestMapping(value = "{rootNodeId}/single/event", method = RequestMethod.POST)
@@ -149,9 +273,10 @@ public class TimedEventsApi {
             Node eventNode = event.getEvent().getNode().producePropertyContainer(database);
             id = eventNode.getId();
 
-            CustomRootTimeTree timeTree = new CustomRootTimeTree(database.getNodeById(rootNodeId));
+            TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(database);
+            TimeTree timeTree = registry.getTimeTree(rootNodeId);
 
-            boolean attached = new TimeTreeBackedEvents(timeTree).attachEvent(
+            boolean attached = new TimeTreeBackedEvents(timeTree, registry).attachEvent(
                     eventNode,
                     RelationshipType.withName(event.getEvent().getRelationshipType()),
                     resolveDirection(event.getEvent().getDirection()),
@@ -186,6 +311,14 @@ public class TimedEventsApi {
         return eventVOs;
     }
 
+    private List<EventVO> convertPage(EventPage page, HttpServletResponse response) {
+        if (page.getCursor() != null) {
+            response.setHeader(CURSOR_HEADER, page.getCursor());
+        }
+
+        return convertEvents(page.getEvents());
+    }
+
     private Direction resolveDirection(String direction) {
         if (direction == null) {
             return Direction.INCOMING;
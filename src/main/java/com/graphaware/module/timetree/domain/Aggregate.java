@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.domain;
+
+/**
+ * Summary of the values of a numeric property of a set of {@link Event}s.
+ */
+public class Aggregate {
+
+    private final long count;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    /**
+     * Create a new aggregate.
+     *
+     * @param count number of values.
+     * @param sum   of the values.
+     * @param min   smallest value, ignored if there are no values.
+     * @param max   largest value, ignored if there are no values.
+     */
+    public Aggregate(long count, double sum, double min, double max) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative");
+        }
+
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Get the number of values.
+     *
+     * @return number of events that have a numeric value of the property.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of the values.
+     *
+     * @return sum, 0 if there are no values.
+     */
+    public double getSum() {
+        return count == 0 ? 0 : sum;
+    }
+
+    /**
+     * Get the smallest value.
+     *
+     * @return smallest value, <code>null</code> if there are no values.
+     */
+    public Double getMin() {
+        return count == 0 ? null : min;
+    }
+
+    /**
+     * Get the largest value.
+     *
+     * @return largest value, <code>null</code> if there are no values.
+     */
+    public Double getMax() {
+        return count == 0 ? null : max;
+    }
+
+    /**
+     * Get the average of the values.
+     *
+     * @return average, <code>null</code> if there are no values.
+     */
+    public Double getAverage() {
+        return count == 0 ? null : sum / count;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.domain;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.DurationField;
+import org.joda.time.chrono.ISOChronology;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decomposes a time in ms since epoch into the calendar fields used by the time tree (year, month, day, hour, minute,
+ * second, millisecond) in a specific time zone, without creating any objects.
+ * <p>
+ * The time zone offset is a constant for UTC and fixed-offset zones. For zones with daylight saving time and other
+ * offset transitions, the offset is cached together with the period in which it is valid, so that it is only
+ * looked up again once a time outside of that period is decomposed. The year, month, and day are read from the
+ * ISO chronology in UTC after the offset has been applied; the time of day is computed arithmetically.
+ * <p>
+ * Instances are thread-safe and shared per time zone, see {@link #forZone(DateTimeZone)}.
+ */
+public final class CalendarFields {
+
+    /**
+     * Number of calendar fields, i.e. the minimum size of the array passed to {@link #decompose(long, int[])}.
+     */
+    public static final int NUMBER_OF_FIELDS = Resolution.values().length;
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+    private static final Chronology UTC_CHRONOLOGY = ISOChronology.getInstanceUTC();
+    private static final ConcurrentMap<DateTimeZone, CalendarFields> INSTANCES = new ConcurrentHashMap<>();
+
+    private final DateTimeZone timeZone;
+    private final boolean fixed;
+    private final int fixedOffset;
+    private final DurationField[] durationFields;
+    private volatile OffsetPeriod offsetPeriod;
+
+    /**
+     * Get the extractor for a time zone.
+     *
+     * @param timeZone time zone.
+     * @return extractor.
+     */
+    public static CalendarFields forZone(DateTimeZone timeZone) {
+        CalendarFields calendarFields = INSTANCES.get(timeZone);
+
+        if (calendarFields == null) {
+            calendarFields = new CalendarFields(timeZone);
+            CalendarFields existing = INSTANCES.putIfAbsent(timeZone, calendarFields);
+            if (existing != null) {
+                calendarFields = existing;
+            }
+        }
+
+        return calendarFields;
+    }
+
+    private CalendarFields(DateTimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.fixed = timeZone.isFixed();
+        this.fixedOffset = fixed ? timeZone.getOffset(0) : 0;
+
+        Chronology chronology = ISOChronology.getInstance(timeZone);
+        Resolution[] resolutions = Resolution.values();
+        this.durationFields = new DurationField[resolutions.length];
+        for (Resolution resolution : resolutions) {
+            durationFields[resolution.ordinal()] = resolution.getDateTimeFieldType().getDurationType().getField(chronology);
+        }
+    }
+
+    /**
+     * Decompose a time into calendar fields.
+     *
+     * @param time   in ms since epoch.
+     * @param fields array to be filled with the calendar fields, indexed by {@link Resolution#ordinal()}. Must have
+     *               at least {@link #NUMBER_OF_FIELDS} elements.
+     */
+    public void decompose(long time, int[] fields) {
+        long local = time + offset(time);
+
+        fields[Resolution.YEAR.ordinal()] = UTC_CHRONOLOGY.year().get(local);
+        fields[Resolution.MONTH.ordinal()] = UTC_CHRONOLOGY.monthOfYear().get(local);
+        fields[Resolution.DAY.ordinal()] = UTC_CHRONOLOGY.dayOfMonth().get(local);
+
+        long millisOfDay = local % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        fields[Resolution.MILLISECOND.ordinal()] = (int) (millisOfDay % 1000);
+        millisOfDay /= 1000;
+        fields[Resolution.SECOND.ordinal()] = (int) (millisOfDay % 60);
+        millisOfDay /= 60;
+        fields[Resolution.MINUTE.ordinal()] = (int) (millisOfDay % 60);
+        fields[Resolution.HOUR.ordinal()] = (int) (millisOfDay / 60);
+    }
+
+    /**
+     * Add one unit of the given resolution to a time, in this time zone.
+     *
+     * @param time       in ms since epoch.
+     * @param resolution the unit of which to add.
+     * @return time one unit later, in ms since epoch.
+     */
+    public long next(long time, Resolution resolution) {
+        return durationFields[resolution.ordinal()].add(time, 1);
+    }
+
+    /**
+     * Get the offset of this time zone from UTC at the given time.
+     *
+     * @param time in ms since epoch.
+     * @return offset in ms.
+     */
+    public int offset(long time) {
+        if (fixed) {
+            return fixedOffset;
+        }
+
+        OffsetPeriod period = offsetPeriod;
+        if (period == null || time < period.start || time >= period.end) {
+            period = new OffsetPeriod(time);
+            offsetPeriod = period;
+        }
+
+        return period.offset;
+    }
+
+    /**
+     * A period of time, in which the offset of the time zone does not change.
+     */
+    private final class OffsetPeriod {
+
+        private final long start;
+        private final long end;
+        private final int offset;
+
+        private OffsetPeriod(long time) {
+            this.offset = timeZone.getOffset(time);
+
+            //the previous transition is reported as the last ms before it
+            long previousTransition = timeZone.previousTransition(time);
+            if (previousTransition >= time) {
+                this.start = Long.MIN_VALUE;
+            } else if (timeZone.getOffset(previousTransition + 1) == offset) {
+                this.start = previousTransition + 1;
+            } else {
+                this.start = time;
+            }
+
+            long nextTransition = timeZone.nextTransition(time);
+            this.end = nextTransition <= time ? Long.MAX_VALUE : nextTransition;
+        }
+    }
+}
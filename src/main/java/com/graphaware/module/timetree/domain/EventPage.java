@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree.domain;
+
+import java.util.List;
+
+/**
+ * A page of {@link Event}s, with a cursor to fetch the following page.
+ */
+public class EventPage {
+
+    private final List<Event> events;
+    private final String cursor;
+
+    /**
+     * Create a new page.
+     *
+     * @param events on the page.
+     * @param cursor to fetch the next page with, <code>null</code> if there are no more events.
+     */
+    public EventPage(List<Event> events, String cursor) {
+        this.events = events;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Get the events on this page.
+     *
+     * @return events, chronologically ordered.
+     */
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * Get the cursor to fetch the next page with.
+     *
+     * @return opaque cursor, <code>null</code> if there are no more events.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree.domain;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * An event to be attached to a specific time instant of a {@link com.graphaware.module.timetree.TimeTree} in bulk,
+ * using {@link com.graphaware.module.timetree.TimedEvents#attachEvents(java.util.Collection)}.
+ */
+public class EventToAttach {
+
+    private final Node node;
+    private final RelationshipType relationshipType;
+    private final Direction direction;
+    private final TimeInstant timeInstant;
+
+    /**
+     * Create a new event to attach using an incoming relationship (from the time instant's point of view).
+     *
+     * @param node             representing the event.
+     * @param relationshipType to use when attaching the event to the time tree.
+     * @param timeInstant      to attach the event to.
+     */
+    public EventToAttach(Node node, RelationshipType relationshipType, TimeInstant timeInstant) {
+        this(node, relationshipType, Direction.INCOMING, timeInstant);
+    }
+
+    /**
+     * Create a new event to attach.
+     *
+     * @param node             representing the event.
+     * @param relationshipType to use when attaching the event to the time tree.
+     * @param direction        to use when attaching the event to the time tree, from the time instant's point of view.
+     *                         Must not be {@link Direction#BOTH}.
+     * @param timeInstant      to attach the event to.
+     */
+    public EventToAttach(Node node, RelationshipType relationshipType, Direction direction, TimeInstant timeInstant) {
+        if (node == null || relationshipType == null || direction == null || timeInstant == null) {
+            throw new IllegalArgumentException("Event node, relationship type, direction and time instant must be specified");
+        }
+
+        if (Direction.BOTH.equals(direction)) {
+            throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
+        }
+
+        this.node = node;
+        this.relationshipType = relationshipType;
+        this.direction = direction;
+        this.timeInstant = timeInstant;
+    }
+
+    /**
+     * Get the node representing the event.
+     *
+     * @return event node.
+     */
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Get the relationship type between the event and the time instant.
+     *
+     * @return the relationship between the event and the time instant.
+     */
+    public RelationshipType getRelationshipType() {
+        return relationshipType;
+    }
+
+    /**
+     * Get the direction of the relationship between the time instant and the event from the time instant's point of view.
+     *
+     * @return the relationship direction between the time instant and the event.
+     */
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Get the time instant to attach the event to.
+     *
+     * @return time instant.
+     */
+    public TimeInstant getTimeInstant() {
+        return timeInstant;
+    }
+}
@@ -18,6 +18,8 @@ package com.graphaware.module.timetree.domain;
 
 import com.graphaware.common.log.LoggerFactory;
 import org.joda.time.DateTimeFieldType;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.logging.Log;
@@ -65,6 +67,18 @@ public enum Resolution {
         return dateTimeFieldType;
     }
 
+    /**
+     * Truncate the given time to this resolution, i.e. find the beginning of the instant of this resolution that the
+     * given time falls into.
+     *
+     * @param time     in ms since 1/1/1970.
+     * @param timeZone in which the time is interpreted.
+     * @return beginning of the instant in ms since 1/1/1970.
+     */
+    public long truncate(long time, DateTimeZone timeZone) {
+        return dateTimeFieldType.getField(ISOChronology.getInstance(timeZone)).roundFloor(time);
+    }
+
     /**
      * Get the resolution one level below this resolution.
      *
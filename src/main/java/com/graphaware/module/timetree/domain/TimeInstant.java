@@ -18,9 +18,8 @@ package com.graphaware.module.timetree.domain;
 import com.graphaware.module.timetree.api.TimeInstantVO;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.joda.time.MutableDateTime;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.TimeZone;
 
@@ -84,10 +83,7 @@ public class TimeInstant {
      * @return next instant.
      */
     public TimeInstant next() {
-        MutableDateTime time = new MutableDateTime(getTime());
-        time.add(getResolution().getDateTimeFieldType().getDurationType(), 1);
-
-        return new TimeInstant(time.getMillis(), getTimezone(), getResolution());
+        return new TimeInstant(CalendarFields.forZone(getTimezone()).next(getTime(), getResolution()), getTimezone(), getResolution());
     }
 
     private TimeInstant(long time, DateTimeZone timezone, Resolution resolution) {
@@ -130,9 +126,7 @@ public class TimeInstant {
      * @return true iff this instant is after the given one.
      */
     public boolean isAfter(TimeInstant timeInstant) {
-        DateTime thisTime = new DateTime(getTime());
-        DateTime thatTime = new DateTime(timeInstant.getTime());
-        return thisTime.isAfter(thatTime);
+        return getTime() > timeInstant.getTime();
     }
 
     /**
@@ -157,11 +151,15 @@ public class TimeInstant {
     public static List<TimeInstant> getInstants(TimeInstant startTime, TimeInstant endTime) {
         validateRange(startTime, endTime);
 
-        List<TimeInstant> result = new LinkedList<>();
+        List<TimeInstant> result = new ArrayList<>();
+
+        CalendarFields calendarFields = CalendarFields.forZone(startTime.getTimezone());
+        Resolution resolution = startTime.getResolution();
+        long time = startTime.getTime();
 
-        while (!startTime.isAfter(endTime)) {
-            result.add(new TimeInstant(startTime.getTime(), startTime.getTimezone(), startTime.getResolution()));
-            startTime = startTime.next();
+        while (time <= endTime.getTime()) {
+            result.add(new TimeInstant(time, startTime.getTimezone(), resolution));
+            time = calendarFields.next(time, resolution);
         }
 
         return result;
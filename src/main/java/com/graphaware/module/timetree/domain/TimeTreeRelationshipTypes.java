@@ -26,7 +26,7 @@ import java.util.List;
  */
 public enum TimeTreeRelationshipTypes implements RelationshipType {
 
-    FIRST, LAST, NEXT, CHILD;
+    FIRST, LAST, NEXT, CHILD, BUCKET;
 
     /**
      * Get all TimeTree relationship names
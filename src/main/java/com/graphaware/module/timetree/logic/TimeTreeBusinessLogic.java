@@ -15,9 +15,8 @@
  */
 package com.graphaware.module.timetree.logic;
 
-import com.graphaware.module.timetree.CustomRootTimeTree;
-import com.graphaware.module.timetree.SingleTimeTree;
 import com.graphaware.module.timetree.TimeTree;
+import com.graphaware.module.timetree.TimeTreeRegistry;
 import com.graphaware.module.timetree.api.TimeInstantVO;
 import com.graphaware.module.timetree.domain.TimeInstant;
 import java.util.List;
@@ -31,11 +30,13 @@ import org.springframework.stereotype.Component;
 public class TimeTreeBusinessLogic {
 
     private final GraphDatabaseService database;
+    private final TimeTreeRegistry registry;
     private final TimeTree timeTree;
 
     public TimeTreeBusinessLogic(GraphDatabaseService database) {
         this.database = database;
-        this.timeTree = new SingleTimeTree(database);
+        this.registry = TimeTreeRegistry.forDatabase(database);
+        this.timeTree = registry.getDefaultTimeTree();
     }
 
     public Node getInstant(long time, String resolution, String timezone) throws NotFoundException {
@@ -87,7 +88,7 @@ public class TimeTreeBusinessLogic {
       TimeInstant timeInstant = TimeInstant.fromValueObject(new TimeInstantVO(time, resolution, timezone));
       Node instant;
       try (Transaction tx = database.beginTx()) {
-          instant = new CustomRootTimeTree(database.getNodeById(rootNodeId)).getInstant(timeInstant);
+          instant = registry.getTimeTree(rootNodeId).getInstant(timeInstant);
           tx.success();
       }
       if (instant == null) {
@@ -100,7 +101,7 @@ public class TimeTreeBusinessLogic {
       TimeInstant timeInstant = TimeInstant.fromValueObject(new TimeInstantVO(time, resolution, timezone));
       Node instant;
       try (Transaction tx = database.beginTx()) {
-          instant = new CustomRootTimeTree(database.getNodeById(rootNodeId)).getOrCreateInstant(timeInstant);
+          instant = registry.getTimeTree(rootNodeId).getOrCreateInstant(timeInstant);
           tx.success();
       }
         return instant;
@@ -111,7 +112,7 @@ public class TimeTreeBusinessLogic {
       TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
       List<Node> nodes;
       try (Transaction tx = database.beginTx()) {
-          nodes = new CustomRootTimeTree(database.getNodeById(rootNodeId)).getInstants(startTimeInstant, endTimeInstant);
+          nodes = registry.getTimeTree(rootNodeId).getInstants(startTimeInstant, endTimeInstant);
           tx.success();
       }
         return nodes;
@@ -122,7 +123,7 @@ public class TimeTreeBusinessLogic {
       TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
       List<Node> nodes;
       try (Transaction tx = database.beginTx()) {
-          nodes = new CustomRootTimeTree(database.getNodeById(rootNodeId)).getOrCreateInstants(startTimeInstant, endTimeInstant);
+          nodes = registry.getTimeTree(rootNodeId).getOrCreateInstants(startTimeInstant, endTimeInstant);
           tx.success();
       }
         return nodes;
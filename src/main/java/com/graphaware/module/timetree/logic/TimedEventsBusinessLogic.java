@@ -15,13 +15,18 @@
  */
 package com.graphaware.module.timetree.logic;
 
-import com.graphaware.module.timetree.CustomRootTimeTree;
+import com.graphaware.module.timetree.ResumableEventIterator;
 import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.TimeTreeRegistry;
 import com.graphaware.module.timetree.TimedEvents;
 import com.graphaware.module.timetree.api.TimeInstantVO;
 import com.graphaware.module.timetree.api.TimedEventVO;
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventPage;
+import com.graphaware.module.timetree.domain.EventToAttach;
 import com.graphaware.module.timetree.domain.TimeInstant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -36,10 +41,12 @@ public class TimedEventsBusinessLogic {
 
     private final GraphDatabaseService database;
     private final TimedEvents timedEvents;
+    private final TimeTreeRegistry registry;
 
     public TimedEventsBusinessLogic(GraphDatabaseService database, TimedEvents timedEvents) {
         this.database = database;
         this.timedEvents = timedEvents;
+        this.registry = TimeTreeRegistry.forDatabase(database);
     }
 
     public List<Event> getEvents(long time, String resolution, String timezone, Collection<String> relationshipTypes, String direction) {
@@ -53,13 +60,15 @@ public class TimedEventsBusinessLogic {
     }
     
     public List<Event> getEvents(long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction) {
-      TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
-      TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
-      List<Event> events;
-      try (Transaction tx = database.beginTx()) {
-          events = timedEvents.getEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
-          tx.success();
-      }
+        return getEvents(startTime, endTime, resolution, timezone, null, relationshipTypes, direction);
+    }
+
+    public List<Event> getEvents(long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction) {
+        List<Event> events;
+        try (Transaction tx = database.beginTx()) {
+            events = getEvents(timedEvents, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction);
+            tx.success();
+        }
         return events;
     }
     
@@ -67,25 +76,170 @@ public class TimedEventsBusinessLogic {
       TimeInstant timeInstant = TimeInstant.fromValueObject(new TimeInstantVO(time, resolution, timezone));
       List<Event> events;
       try (Transaction tx = database.beginTx()) {
-          CustomRootTimeTree timeTree = new CustomRootTimeTree(database.getNodeById(rootNodeId));
-          events = new TimeTreeBackedEvents(timeTree).getEvents(timeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+          events = timedEventsFor(rootNodeId).getEvents(timeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
           tx.success();
       }
         return events;
     }
     
     public List<Event> getEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction) {
-      TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
-      TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
-      List<Event> events;
-      try (Transaction tx = database.beginTx()) {
-          CustomRootTimeTree timeTree = new CustomRootTimeTree(database.getNodeById(rootNodeId));
-          events = new TimeTreeBackedEvents(timeTree).getEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
-          tx.success();
-      }
+        return getEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, null, relationshipTypes, direction);
+    }
+
+    public List<Event> getEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction) {
+        List<Event> events;
+        try (Transaction tx = database.beginTx()) {
+            events = getEvents(timedEventsFor(rootNodeId), startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction);
+            tx.success();
+        }
         return events;
     }
+
+    private List<Event> getEvents(TimedEvents timedEvents, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+
+        //the caller's transaction has only just begun, there's nothing uncommitted to miss
+        if (timestampProperty == null) {
+            return timedEvents.getCommittedEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+        }
+
+        return timedEvents.getEvents(startTimeInstant, endTimeInstant, timestampProperty, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+    }
     
+    public EventPage getEvents(long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction, int limit, String cursor) {
+        return getEvents(startTime, endTime, resolution, timezone, null, relationshipTypes, direction, limit, cursor);
+    }
+
+    public EventPage getEvents(long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, int limit, String cursor) {
+        EventPage page;
+        try (Transaction tx = database.beginTx()) {
+            page = getEvents(timedEvents, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, limit, cursor);
+            tx.success();
+        }
+        return page;
+    }
+
+    public EventPage getEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction, int limit, String cursor) {
+        return getEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, null, relationshipTypes, direction, limit, cursor);
+    }
+
+    public EventPage getEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, int limit, String cursor) {
+        EventPage page;
+        try (Transaction tx = database.beginTx()) {
+            page = getEvents(timedEventsFor(rootNodeId), startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, limit, cursor);
+            tx.success();
+        }
+        return page;
+    }
+
+    private EventPage getEvents(TimedEvents timedEvents, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, int limit, String cursor) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+
+        if (timestampProperty == null) {
+            return timedEvents.getEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction), limit, cursor);
+        }
+
+        return timedEvents.getEvents(startTimeInstant, endTimeInstant, timestampProperty, getRelationshipTypes(relationshipTypes), resolveDirection(direction), limit, cursor);
+    }
+
+    public List<Event> getLatestEvents(long time, String resolution, String timezone, Collection<String> relationshipTypes, String direction, int limit) {
+        TimeInstant timeInstant = TimeInstant.fromValueObject(new TimeInstantVO(time, resolution, timezone));
+        List<Event> events;
+        try (Transaction tx = database.beginTx()) {
+            events = timedEvents.getLatestEvents(timeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction), limit);
+            tx.success();
+        }
+        return events;
+    }
+
+    public List<Event> getLatestEventsCustomRoot(long rootNodeId, long time, String resolution, String timezone, Collection<String> relationshipTypes, String direction, int limit) {
+        TimeInstant timeInstant = TimeInstant.fromValueObject(new TimeInstantVO(time, resolution, timezone));
+        List<Event> events;
+        try (Transaction tx = database.beginTx()) {
+            events = timedEventsFor(rootNodeId).getLatestEvents(timeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction), limit);
+            tx.success();
+        }
+        return events;
+    }
+
+    public long countEvents(long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+        long count;
+        try (Transaction tx = database.beginTx()) {
+            count = timedEvents.countEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+            tx.success();
+        }
+        return count;
+    }
+
+    public long countEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+        long count;
+        try (Transaction tx = database.beginTx()) {
+            count = timedEventsFor(rootNodeId).countEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+            tx.success();
+        }
+        return count;
+    }
+
+    public Aggregate aggregateEvents(long startTime, long endTime, String resolution, String timezone, String property, Collection<String> relationshipTypes, String direction) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+        Aggregate aggregate;
+        try (Transaction tx = database.beginTx()) {
+            aggregate = timedEvents.aggregateEvents(startTimeInstant, endTimeInstant, property, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+            tx.success();
+        }
+        return aggregate;
+    }
+
+    public Aggregate aggregateEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, String property, Collection<String> relationshipTypes, String direction) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+        Aggregate aggregate;
+        try (Transaction tx = database.beginTx()) {
+            aggregate = timedEventsFor(rootNodeId).aggregateEvents(startTimeInstant, endTimeInstant, property, getRelationshipTypes(relationshipTypes), resolveDirection(direction));
+            tx.success();
+        }
+        return aggregate;
+    }
+
+    public ResumableEventIterator iterateEvents(long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction, String cursor) {
+        return iterateEvents(startTime, endTime, resolution, timezone, null, relationshipTypes, direction, cursor);
+    }
+
+    public ResumableEventIterator iterateEvents(long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, String cursor) {
+        return iterateEvents(timedEvents, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, cursor);
+    }
+
+    public ResumableEventIterator iterateEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, Collection<String> relationshipTypes, String direction, String cursor) {
+        return iterateEventsCustomRoot(rootNodeId, startTime, endTime, resolution, timezone, null, relationshipTypes, direction, cursor);
+    }
+
+    public ResumableEventIterator iterateEventsCustomRoot(long rootNodeId, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, String cursor) {
+        TimedEvents customTimedEvents;
+        try (Transaction tx = database.beginTx()) {
+            customTimedEvents = timedEventsFor(rootNodeId);
+            tx.success();
+        }
+        return iterateEvents(customTimedEvents, startTime, endTime, resolution, timezone, timestampProperty, relationshipTypes, direction, cursor);
+    }
+
+    private ResumableEventIterator iterateEvents(TimedEvents timedEvents, long startTime, long endTime, String resolution, String timezone, String timestampProperty, Collection<String> relationshipTypes, String direction, String cursor) {
+        TimeInstant startTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(startTime, resolution, timezone));
+        TimeInstant endTimeInstant = TimeInstant.fromValueObject(new TimeInstantVO(endTime, resolution, timezone));
+
+        if (timestampProperty == null) {
+            return timedEvents.iterateEvents(startTimeInstant, endTimeInstant, getRelationshipTypes(relationshipTypes), resolveDirection(direction), cursor);
+        }
+
+        return timedEvents.iterateEvents(startTimeInstant, endTimeInstant, timestampProperty, getRelationshipTypes(relationshipTypes), resolveDirection(direction), cursor);
+    }
+
     public EventAttachedResult attachEvent(TimedEventVO event) {
         EventAttachedResult res;
         event.validate();
@@ -131,8 +285,7 @@ public class TimedEventsBusinessLogic {
 
         boolean attached;
         try (Transaction tx = database.beginTx()) {
-            CustomRootTimeTree timeTree = new CustomRootTimeTree(root);
-            TimedEvents customTimedEvents = new TimeTreeBackedEvents(timeTree);
+            TimedEvents customTimedEvents = timedEventsFor(root.getId());
             attached = customTimedEvents.attachEvent(
                     eventNode,
                     relationshipType,
@@ -145,6 +298,56 @@ public class TimedEventsBusinessLogic {
         return attached;
     }
 
+    public List<EventAttachedResult> attachEvents(List<TimedEventVO> events, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        for (TimedEventVO event : events) {
+            event.validate();
+        }
+
+        List<EventToAttach> toAttach = new ArrayList<>(events.size());
+        for (int from = 0; from < events.size(); from += batchSize) {
+            try (Transaction tx = database.beginTx()) {
+                for (TimedEventVO event : events.subList(from, Math.min(from + batchSize, events.size()))) {
+                    toAttach.add(new EventToAttach(
+                            event.getEvent().getNode().producePropertyContainer(database),
+                            RelationshipType.withName(event.getEvent().getRelationshipType()),
+                            resolveDirection(event.getEvent().getDirection()),
+                            TimeInstant.fromValueObject(event.getTimeInstant())));
+                }
+                tx.success();
+            }
+        }
+
+        List<Boolean> attached = timedEvents.attachEvents(toAttach, batchSize);
+
+        List<EventAttachedResult> result = new ArrayList<>(attached.size());
+        for (int i = 0; i < attached.size(); i++) {
+            result.add(new EventAttachedResult(toAttach.get(i).getNode().getId(), attached.get(i)));
+        }
+        return result;
+    }
+
+    public List<Boolean> attachEvents(List<EventToAttach> events) {
+        List<Boolean> attached;
+        try (Transaction tx = database.beginTx()) {
+            attached = timedEvents.attachEvents(events);
+            tx.success();
+        }
+        return attached;
+    }
+
+    public List<Boolean> attachEventsWithCustomRoot(Node root, List<EventToAttach> events) {
+        List<Boolean> attached;
+        try (Transaction tx = database.beginTx()) {
+            attached = timedEventsFor(root.getId()).attachEvents(events);
+            tx.success();
+        }
+        return attached;
+    }
+
     private Set<RelationshipType> getRelationshipTypes(Collection<String> strings) {
         if (strings == null) {
             return null;
@@ -193,4 +396,8 @@ public class TimedEventsBusinessLogic {
         }
         
     }
+
+    private TimedEvents timedEventsFor(long rootNodeId) {
+        return new TimeTreeBackedEvents(registry.getTimeTree(rootNodeId), registry);
+    }
 }
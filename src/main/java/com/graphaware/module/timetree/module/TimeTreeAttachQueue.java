@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.module;
+
+import com.graphaware.common.log.LoggerFactory;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Attaches events to the tree asynchronously, so that transactions creating or changing events neither wait for the
+ * tree to be modified nor get serialized on the locks the tree takes.
+ * <p>
+ * Transactions only mark the events to attach with the {@link #PENDING_LABEL} label, which is durable, and hand their
+ * IDs over to a bounded in-memory queue once committed. A single background thread attaches queued events in batches
+ * of up to {@link #EVENTS_PER_TRANSACTION} per transaction and removes the label. A batch that fails is retried up to
+ * {@link #MAX_ATTEMPTS} times; if it keeps failing, its events are attached one by one, so that a single bad event
+ * doesn't hold up the others. Events that can't be attached keep the label.
+ * <p>
+ * When the queue is full, a committing thread waits for up to {@link #OFFER_TIMEOUT} ms for space, which slows
+ * producers down to the pace of the tree. If there's still no space, the events are left to a catch-up, which finds
+ * pending events by their label. A catch-up also runs when the queue is started, so that events committed but not
+ * attached before a shutdown or a crash are attached eventually.
+ */
+public class TimeTreeAttachQueue {
+
+    private static final Log LOG = LoggerFactory.getLogger(TimeTreeAttachQueue.class);
+
+    public static final Label PENDING_LABEL = Label.label("TimeTreePending");
+
+    static final int EVENTS_PER_TRANSACTION = 1000;
+    static final int MAX_ATTEMPTS = 3;
+    static final long OFFER_TIMEOUT = 100;
+    static final long INTERVAL = 100;
+
+    private final GraphDatabaseService database;
+    private final Consumer<Node> attacher;
+    private final BlockingQueue<Entry> queue;
+
+    private final AtomicBoolean catchUpNeeded = new AtomicBoolean(true);
+    private final AtomicLong attached = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    private volatile boolean running;
+    private ExecutorService executor;
+
+    /**
+     * Create a new queue.
+     *
+     * @param database where the events live.
+     * @param capacity maximum number of events waiting in memory. Must be positive.
+     * @param attacher attaching a single event to the tree, called within a transaction.
+     */
+    public TimeTreeAttachQueue(GraphDatabaseService database, int capacity, Consumer<Node> attacher) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+
+        this.database = database;
+        this.attacher = attacher;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Mark an event as waiting to be attached. Must be called within the transaction that has created or changed the
+     * event.
+     *
+     * @param event to mark.
+     */
+    public void markPending(Node event) {
+        event.addLabel(PENDING_LABEL);
+    }
+
+    /**
+     * Queue events marked by a transaction that has been committed. Waits for space in the queue for a short while if
+     * it is full, leaving the events to a catch-up if there's still no space.
+     *
+     * @param eventIds IDs of the events to queue.
+     */
+    public void enqueue(Collection<Long> eventIds) {
+        long now = System.currentTimeMillis();
+
+        for (Long eventId : eventIds) {
+            boolean queued;
+            try {
+                queued = queue.offer(new Entry(eventId, now), OFFER_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+
+            if (!queued) {
+                overflows.incrementAndGet();
+                catchUpNeeded.set(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start attaching events in the background, beginning with a catch-up of events left pending.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        LOG.info("Attaching events to TimeTree asynchronously, queue capacity %s", queue.remainingCapacity() + queue.size());
+
+        running = true;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TimeTreeAttachQueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        attachQueued();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        LOG.warn("Failed to attach events to TimeTree, will retry in " + INTERVAL + " ms", e);
+                        catchUpNeeded.set(true);
+                        sleep(INTERVAL);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop attaching events and wait for a running batch to finish. Events still queued stay marked as pending and are
+     * attached by the catch-up after the next start.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Asynchronous attachment of events did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor = null;
+        queue.clear();
+        catchUpNeeded.set(true);
+    }
+
+    /**
+     * Attach all events queued or left pending so far on the calling thread, without waiting for the background thread.
+     */
+    public void attachPending() {
+        List<Entry> entries = new ArrayList<>();
+        queue.drainTo(entries);
+        attach(ids(entries));
+
+        catchUpNeeded.set(false);
+        catchUp();
+    }
+
+    /**
+     * @return number of events waiting in the queue.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return time (ms) the oldest event waiting in the queue has been waiting for, 0 if the queue is empty.
+     */
+    public long getLag() {
+        Entry oldest = queue.peek();
+        return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.queuedAt);
+    }
+
+    /**
+     * @return number of events attached so far.
+     */
+    public long getAttachedCount() {
+        return attached.get();
+    }
+
+    /**
+     * @return number of batches retried after a failure so far.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of events that couldn't be attached so far and have been left pending.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of times the queue has been full, so that events have been left to a catch-up.
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    private void attachQueued() throws InterruptedException {
+        if (catchUpNeeded.getAndSet(false)) {
+            catchUp();
+        }
+
+        Entry first = queue.poll(INTERVAL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        entries.add(first);
+        queue.drainTo(entries, EVENTS_PER_TRANSACTION - 1);
+
+        attach(ids(entries));
+    }
+
+    /**
+     * Attach all events marked as pending, in batches. Events that fail are skipped, so that the catch-up terminates.
+     */
+    private void catchUp() {
+        Set<Long> failures = new HashSet<>();
+
+        while (true) {
+            List<Long> batch = new ArrayList<>();
+
+            try (Transaction tx = database.beginTx()) {
+                try (ResourceIterator<Node> pending = database.findNodes(PENDING_LABEL)) {
+                    while (batch.size() < EVENTS_PER_TRANSACTION && pending.hasNext()) {
+                        long id = pending.next().getId();
+                        if (!failures.contains(id)) {
+                            batch.add(id);
+                        }
+                    }
+                }
+                tx.success();
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            LOG.info("Catching up with " + batch.size() + " pending events");
+
+            failures.addAll(attach(batch));
+        }
+    }
+
+    /**
+     * Attach a batch of events, retrying on failure and attaching them one by one as the last resort.
+     *
+     * @param eventIds IDs of the events.
+     * @return IDs of the events that couldn't be attached.
+     */
+    private List<Long> attach(List<Long> eventIds) {
+        if (eventIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                attached.addAndGet(attachInTransaction(eventIds));
+                return Collections.emptyList();
+            } catch (RuntimeException e) {
+                LOG.warn("Attempt " + attempt + " to attach " + eventIds.size() + " events to TimeTree failed", e);
+                if (attempt < MAX_ATTEMPTS) {
+                    retries.incrementAndGet();
+                    sleep(INTERVAL * attempt);
+                }
+            }
+        }
+
+        List<Long> failures = new ArrayList<>();
+        for (Long eventId : eventIds) {
+            try {
+                attached.addAndGet(attachInTransaction(Collections.singletonList(eventId)));
+            } catch (RuntimeException e) {
+                LOG.error("Could not attach event with ID " + eventId + " to TimeTree, it stays labelled " + PENDING_LABEL.name(), e);
+                failed.incrementAndGet();
+                failures.add(eventId);
+            }
+        }
+
+        return failures;
+    }
+
+    private int attachInTransaction(List<Long> eventIds) {
+        int count = 0;
+
+        try (Transaction tx = database.beginTx()) {
+            for (Long eventId : eventIds) {
+                Node event;
+                try {
+                    event = database.getNodeById(eventId);
+                } catch (NotFoundException e) {
+                    //deleted in the meantime
+                    continue;
+                }
+
+                //lock before checking, so that an event queued more than once is attached only once
+                tx.acquireWriteLock(event);
+                if (!event.hasLabel(PENDING_LABEL)) {
+                    continue;
+                }
+
+                attacher.accept(event);
+                event.removeLabel(PENDING_LABEL);
+                count++;
+            }
+            tx.success();
+        }
+
+        return count;
+    }
+
+    private static List<Long> ids(List<Entry> entries) {
+        List<Long> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            result.add(entry.eventId);
+        }
+        return result;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Entry {
+
+        private final long eventId;
+        private final long queuedAt;
+
+        private Entry(long eventId, long queuedAt) {
+            this.eventId = eventId;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.graphaware.module.timetree.module;
 import com.graphaware.common.policy.InclusionPolicies;
 import com.graphaware.common.policy.fluent.IncludeNodes;
 import com.graphaware.common.policy.fluent.IncludeRelationships;
+import com.graphaware.module.timetree.EventBuckets;
 import com.graphaware.module.timetree.domain.Resolution;
 import com.graphaware.runtime.config.BaseTxDrivenModuleConfiguration;
 import com.graphaware.runtime.policy.InclusionPoliciesFactory;
@@ -43,6 +44,16 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
     private static final RelationshipType DEFAULT_RELATIONSHIP_TYPE = RelationshipType.withName("AT_TIME");
     private static final Direction DEFAULT_DIRECTION = Direction.INCOMING;
     private static final boolean DEFAULT_AUTO_ATTACH = false;
+    private static final long DEFAULT_PRE_ALLOCATION_HORIZON = 0;
+    private static final long DEFAULT_PRE_ALLOCATION_INTERVAL = 60 * 1000;
+    private static final boolean DEFAULT_EVENT_COUNTING = false;
+    private static final String DEFAULT_AGGREGATED_PROPERTY = null;
+    private static final int DEFAULT_PARALLELISM = 0;
+    private static final int DEFAULT_BUCKET_THRESHOLD = 0;
+    private static final int DEFAULT_REFINEMENT_THRESHOLD = 0;
+    private static final Resolution DEFAULT_REFINEMENT_RESOLUTION = null;
+    private static final boolean DEFAULT_EVENT_ORDERING = false;
+    private static final int DEFAULT_ATTACH_QUEUE_CAPACITY = 0;
 
     private static final InclusionPolicies DEFAULT_INCLUSION_POLICIES =
             InclusionPoliciesFactory.allBusiness()
@@ -56,6 +67,17 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
     private String relationshipType;
     private Direction direction;
     private boolean autoAttach;
+    private long preAllocationHorizon;
+    private long preAllocationInterval;
+    private boolean eventCounting;
+    private String aggregatedProperty;
+    private int parallelism;
+    private int bucketThreshold;
+    private int bucketCount;
+    private int refinementThreshold;
+    private Resolution refinementResolution;
+    private boolean eventOrdering;
+    private int attachQueueCapacity;
 
     /**
      * Create a new configuration.
@@ -74,8 +96,20 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @param relationshipType           with which the events are attached to the tree.
      * @param direction                  with which the events are attached to the tree (from the tree's point of view).
      * @param autoAttach                 <code>true</code> iff events should be automatically attached upon first module run and when config changes.
+     * @param preAllocationHorizon       how far into the future (in ms) instants at the configured resolution should be created ahead of time.
+     *                                   0 disables pre-allocation.
+     * @param preAllocationInterval      how often (in ms) the pre-allocated instants should be topped up.
+     * @param eventCounting              <code>true</code> iff the number of attached events should be maintained on time instants.
+     * @param aggregatedProperty         numeric property of the event nodes to maintain aggregates of on time instants, <code>null</code> for none.
+     * @param parallelism                maximum number of threads collecting events of a range in parallel, 0 for sequential collection.
+     * @param bucketThreshold            degree of a time instant, from which new events are attached to its buckets, 0 for no bucketing.
+     * @param bucketCount                number of buckets of a time instant whose degree has reached the bucket threshold.
+     * @param refinementThreshold        number of events attached to a time instant, from which it is refined into children, 0 for no refinement.
+     * @param refinementResolution       finest resolution time instants are refined into, <code>null</code> for no refinement.
+     * @param eventOrdering              <code>true</code> iff events attached to each time instant should be kept in chronological order.
+     * @param attachQueueCapacity        maximum number of events waiting to be attached asynchronously, 0 for synchronous attachment.
      */
-    protected TimeTreeConfiguration(InclusionPolicies inclusionPolicies, long initializeUntil, String timestampProperty, String customTimeTreeRootProperty, Resolution resolution, DateTimeZone timeZone, RelationshipType relationshipType, Direction direction, boolean autoAttach) {
+    protected TimeTreeConfiguration(InclusionPolicies inclusionPolicies, long initializeUntil, String timestampProperty, String customTimeTreeRootProperty, Resolution resolution, DateTimeZone timeZone, RelationshipType relationshipType, Direction direction, boolean autoAttach, long preAllocationHorizon, long preAllocationInterval, boolean eventCounting, String aggregatedProperty, int parallelism, int bucketThreshold, int bucketCount, int refinementThreshold, Resolution refinementResolution, boolean eventOrdering, int attachQueueCapacity) {
         super(inclusionPolicies, initializeUntil);
         this.timestampProperty = timestampProperty;
         this.customTimeTreeRootProperty = customTimeTreeRootProperty;
@@ -84,6 +118,17 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
         this.relationshipType = relationshipType.name();
         this.direction = direction;
         this.autoAttach = autoAttach;
+        this.preAllocationHorizon = preAllocationHorizon;
+        this.preAllocationInterval = preAllocationInterval;
+        this.eventCounting = eventCounting;
+        this.aggregatedProperty = aggregatedProperty;
+        this.parallelism = parallelism;
+        this.bucketThreshold = bucketThreshold;
+        this.bucketCount = bucketCount;
+        this.refinementThreshold = refinementThreshold;
+        this.refinementResolution = refinementResolution;
+        this.eventOrdering = eventOrdering;
+        this.attachQueueCapacity = attachQueueCapacity;
     }
 
     /**
@@ -92,15 +137,23 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * default timestamp property = {@link #DEFAULT_TIMESTAMP_PROPERTY},
      * default customTimeTree root property = {@link #DEFAULT_CUSTOM_TIMETREE_ROOT_PROPERTY},
      * default resolution = {@link #DEFAULT_RESOLUTION},
-     * default time zone = {@link #DEFAULT_TIME_ZONE}, and
-     * default relationship type = {@link #DEFAULT_RELATIONSHIP_TYPE}
+     * default time zone = {@link #DEFAULT_TIME_ZONE},
+     * default relationship type = {@link #DEFAULT_RELATIONSHIP_TYPE},
+     * no pre-allocation of future instants,
+     * no event counting,
+     * no aggregated property,
+     * sequential collection of events,
+     * no bucketing of events attached to hot time instants,
+     * no refinement of dense time instants,
+     * no ordering of events attached to the same time instant, and
+     * synchronous attachment of events
      * <p>
      * Change the configuration by using the fluent with* methods.
      *
      * @return default config.
      */
     public static TimeTreeConfiguration defaultConfiguration() {
-        return new TimeTreeConfiguration(DEFAULT_INCLUSION_POLICIES, ALWAYS, DEFAULT_TIMESTAMP_PROPERTY, DEFAULT_CUSTOM_TIMETREE_ROOT_PROPERTY, DEFAULT_RESOLUTION, DEFAULT_TIME_ZONE, DEFAULT_RELATIONSHIP_TYPE, DEFAULT_DIRECTION, DEFAULT_AUTO_ATTACH);
+        return new TimeTreeConfiguration(DEFAULT_INCLUSION_POLICIES, ALWAYS, DEFAULT_TIMESTAMP_PROPERTY, DEFAULT_CUSTOM_TIMETREE_ROOT_PROPERTY, DEFAULT_RESOLUTION, DEFAULT_TIME_ZONE, DEFAULT_RELATIONSHIP_TYPE, DEFAULT_DIRECTION, DEFAULT_AUTO_ATTACH, DEFAULT_PRE_ALLOCATION_HORIZON, DEFAULT_PRE_ALLOCATION_INTERVAL, DEFAULT_EVENT_COUNTING, DEFAULT_AGGREGATED_PROPERTY, DEFAULT_PARALLELISM, DEFAULT_BUCKET_THRESHOLD, EventBuckets.DEFAULT_BUCKET_COUNT, DEFAULT_REFINEMENT_THRESHOLD, DEFAULT_REFINEMENT_RESOLUTION, DEFAULT_EVENT_ORDERING, DEFAULT_ATTACH_QUEUE_CAPACITY);
     }
 
     /**
@@ -110,7 +163,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance.
      */
     public TimeTreeConfiguration withTimestampProperty(final String timestampProperty) {
-        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), timestampProperty, getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), timestampProperty, getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -120,7 +173,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance
      */
     public TimeTreeConfiguration withCustomTimeTreeRootProperty(final String customTimeTreeRootProperty) {
-        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), customTimeTreeRootProperty, getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), customTimeTreeRootProperty, getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -130,7 +183,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance.
      */
     public TimeTreeConfiguration withResolution(Resolution resolution) {
-        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), resolution, getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), resolution, getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -140,7 +193,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance.
      */
     public TimeTreeConfiguration withTimeZone(DateTimeZone timeZone) {
-        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), timeZone, getRelationshipType(), getDirection(), isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), timeZone, getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -150,7 +203,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance.
      */
     public TimeTreeConfiguration withRelationshipType(final RelationshipType relationshipType) {
-        return new TimeTreeConfiguration(getInclusionPolicies().with(IncludeRelationships.all().with(relationshipType)), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), relationshipType, getDirection(), isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies().with(IncludeRelationships.all().with(relationshipType)), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), relationshipType, getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -163,7 +216,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
         if (!Direction.INCOMING.equals(direction) && !Direction.OUTGOING.equals(direction)) {
             throw new IllegalArgumentException("Direction must be INCOMING or OUTGOING!");
         }
-        return new TimeTreeConfiguration(getInclusionPolicies().with(IncludeRelationships.all().with(relationshipType)), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), direction, isAutoAttach());
+        return new TimeTreeConfiguration(getInclusionPolicies().with(IncludeRelationships.all().with(relationshipType)), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), direction, isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     /**
@@ -173,7 +226,143 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
      * @return new instance.
      */
     public TimeTreeConfiguration withAutoAttach(final boolean autoAttach) {
-        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), autoAttach);
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), autoAttach, getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different pre-allocation horizon.
+     *
+     * @param preAllocationHorizon of the new instance, i.e. how far into the future (in ms) instants should be created
+     *                             ahead of time. 0 disables pre-allocation.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withPreAllocationHorizon(final long preAllocationHorizon) {
+        if (preAllocationHorizon < 0) {
+            throw new IllegalArgumentException("Pre-allocation horizon must not be negative!");
+        }
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), preAllocationHorizon, getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different pre-allocation interval.
+     *
+     * @param preAllocationInterval of the new instance, i.e. how often (in ms) pre-allocated instants are topped up.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withPreAllocationInterval(final long preAllocationInterval) {
+        if (preAllocationInterval <= 0) {
+            throw new IllegalArgumentException("Pre-allocation interval must be positive!");
+        }
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), preAllocationInterval, isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different setting for event counting.
+     *
+     * @param eventCounting of the new instance, i.e. whether the number of events attached to each time instant and
+     *                      its descendants should be maintained on the instant, so that events can be counted quickly.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withEventCounting(final boolean eventCounting) {
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), eventCounting, getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different aggregated property.
+     *
+     * @param aggregatedProperty of the new instance, i.e. the numeric property of the event nodes, whose count, sum,
+     *                           minimum and maximum should be maintained on each time instant and its ancestors.
+     *                           <code>null</code> for none.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withAggregatedProperty(final String aggregatedProperty) {
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), aggregatedProperty, getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different parallelism.
+     *
+     * @param parallelism of the new instance, i.e. the maximum number of threads shared by all queries collecting events
+     *                    of a range in parallel, one sub-tree per thread. 0 or 1 for sequential collection.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withParallelism(final int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("Parallelism must not be negative");
+        }
+
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), parallelism, getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different bucketing of events attached to hot
+     * time instants.
+     *
+     * @param bucketThreshold of the new instance, i.e. the degree of a time instant, from which new events are attached
+     *                        to one of its bucket nodes instead of the instant itself. 0 for no bucketing.
+     * @param bucketCount     of the new instance, i.e. the number of buckets of a time instant.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withBucketing(final int bucketThreshold, final int bucketCount) {
+        if (bucketThreshold < 0) {
+            throw new IllegalArgumentException("Bucket threshold must not be negative");
+        }
+
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive");
+        }
+
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), bucketThreshold, bucketCount, getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different refinement of dense time instants.
+     *
+     * @param refinementThreshold  of the new instance, i.e. the number of events attached to a time instant, from which
+     *                             the instant is refined into children of the next finer resolution and its events are
+     *                             moved to them in the background. 0 for no refinement.
+     * @param refinementResolution of the new instance, i.e. the finest resolution time instants are refined into. Must
+     *                             be finer than the resolution of the tree, unless there is no refinement.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withRefinement(final int refinementThreshold, final Resolution refinementResolution) {
+        if (refinementThreshold < 0) {
+            throw new IllegalArgumentException("Refinement threshold must not be negative");
+        }
+
+        if (refinementThreshold > 0 && (refinementResolution == null || refinementResolution.compareTo(getResolution()) <= 0)) {
+            throw new IllegalArgumentException("Refinement resolution must be finer than the resolution of the tree");
+        }
+
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), refinementThreshold, refinementResolution, isEventOrdering(), getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different setting for event ordering.
+     *
+     * @param eventOrdering of the new instance, i.e. whether the events attached to each time instant should be kept
+     *                      in chronological order, so that they can be returned in order without sorting them.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withEventOrdering(final boolean eventOrdering) {
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), eventOrdering, getAttachQueueCapacity());
+    }
+
+    /**
+     * Create a new instance of this {@link TimeTreeConfiguration} with different capacity of the queue of events
+     * waiting to be attached.
+     *
+     * @param attachQueueCapacity of the new instance, i.e. the maximum number of events waiting in memory to be attached
+     *                            to the tree in the background after their transactions have committed. 0 attaches
+     *                            events synchronously, within the transactions creating them.
+     * @return new instance.
+     */
+    public TimeTreeConfiguration withAttachQueueCapacity(final int attachQueueCapacity) {
+        if (attachQueueCapacity < 0) {
+            throw new IllegalArgumentException("Attach queue capacity must not be negative");
+        }
+
+        return new TimeTreeConfiguration(getInclusionPolicies(), initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), attachQueueCapacity);
     }
 
     /**
@@ -183,7 +372,7 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
     protected TimeTreeConfiguration newInstance(InclusionPolicies inclusionPolicies, long initializeUntil) {
         return new TimeTreeConfiguration(inclusionPolicies
                 .with(IncludeRelationships.all().with(getRelationshipType())),
-                initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach());
+                initializeUntil(), getTimestampProperty(), getCustomTimeTreeRootProperty(), getResolution(), getTimeZone(), getRelationshipType(), getDirection(), isAutoAttach(), getPreAllocationHorizon(), getPreAllocationInterval(), isEventCounting(), getAggregatedProperty(), getParallelism(), getBucketThreshold(), getBucketCount(), getRefinementThreshold(), getRefinementResolution(), isEventOrdering(), getAttachQueueCapacity());
     }
 
     public String getTimestampProperty() {
@@ -214,6 +403,50 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
         return autoAttach;
     }
 
+    public long getPreAllocationHorizon() {
+        return preAllocationHorizon;
+    }
+
+    public long getPreAllocationInterval() {
+        return preAllocationInterval;
+    }
+
+    public boolean isEventCounting() {
+        return eventCounting;
+    }
+
+    public String getAggregatedProperty() {
+        return aggregatedProperty;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getBucketThreshold() {
+        return bucketThreshold;
+    }
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public int getRefinementThreshold() {
+        return refinementThreshold;
+    }
+
+    public Resolution getRefinementResolution() {
+        return refinementResolution;
+    }
+
+    public boolean isEventOrdering() {
+        return eventOrdering;
+    }
+
+    public int getAttachQueueCapacity() {
+        return attachQueueCapacity;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -234,6 +467,39 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
         if (autoAttach != that.autoAttach) {
             return false;
         }
+        if (preAllocationHorizon != that.preAllocationHorizon) {
+            return false;
+        }
+        if (preAllocationInterval != that.preAllocationInterval) {
+            return false;
+        }
+        if (eventCounting != that.eventCounting) {
+            return false;
+        }
+        if (aggregatedProperty != null ? !aggregatedProperty.equals(that.aggregatedProperty) : that.aggregatedProperty != null) {
+            return false;
+        }
+        if (parallelism != that.parallelism) {
+            return false;
+        }
+        if (bucketThreshold != that.bucketThreshold) {
+            return false;
+        }
+        if (bucketCount != that.bucketCount) {
+            return false;
+        }
+        if (refinementThreshold != that.refinementThreshold) {
+            return false;
+        }
+        if (refinementResolution != that.refinementResolution) {
+            return false;
+        }
+        if (eventOrdering != that.eventOrdering) {
+            return false;
+        }
+        if (attachQueueCapacity != that.attachQueueCapacity) {
+            return false;
+        }
         if (!relationshipType.equals(that.relationshipType)) {
             return false;
         }
@@ -269,6 +535,17 @@ public class TimeTreeConfiguration extends BaseTxDrivenModuleConfiguration<TimeT
         result = 31 * result + relationshipType.hashCode();
         result = 31 * result + direction.name().hashCode();
         result = 31 * result + (autoAttach ? 1 : 0);
+        result = 31 * result + (int) (preAllocationHorizon ^ (preAllocationHorizon >>> 32));
+        result = 31 * result + (int) (preAllocationInterval ^ (preAllocationInterval >>> 32));
+        result = 31 * result + (eventCounting ? 1 : 0);
+        result = 31 * result + (aggregatedProperty != null ? aggregatedProperty.hashCode() : 0);
+        result = 31 * result + parallelism;
+        result = 31 * result + bucketThreshold;
+        result = 31 * result + bucketCount;
+        result = 31 * result + refinementThreshold;
+        result = 31 * result + (refinementResolution != null ? refinementResolution.hashCode() : 0);
+        result = 31 * result + (eventOrdering ? 1 : 0);
+        result = 31 * result + attachQueueCapacity;
         return result;
     }
 }
@@ -18,9 +18,12 @@ package com.graphaware.module.timetree.module;
 
 import com.graphaware.common.log.LoggerFactory;
 import com.graphaware.common.util.Change;
-import com.graphaware.module.timetree.CustomRootTimeTree;
-import com.graphaware.module.timetree.SingleTimeTree;
+import com.graphaware.module.timetree.EventAggregator;
+import com.graphaware.module.timetree.EventSettings;
+import com.graphaware.module.timetree.ParallelEventCollector;
+import com.graphaware.module.timetree.TimeTree;
 import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.TimeTreeRegistry;
 import com.graphaware.module.timetree.TimedEvents;
 import com.graphaware.module.timetree.domain.TimeInstant;
 import com.graphaware.runtime.config.TxDrivenModuleConfiguration;
@@ -31,28 +34,84 @@ import com.graphaware.tx.executor.batch.IterableInputBatchTransactionExecutor;
 import com.graphaware.tx.executor.batch.UnitOfWork;
 import com.graphaware.tx.executor.input.TransactionalInput;
 import com.graphaware.tx.executor.single.TransactionCallback;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.logging.Log;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 import static com.graphaware.common.util.PropertyContainerUtils.getLong;
+import static org.neo4j.graphdb.Direction.INCOMING;
 
 /**
  * A {@link com.graphaware.runtime.module.TxDrivenModule} that automatically attaches events to a {@link com.graphaware.module.timetree.TimeTree}.
  */
-public class TimeTreeModule extends BaseTxDrivenModule<Void> {
+public class TimeTreeModule extends BaseTxDrivenModule<List<Long>> {
 
     private static final Log LOG = LoggerFactory.getLogger(TimeTreeModule.class);
 
     private final TimeTreeConfiguration configuration;
-    private final TimedEvents timedEvents;
+    private final GraphDatabaseService database;
+    private final TimeTreeRegistry registry;
+    private final ParallelEventCollector parallelEventCollector;
+    private final EventSettings settings;
+    private final TimeTreeBackedEvents timedEvents;
+    private final TimeTreePreAllocator preAllocator;
+    private final TimeTreeRefiner refiner;
+    private final TimeTreeAttachQueue attachQueue;
 
     public TimeTreeModule(String moduleId, TimeTreeConfiguration configuration, GraphDatabaseService database) {
         super(moduleId);
         this.configuration = configuration;
-        this.timedEvents = new TimeTreeBackedEvents(new SingleTimeTree(database));
+        this.database = database;
+
+        this.registry = TimeTreeRegistry.forDatabase(database);
+
+        if (configuration.getParallelism() > 1) {
+            this.parallelEventCollector = new ParallelEventCollector(configuration.getParallelism());
+        } else {
+            this.parallelEventCollector = null;
+        }
+
+        this.settings = EventSettings.DEFAULT
+                .withCountingEvents(configuration.isEventCounting())
+                .withOrderingEvents(configuration.isEventOrdering())
+                .withAggregatedProperty(configuration.getAggregatedProperty())
+                .withBucketing(configuration.getBucketThreshold(), configuration.getBucketCount())
+                .withParallelEventCollector(parallelEventCollector);
+
+        registry.setEventSettings(settings);
+
+        TimeTree timeTree = registry.getDefaultTimeTree();
+        this.timedEvents = new TimeTreeBackedEvents(timeTree, settings);
+
+        if (configuration.getPreAllocationHorizon() > 0) {
+            this.preAllocator = new TimeTreePreAllocator(database, timeTree, configuration);
+        } else {
+            this.preAllocator = null;
+        }
+
+        if (configuration.getRefinementThreshold() > 0) {
+            this.refiner = new TimeTreeRefiner(database, configuration, settings);
+        } else {
+            this.refiner = null;
+        }
+
+        if (configuration.getAttachQueueCapacity() > 0) {
+            this.attachQueue = new TimeTreeAttachQueue(database, configuration.getAttachQueueCapacity(), new Consumer<Node>() {
+                @Override
+                public void accept(Node event) {
+                    createTimeTreeRelationship(event);
+                }
+            });
+        } else {
+            this.attachQueue = null;
+        }
     }
 
     /**
@@ -67,19 +126,195 @@ public class TimeTreeModule extends BaseTxDrivenModule<Void> {
      * {@inheritDoc}
      */
     @Override
-    public Void beforeCommit(ImprovedTransactionData transactionData) throws DeliberateTransactionRollbackException {
+    public void start(GraphDatabaseService database) {
+        super.start(database);
+
+        if (preAllocator != null) {
+            preAllocator.start();
+        }
+
+        if (refiner != null) {
+            refiner.start();
+        }
+
+        if (attachQueue != null) {
+            attachQueue.start();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+        if (attachQueue != null) {
+            attachQueue.stop();
+        }
+
+        if (refiner != null) {
+            refiner.stop();
+        }
+
+        if (preAllocator != null) {
+            preAllocator.stop();
+        }
+
+        if (registry.getEventSettings() == settings) {
+            registry.setEventSettings(null);
+        }
+
+        if (parallelEventCollector != null) {
+            parallelEventCollector.shutdown();
+        }
+
+        super.shutdown();
+    }
+
+    /**
+     * Report how far ahead the pre-allocation of time instants is.
+     *
+     * @return time (ms since epoch) until which all time instants have been created ahead of time,
+     * {@link TimeTreePreAllocator#NOT_ALLOCATED} if nothing has been pre-allocated (yet).
+     */
+    public long getPreAllocatedUntil() {
+        if (preAllocator == null) {
+            return TimeTreePreAllocator.NOT_ALLOCATED;
+        }
+
+        return preAllocator.getAllocatedUntil();
+    }
+
+    /**
+     * Refine all time instants that have become too dense so far, without waiting for the background refinement.
+     * Does nothing if refinement isn't configured.
+     */
+    public void refineDenseInstants() {
+        if (refiner != null) {
+            refiner.refinePending();
+        }
+    }
+
+    /**
+     * Get the queue of events waiting to be attached, e.g. to monitor how far behind the attachment is.
+     *
+     * @return the queue, null if events are attached synchronously.
+     */
+    public TimeTreeAttachQueue getAttachQueue() {
+        return attachQueue;
+    }
+
+    /**
+     * Attach all events waiting in the queue so far, without waiting for the background attachment.
+     * Does nothing if events are attached synchronously.
+     */
+    public void attachPendingEvents() {
+        if (attachQueue != null) {
+            attachQueue.attachPending();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Long> beforeCommit(ImprovedTransactionData transactionData) throws DeliberateTransactionRollbackException {
+        List<Long> pending = new ArrayList<>();
+        Map<Long, List<Relationship>> detachedFrom = findDetachedFrom(transactionData);
+        timedEvents.relationshipsDeleted(database, transactionData.getAllDeletedRelationships());
+
         for (Node created : transactionData.getAllCreatedNodes()) {
-            createTimeTreeRelationship(created);
+            attachOrMarkPending(created, pending);
         }
 
         for (Change<Node> change : transactionData.getAllChangedNodes()) {
+            updateAggregates(transactionData, change);
+
             if (shouldReattach(transactionData, change)) {
-                deleteTimeTreeRelationship(change.getPrevious());
-                createTimeTreeRelationship(change.getCurrent());
+                deleteTimeTreeRelationship(change.getCurrent());
+                attachOrMarkPending(change.getCurrent(), pending);
             }
         }
 
-        return null;
+        for (Map.Entry<Long, List<Relationship>> detached : detachedFrom.entrySet()) {
+            timedEvents.reconcile(database.getNodeById(detached.getKey()), detached.getValue(), configuration.getRelationshipType(), configuration.getDirection());
+        }
+
+        timedEvents.applyRollUps(database);
+
+        return pending;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterCommit(List<Long> pending) {
+        if (attachQueue != null && pending != null && !pending.isEmpty()) {
+            attachQueue.enqueue(pending);
+        }
+    }
+
+    private void attachOrMarkPending(Node event, List<Long> pending) {
+        if (attachQueue == null) {
+            createTimeTreeRelationship(event);
+            return;
+        }
+
+        attachQueue.markPending(event);
+        pending.add(event.getId());
+    }
+
+    /**
+     * Find the nodes (time instants or their buckets), from which events have been detached by deleting the relationships
+     * attaching them, e.g. by deleting the events, so that what is maintained on the nodes can be brought up to date.
+     * Relationships deleted by detaching events through {@link TimedEvents} are found too; reconciling their nodes once
+     * more is harmless.
+     *
+     * @param transactionData of the transaction.
+     * @return deleted relationships by the IDs of their nodes still existing after the transaction.
+     */
+    private Map<Long, List<Relationship>> findDetachedFrom(ImprovedTransactionData transactionData) {
+        Map<Long, List<Relationship>> result = new LinkedHashMap<>();
+
+        if (!settings.isCountingEvents() && settings.getEventAggregator() == null) {
+            return result;
+        }
+
+        for (Relationship deleted : transactionData.getAllDeletedRelationships()) {
+            if (!deleted.isType(configuration.getRelationshipType())) {
+                continue;
+            }
+
+            Node node = INCOMING.equals(configuration.getDirection()) ? deleted.getEndNode() : deleted.getStartNode();
+
+            if (!transactionData.hasBeenDeleted(node)) {
+                List<Relationship> relationships = result.get(node.getId());
+                if (relationships == null) {
+                    relationships = new ArrayList<>();
+                    result.put(node.getId(), relationships);
+                }
+                relationships.add(deleted);
+            }
+        }
+
+        return result;
+    }
+
+    private void updateAggregates(ImprovedTransactionData transactionData, Change<Node> change) {
+        EventAggregator aggregator = settings.getEventAggregator();
+
+        if (aggregator == null) {
+            return;
+        }
+
+        String property = aggregator.getProperty();
+
+        if (transactionData.hasPropertyBeenCreated(change.getCurrent(), property)
+                || transactionData.hasPropertyBeenChanged(change.getPrevious(), property)
+                || transactionData.hasPropertyBeenDeleted(change.getPrevious(), property)) {
+            aggregator.valueChanged(change.getCurrent(), configuration.getRelationshipType(), configuration.getDirection(),
+                    change.getPrevious().getProperty(property, null), change.getCurrent().getProperty(property, null));
+        }
     }
 
     private boolean shouldReattach(ImprovedTransactionData transactionData, Change<Node> change) {
@@ -135,19 +370,35 @@ public class TimeTreeModule extends BaseTxDrivenModule<Void> {
             return;
         }
 
+        TimeTree timeTree;
         TimedEvents timedEventsToUse;
         if (configuration.getCustomTimeTreeRootProperty() != null && created.hasProperty(configuration.getCustomTimeTreeRootProperty())) {
-            timedEventsToUse = new TimeTreeBackedEvents(new CustomRootTimeTree(created.getGraphDatabase().getNodeById(getLong(created, configuration.getCustomTimeTreeRootProperty()))));
+            long rootId = getLong(created, configuration.getCustomTimeTreeRootProperty());
+            timeTree = registry.getTimeTree(rootId);
+            timedEventsToUse = new TimeTreeBackedEvents(timeTree, settings);
+
+            if (preAllocator != null) {
+                preAllocator.registerCustomRoot(rootId);
+            }
         } else {
+            timeTree = registry.getDefaultTimeTree();
             timedEventsToUse = timedEvents;
         }
 
-        timedEventsToUse.attachEvent(created, configuration.getRelationshipType(), configuration.getDirection(), TimeInstant.instant(timestamp).with(configuration.getResolution()).with(configuration.getTimeZone()));
+        TimeInstant timeInstant = TimeInstant.instant(timestamp).with(configuration.getResolution()).with(configuration.getTimeZone());
+
+        if (refiner != null) {
+            timeInstant = refiner.refine(timeTree, timeInstant);
+        }
+
+        timedEventsToUse.attachEvent(created, configuration.getRelationshipType(), configuration.getDirection(), timeInstant);
+
+        if (refiner != null) {
+            refiner.attached(timeTree, timeInstant);
+        }
     }
 
     private void deleteTimeTreeRelationship(Node changed) {
-        for (Relationship r : changed.getRelationships(Direction.OUTGOING, configuration.getRelationshipType())) {
-            r.delete();
-        }
+        timedEvents.detachEvent(changed, configuration.getRelationshipType(), configuration.getDirection());
     }
 }
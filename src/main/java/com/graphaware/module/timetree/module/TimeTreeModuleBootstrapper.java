@@ -46,6 +46,17 @@ public class TimeTreeModuleBootstrapper extends BaseRuntimeModuleBootstrapper<Ti
     private static final String RELATIONSHIP = "relationship";
     private static final String DIRECTION = "direction";
     private static final String AUTO_ATTACH = "autoAttach";
+    private static final String PRE_ALLOCATION_HORIZON = "preAllocationHorizon";
+    private static final String PRE_ALLOCATION_INTERVAL = "preAllocationInterval";
+    private static final String EVENT_COUNTING = "eventCounting";
+    private static final String AGGREGATED_PROPERTY = "aggregatedProperty";
+    private static final String PARALLELISM = "parallelism";
+    private static final String BUCKET_THRESHOLD = "bucketThreshold";
+    private static final String BUCKET_COUNT = "bucketCount";
+    private static final String REFINEMENT_THRESHOLD = "refinementThreshold";
+    private static final String REFINEMENT_RESOLUTION = "refinementResolution";
+    private static final String EVENT_ORDERING = "eventOrdering";
+    private static final String ATTACH_QUEUE_CAPACITY = "attachQueueCapacity";
 
     @Override
     protected TimeTreeConfiguration defaultConfiguration() {
@@ -108,6 +119,70 @@ public class TimeTreeModuleBootstrapper extends BaseRuntimeModuleBootstrapper<Ti
             configuration = configuration.withAutoAttach(autoAttach);
         }
 
+        if (configExists(config, PRE_ALLOCATION_HORIZON)) {
+            long preAllocationHorizon = Long.valueOf(config.get(PRE_ALLOCATION_HORIZON));
+            LOG.info("Pre-allocation horizon set to %s", preAllocationHorizon);
+            configuration = configuration.withPreAllocationHorizon(preAllocationHorizon);
+        }
+
+        if (configExists(config, PRE_ALLOCATION_INTERVAL)) {
+            long preAllocationInterval = Long.valueOf(config.get(PRE_ALLOCATION_INTERVAL));
+            LOG.info("Pre-allocation interval set to %s", preAllocationInterval);
+            configuration = configuration.withPreAllocationInterval(preAllocationInterval);
+        }
+
+        if (configExists(config, EVENT_COUNTING)) {
+            boolean eventCounting = Boolean.valueOf(config.get(EVENT_COUNTING));
+            LOG.info("Event counting set to %s", eventCounting);
+            configuration = configuration.withEventCounting(eventCounting);
+        }
+
+        if (configExists(config, AGGREGATED_PROPERTY)) {
+            String aggregatedProperty = config.get(AGGREGATED_PROPERTY);
+            LOG.info("Aggregated property set to %s", aggregatedProperty);
+            configuration = configuration.withAggregatedProperty(aggregatedProperty);
+        }
+
+        if (configExists(config, PARALLELISM)) {
+            int parallelism = Integer.valueOf(config.get(PARALLELISM));
+            LOG.info("Parallelism set to %s", parallelism);
+            configuration = configuration.withParallelism(parallelism);
+        }
+
+        if (configExists(config, BUCKET_THRESHOLD)) {
+            int bucketThreshold = Integer.valueOf(config.get(BUCKET_THRESHOLD));
+            LOG.info("Bucket threshold set to %s", bucketThreshold);
+            int bucketCount = configuration.getBucketCount();
+            if (configExists(config, BUCKET_COUNT)) {
+                bucketCount = Integer.valueOf(config.get(BUCKET_COUNT));
+                LOG.info("Bucket count set to %s", bucketCount);
+            }
+            configuration = configuration.withBucketing(bucketThreshold, bucketCount);
+        }
+
+        if (configExists(config, REFINEMENT_THRESHOLD)) {
+            int refinementThreshold = Integer.valueOf(config.get(REFINEMENT_THRESHOLD));
+            LOG.info("Refinement threshold set to %s", refinementThreshold);
+            Resolution refinementResolution = Resolution.MILLISECOND;
+            if (configExists(config, REFINEMENT_RESOLUTION)) {
+                refinementResolution = Resolution.valueOf(config.get(REFINEMENT_RESOLUTION).toUpperCase());
+            }
+            LOG.info("Refinement resolution set to %s", refinementResolution);
+            configuration = configuration.withRefinement(refinementThreshold, refinementResolution);
+        }
+
+        if (configExists(config, EVENT_ORDERING)) {
+            boolean eventOrdering = Boolean.valueOf(config.get(EVENT_ORDERING));
+            LOG.info("Event ordering set to %s", eventOrdering);
+            configuration = configuration.withEventOrdering(eventOrdering);
+        }
+
+        if (configExists(config, ATTACH_QUEUE_CAPACITY)) {
+            int attachQueueCapacity = Integer.valueOf(config.get(ATTACH_QUEUE_CAPACITY));
+            LOG.info("Attach queue capacity set to %s", attachQueueCapacity);
+            configuration = configuration.withAttachQueueCapacity(attachQueueCapacity);
+        }
+
         return new TimeTreeModule(moduleId, configuration, database);
     }
 }
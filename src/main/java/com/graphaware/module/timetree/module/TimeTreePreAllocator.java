@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.module;
+
+import com.graphaware.common.log.LoggerFactory;
+import com.graphaware.module.timetree.TimeTree;
+import com.graphaware.module.timetree.TimeTreeRegistry;
+import com.graphaware.module.timetree.domain.Resolution;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTimeZone;
+import org.joda.time.DurationField;
+import org.joda.time.chrono.ISOChronology;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Creates time instants ahead of time, so that attaching events to the tree only ever finds existing instant nodes
+ * and never has to modify the structure of the tree. A configurable horizon of future instants at the configured
+ * resolution and time zone is topped up periodically on a single background thread, for the default tree as well as
+ * for all custom-root trees registered with {@link #registerCustomRoot(long)}.
+ */
+public class TimeTreePreAllocator {
+
+    private static final Log LOG = LoggerFactory.getLogger(TimeTreePreAllocator.class);
+
+    public static final long NOT_ALLOCATED = -1;
+
+    static final int INSTANTS_PER_TRANSACTION = 1000;
+    private static final long DEFAULT_ROOT = -1;
+
+    private final GraphDatabaseService database;
+    private final TimeTree defaultTree;
+    private final Resolution resolution;
+    private final DateTimeZone timeZone;
+    private final long horizon;
+    private final long interval;
+    private final DurationField durationField;
+
+    private final Map<Long, TimeTree> customTrees = new ConcurrentHashMap<>();
+    private final Map<Long, Long> allocatedUntil = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create a new pre-allocator.
+     *
+     * @param database      to create the instants in.
+     * @param defaultTree   the default time tree.
+     * @param configuration providing the resolution, time zone, horizon, and interval of the pre-allocation.
+     */
+    public TimeTreePreAllocator(GraphDatabaseService database, TimeTree defaultTree, TimeTreeConfiguration configuration) {
+        if (configuration.getPreAllocationHorizon() <= 0) {
+            throw new IllegalArgumentException("Pre-allocation horizon must be positive");
+        }
+
+        this.database = database;
+        this.defaultTree = defaultTree;
+        this.resolution = configuration.getResolution();
+        this.timeZone = configuration.getTimeZone();
+        this.horizon = configuration.getPreAllocationHorizon();
+        this.interval = configuration.getPreAllocationInterval();
+        this.durationField = resolution.getDateTimeFieldType().getDurationType().getField(ISOChronology.getInstance(timeZone));
+    }
+
+    /**
+     * Start topping up the pre-allocated instants periodically in the background.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        LOG.info("Pre-allocating time instants %s ms ahead at %s resolution, every %s ms", horizon, resolution, interval);
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TimeTreePreAllocator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preAllocate();
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to pre-allocate time instants, will retry in " + interval + " ms", e);
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background pre-allocation and wait for a running top-up to finish.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Time instant pre-allocation did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor = null;
+    }
+
+    /**
+     * Register the root of a custom time tree, for which instants should be pre-allocated as well.
+     *
+     * @param rootId ID of the root node.
+     */
+    public void registerCustomRoot(long rootId) {
+        if (customTrees.containsKey(rootId)) {
+            return;
+        }
+
+        try (Transaction tx = database.beginTx()) {
+            customTrees.put(rootId, TimeTreeRegistry.forDatabase(database).getTimeTree(rootId));
+            tx.success();
+        }
+    }
+
+    /**
+     * Make sure all instants from now until the horizon exist in all trees. Only instants not created by a previous
+     * run are created, in batches of {@link #INSTANTS_PER_TRANSACTION} per transaction.
+     */
+    public void preAllocate() {
+        long now = System.currentTimeMillis();
+
+        preAllocate(DEFAULT_ROOT, defaultTree, now);
+
+        for (Map.Entry<Long, TimeTree> customTree : customTrees.entrySet()) {
+            try {
+                preAllocate(customTree.getKey(), customTree.getValue(), now);
+            } catch (NotFoundException e) {
+                LOG.warn("Custom time tree root " + customTree.getKey() + " no longer exists, will not pre-allocate instants for it");
+                customTrees.remove(customTree.getKey());
+                allocatedUntil.remove(customTree.getKey());
+            }
+        }
+
+        LOG.debug("Time instants pre-allocated until %s", getAllocatedUntil());
+    }
+
+    private void preAllocate(long rootId, TimeTree tree, long now) {
+        long until = resolution.truncate(now + horizon, timeZone);
+        Long done = allocatedUntil.get(rootId);
+
+        long from;
+        if (done == null || done < now) {
+            from = resolution.truncate(now, timeZone);
+        } else {
+            from = durationField.add(done, 1);
+        }
+
+        while (from <= until) {
+            long to = Math.min(durationField.add(from, INSTANTS_PER_TRANSACTION - 1), until);
+
+            tree.getOrCreateInstants(instant(from), instant(to));
+            allocatedUntil.put(rootId, to);
+
+            from = durationField.add(to, 1);
+        }
+    }
+
+    private TimeInstant instant(long time) {
+        return TimeInstant.instant(time).with(resolution).with(timeZone);
+    }
+
+    /**
+     * Report how far ahead the pre-allocation is.
+     *
+     * @return time (ms since epoch) of the last pre-allocated instant, such that all instants between now and this
+     * time exist in all the trees, {@link #NOT_ALLOCATED} if nothing has been pre-allocated yet.
+     */
+    public long getAllocatedUntil() {
+        if (!allocatedUntil.containsKey(DEFAULT_ROOT)) {
+            return NOT_ALLOCATED;
+        }
+
+        long result = Long.MAX_VALUE;
+        for (Long rootId : customTrees.keySet()) {
+            Long until = allocatedUntil.get(rootId);
+            if (until == null) {
+                return NOT_ALLOCATED;
+            }
+            result = Math.min(result, until);
+        }
+
+        return Math.min(result, allocatedUntil.get(DEFAULT_ROOT));
+    }
+}
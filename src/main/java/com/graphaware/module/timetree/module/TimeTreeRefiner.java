@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.module;
+
+import com.graphaware.common.log.LoggerFactory;
+import com.graphaware.module.timetree.EventBuckets;
+import com.graphaware.module.timetree.EventSettings;
+import com.graphaware.module.timetree.TimeTree;
+import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.domain.Resolution;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Refines time instants that have become too dense into finer-grained children, so that no instant ends up with a
+ * huge number of events attached to it, while quiet periods keep being represented by few coarse instants.
+ * <p>
+ * Once the number of events automatically attached to an instant reaches the configured threshold, the instant is
+ * scheduled for refinement. A single background thread marks it as refined, so that events are attached to its
+ * children from then on. It then scans the events already attached to it once, and moves those with a timestamp to its
+ * children in batches of {@link #EVENTS_PER_TRANSACTION} per transaction; events without one stay where they are.
+ * Children that become too dense are refined in turn, down to the
+ * configured finest resolution. Range queries keep returning the same events, since a range includes the children of
+ * its instants.
+ */
+public class TimeTreeRefiner {
+
+    private static final Log LOG = LoggerFactory.getLogger(TimeTreeRefiner.class);
+
+    static final String REFINED_PROPERTY = "refined";
+    static final int EVENTS_PER_TRANSACTION = 1000;
+    static final long INTERVAL = 1000;
+
+    private final GraphDatabaseService database;
+    private final RelationshipType relationshipType;
+    private final Direction direction;
+    private final String timestampProperty;
+    private final int threshold;
+    private final Resolution finestResolution;
+    private final EventSettings settings;
+
+    private final Set<Refinement> pending = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create a new refiner.
+     *
+     * @param database      to refine the instants in.
+     * @param configuration providing the relationship type, direction, timestamp property, threshold, and finest
+     *                      resolution of the refinement.
+     * @param settings      of the events being moved, so that counts and aggregates are maintained.
+     */
+    public TimeTreeRefiner(GraphDatabaseService database, TimeTreeConfiguration configuration, EventSettings settings) {
+        if (configuration.getRefinementThreshold() <= 0) {
+            throw new IllegalArgumentException("Refinement threshold must be positive");
+        }
+
+        if (configuration.getRefinementResolution().compareTo(configuration.getResolution()) <= 0) {
+            throw new IllegalArgumentException("Refinement resolution must be finer than the resolution of the tree");
+        }
+
+        this.database = database;
+        this.relationshipType = configuration.getRelationshipType();
+        this.direction = configuration.getDirection();
+        this.timestampProperty = configuration.getTimestampProperty();
+        this.threshold = configuration.getRefinementThreshold();
+        this.finestResolution = configuration.getRefinementResolution();
+        this.settings = settings;
+    }
+
+    /**
+     * Start refining scheduled instants periodically in the background.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        LOG.info("Refining time instants with %s events down to %s resolution", threshold, finestResolution);
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TimeTreeRefiner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refinePending();
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to refine time instants, will retry in " + INTERVAL + " ms", e);
+                }
+            }
+        }, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background refinement and wait for a running batch to finish.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Time instant refinement did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor = null;
+    }
+
+    /**
+     * Find the instant an event should be attached to. Starting from the given instant, instants that have been refined
+     * are descended into, as long as they exist. Refined instants that still have events attached are scheduled again,
+     * so that events attached by transactions that were running during a refinement are moved eventually.
+     *
+     * @param tree        the event is being attached to.
+     * @param timeInstant of the event at the resolution of the tree.
+     * @return instant to attach the event to.
+     */
+    public TimeInstant refine(TimeTree tree, TimeInstant timeInstant) {
+        TimeInstant result = timeInstant;
+
+        while (result.getResolution().compareTo(finestResolution) < 0) {
+            Node instant = tree.getInstant(result);
+
+            if (instant == null || !instant.hasProperty(REFINED_PROPERTY)) {
+                break;
+            }
+
+            if (EventBuckets.degree(instant, relationshipType, direction) > 0) {
+                schedule(tree, result);
+            }
+
+            result = result.with(result.getResolution().getChild());
+        }
+
+        return result;
+    }
+
+    /**
+     * Schedule an instant for refinement if an event has just been attached to it and it has become too dense.
+     *
+     * @param tree        the event has been attached to.
+     * @param timeInstant the event has been attached to.
+     */
+    public void attached(TimeTree tree, TimeInstant timeInstant) {
+        if (timeInstant.getResolution().compareTo(finestResolution) >= 0) {
+            return;
+        }
+
+        Node instant = tree.getInstant(timeInstant);
+
+        if (instant != null && EventBuckets.degree(instant, relationshipType, direction) >= threshold) {
+            schedule(tree, timeInstant);
+        }
+    }
+
+    /**
+     * Refine all instants scheduled so far, moving all their events to their children.
+     */
+    public void refinePending() {
+        Iterator<Refinement> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Refinement refinement = iterator.next();
+            iterator.remove();
+            refine(refinement);
+        }
+    }
+
+    private void schedule(TimeTree tree, TimeInstant timeInstant) {
+        long start = timeInstant.getResolution().truncate(timeInstant.getTime(), timeInstant.getTimezone());
+        pending.add(new Refinement(tree, TimeInstant.instant(start).with(timeInstant.getResolution()).with(timeInstant.getTimezone())));
+    }
+
+    private void refine(Refinement refinement) {
+        try (Transaction tx = database.beginTx()) {
+            Node instant = refinement.tree.getInstant(refinement.timeInstant);
+            if (instant == null) {
+                tx.success();
+                return;
+            }
+            instant.setProperty(REFINED_PROPERTY, true);
+            tx.success();
+        }
+
+        TimeTreeBackedEvents events = new TimeTreeBackedEvents(refinement.tree, settings);
+
+        //the instant is scanned once, events that can't be moved aren't read again by the batches
+        List<Long> toMove;
+        try (Transaction tx = database.beginTx()) {
+            toMove = events.findEventsToMove(refinement.timeInstant, relationshipType, direction, timestampProperty);
+            tx.success();
+        }
+
+        int moved = 0;
+        for (int from = 0; from < toMove.size(); from += EVENTS_PER_TRANSACTION) {
+            try (Transaction tx = database.beginTx()) {
+                moved += events.moveEventsToChildren(refinement.timeInstant, toMove.subList(from, Math.min(from + EVENTS_PER_TRANSACTION, toMove.size())), relationshipType, direction, timestampProperty);
+                tx.success();
+            }
+        }
+
+        LOG.debug("Refined %s time instant starting at %s, moved %s events", refinement.timeInstant.getResolution(), refinement.timeInstant.getTime(), moved);
+
+        scheduleDenseChildren(refinement.tree, refinement.timeInstant);
+    }
+
+    /**
+     * Schedule the children of a refined instant, which have become too dense by receiving its events.
+     */
+    private void scheduleDenseChildren(TimeTree tree, TimeInstant timeInstant) {
+        Resolution resolution = timeInstant.getResolution();
+        Resolution childResolution = resolution.getChild();
+
+        if (childResolution.compareTo(finestResolution) >= 0) {
+            return;
+        }
+
+        DateTimeZone timezone = timeInstant.getTimezone();
+        long end = resolution.getDateTimeFieldType().getDurationType().getField(ISOChronology.getInstance(timezone)).add(timeInstant.getTime(), 1) - 1;
+
+        try (Transaction tx = database.beginTx()) {
+            for (TimeInstant child : TimeInstant.getInstants(timeInstant.with(childResolution), TimeInstant.instant(end).with(childResolution).with(timezone))) {
+                attached(tree, child);
+            }
+            tx.success();
+        }
+    }
+
+    private static final class Refinement {
+
+        private final TimeTree tree;
+        private final TimeInstant timeInstant;
+
+        private Refinement(TimeTree tree, TimeInstant timeInstant) {
+            this.tree = tree;
+            this.timeInstant = timeInstant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Refinement that = (Refinement) o;
+
+            return tree == that.tree
+                    && timeInstant.getTime() == that.timeInstant.getTime()
+                    && timeInstant.getResolution() == that.timeInstant.getResolution()
+                    && timeInstant.getTimezone().equals(that.timeInstant.getTimezone());
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(tree);
+            result = 31 * result + (int) (timeInstant.getTime() ^ (timeInstant.getTime() >>> 32));
+            result = 31 * result + timeInstant.getResolution().hashCode();
+            result = 31 * result + timeInstant.getTimezone().hashCode();
+            return result;
+        }
+    }
+}
@@ -35,6 +35,17 @@ public class TimeTreeBaseProcedure {
     protected static final String PARAMETER_NAME_INSTANT = "instant";
     protected static final String PARAMETER_NAME_INSTANTS = "instants";
     protected static final String PARAMETER_NAME_CREATE = "create";
+    protected static final String PARAMETER_NAME_LIMIT = "limit";
+    protected static final String PARAMETER_NAME_CURSOR = "cursor";
+    protected static final String PARAMETER_NAME_COUNT = "count";
+    protected static final String PARAMETER_NAME_PROPERTY = "property";
+    protected static final String PARAMETER_NAME_SUM = "sum";
+    protected static final String PARAMETER_NAME_MIN = "min";
+    protected static final String PARAMETER_NAME_MAX = "max";
+    protected static final String PARAMETER_NAME_AVERAGE = "average";
+    protected static final String PARAMETER_NAME_EVENTS = "events";
+    protected static final String PARAMETER_NAME_ATTACHED = "attached";
+    protected static final String PARAMETER_NAME_TIMESTAMP_PROPERTY = "timestampProperty";
 
     protected void checkTime(Map<String, Object> inputParams, String param) throws RuntimeException {
         try {
@@ -61,6 +72,17 @@ public class TimeTreeBaseProcedure {
         }
     }
 
+    protected long getLimit(Map<String, Object> inputParams) throws RuntimeException {
+        Object limit = inputParams.get(PARAMETER_NAME_LIMIT);
+        if (limit == null) {
+            return Long.MAX_VALUE;
+        }
+        if (!(limit instanceof Number) || ((Number) limit).longValue() <= 0) {
+            throw new RuntimeException("Wrong parameter value for '" + PARAMETER_NAME_LIMIT + "': " + limit + ". Must be a positive number");
+        }
+        return ((Number) limit).longValue();
+    }
+
     protected void checkIsMap(Object object) throws RuntimeException {
         if (!(object instanceof Map)) {
             throw new RuntimeException("Input parameter is not a map");
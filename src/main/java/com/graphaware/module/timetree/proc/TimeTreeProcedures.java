@@ -52,6 +52,10 @@ public class TimeTreeProcedures {
         TimedEventsProcedure timedEventsProcedures = new TimedEventsProcedure(database, timedEvents);
         procedures.register(timedEventsProcedures.getEvents());
         procedures.register(timedEventsProcedures.getRangeEvents());
+        procedures.register(timedEventsProcedures.getLatestEvents());
+        procedures.register(timedEventsProcedures.getCount());
+        procedures.register(timedEventsProcedures.getAggregate());
         procedures.register(timedEventsProcedures.getAttach());
+        procedures.register(timedEventsProcedures.getAttachAll());
     }
 }
@@ -15,19 +15,25 @@
  */
 package com.graphaware.module.timetree.proc;
 
+import com.graphaware.module.timetree.ResumableEventIterator;
 import com.graphaware.module.timetree.TimedEvents;
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventToAttach;
+import com.graphaware.module.timetree.domain.TimeInstant;
 import com.graphaware.module.timetree.logic.TimedEventsBusinessLogic;
 import static com.graphaware.module.timetree.proc.TimeTreeBaseProcedure.PARAMETER_NAME_END_TIME;
 import static com.graphaware.module.timetree.proc.TimeTreeBaseProcedure.PARAMETER_NAME_ROOT;
 import static com.graphaware.module.timetree.proc.TimeTreeBaseProcedure.PARAMETER_NAME_START_TIME;
 import static com.graphaware.module.timetree.proc.TimeTreeBaseProcedure.PARAMETER_NAME_TIME;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import org.neo4j.collection.RawIterator;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
@@ -61,23 +67,27 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
                 checkIsMap(input[0]);
                 Map<String, Object> inputParams = (Map) input[0];
                 checkTime(inputParams, PARAMETER_NAME_TIME);
-                List<Event> events;
+                //a single instant is a range starting and ending with it
+                ResumableEventIterator events;
                 if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
-                    events = timedEventsLogic.getEventsCustomRoot(((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
+                    events = timedEventsLogic.iterateEventsCustomRoot(((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
+                            (long) inputParams.get(PARAMETER_NAME_TIME),
                             (long) inputParams.get(PARAMETER_NAME_TIME),
                             (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
                             (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
                             (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
-                            (String) inputParams.get(PARAMETER_NAME_DIRECTION));
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            null);
                 } else {
-                    events = timedEventsLogic.getEvents((long) inputParams.get(PARAMETER_NAME_TIME),
+                    events = timedEventsLogic.iterateEvents((long) inputParams.get(PARAMETER_NAME_TIME),
+                            (long) inputParams.get(PARAMETER_NAME_TIME),
                             (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
                             (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
                             (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
-                            (String) inputParams.get(PARAMETER_NAME_DIRECTION));
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            null);
                 }
-                List<Object[]> collector = getObjectArray(events);
-                return Iterators.asRawIterator(collector.iterator());
+                return Iterators.asRawIterator(toRows(events, Long.MAX_VALUE, false));
             }
         };
     }
@@ -117,6 +127,50 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
         };
     }
 
+    public CallableProcedure.BasicProcedure getAttachAll() {
+        return new CallableProcedure.BasicProcedure(procedureSignature(getProcedureName("attachAll"))
+                .mode(ProcedureSignature.Mode.READ_WRITE)
+                .in(PARAMETER_NAME_INPUT, Neo4jTypes.NTMap)
+                .out(PARAMETER_NAME_NODE, Neo4jTypes.NTNode)
+                .out(PARAMETER_NAME_ATTACHED, Neo4jTypes.NTBoolean)
+                .build()) {
+
+            @Override
+            public RawIterator<Object[], ProcedureException> apply(CallableProcedure.Context ctx, Object[] input) throws ProcedureException {
+                checkIsMap(input[0]);
+                Map<String, Object> inputParams = (Map) input[0];
+                if (!(inputParams.get(PARAMETER_NAME_EVENTS) instanceof List)) {
+                    throw new RuntimeException("No parameter " + PARAMETER_NAME_EVENTS + " specified");
+                }
+                List<EventToAttach> events = new ArrayList<>();
+                for (Object event : (List<Object>) inputParams.get(PARAMETER_NAME_EVENTS)) {
+                    checkIsMap(event);
+                    Map<String, Object> eventParams = (Map) event;
+                    checkTime(eventParams, PARAMETER_NAME_TIME);
+                    Node eventNode = (Node) eventParams.get(PARAMETER_NAME_NODE);
+                    checkEventNode(eventNode);
+                    events.add(new EventToAttach(eventNode,
+                            getRelationshipType((String) eventParams.get(PARAMETER_NAME_RELATIONSHIP_TYPE)),
+                            getDirection((String) eventParams.get(PARAMETER_NAME_DIRECTION)),
+                            TimeInstant.createInstant((long) eventParams.get(PARAMETER_NAME_TIME),
+                                    (String) eventParams.get(PARAMETER_NAME_TIMEZONE),
+                                    (String) eventParams.get(PARAMETER_NAME_RESOLUTION))));
+                }
+                List<Boolean> attached;
+                if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
+                    attached = timedEventsLogic.attachEventsWithCustomRoot((Node) inputParams.get(PARAMETER_NAME_ROOT), events);
+                } else {
+                    attached = timedEventsLogic.attachEvents(events);
+                }
+                List<Object[]> rows = new ArrayList<>(events.size());
+                for (int i = 0; i < events.size(); i++) {
+                    rows.add(new Object[]{events.get(i).getNode(), attached.get(i)});
+                }
+                return Iterators.asRawIterator(rows.iterator());
+            }
+        };
+    }
+
     public CallableProcedure.BasicProcedure getRangeEvents() {
         return new CallableProcedure.BasicProcedure(procedureSignature(getProcedureName("range"))
                 .mode(ProcedureSignature.Mode.READ_WRITE)
@@ -124,6 +178,7 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
                 .out(PARAMETER_NAME_NODE, Neo4jTypes.NTNode)
                 .out(PARAMETER_NAME_RELATIONSHIP_TYPE, Neo4jTypes.NTString)
                 .out(PARAMETER_NAME_DIRECTION, Neo4jTypes.NTString)
+                .out(PARAMETER_NAME_CURSOR, Neo4jTypes.NTString)
                 .build()) {
 
             @Override
@@ -132,10 +187,97 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
                 Map<String, Object> inputParams = (Map) input[0];
                 checkTime(inputParams, PARAMETER_NAME_START_TIME);
                 checkTime(inputParams, PARAMETER_NAME_END_TIME);
-                List<Event> events;
+                long limit = getLimit(inputParams);
+                String cursor = (String) inputParams.get(PARAMETER_NAME_CURSOR);
+                ResumableEventIterator events;
                 if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
-                    events = timedEventsLogic.getEventsCustomRoot(
+                    events = timedEventsLogic.iterateEventsCustomRoot(
                             (long) ((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
+                            (long) inputParams.get(PARAMETER_NAME_START_TIME),
+                            (long) inputParams.get(PARAMETER_NAME_END_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (String) inputParams.get(PARAMETER_NAME_TIMESTAMP_PROPERTY),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            cursor);
+                } else {
+                    events = timedEventsLogic.iterateEvents(
+                            (long) inputParams.get(PARAMETER_NAME_START_TIME),
+                            (long) inputParams.get(PARAMETER_NAME_END_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (String) inputParams.get(PARAMETER_NAME_TIMESTAMP_PROPERTY),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            cursor);
+                }
+                return Iterators.asRawIterator(toRows(events, limit, true));
+            }
+        };
+    }
+
+    public CallableProcedure.BasicProcedure getLatestEvents() {
+        return new CallableProcedure.BasicProcedure(procedureSignature(getProcedureName("latest"))
+                .mode(ProcedureSignature.Mode.READ_WRITE)
+                .in(PARAMETER_NAME_INPUT, Neo4jTypes.NTMap)
+                .out(PARAMETER_NAME_NODE, Neo4jTypes.NTNode)
+                .out(PARAMETER_NAME_RELATIONSHIP_TYPE, Neo4jTypes.NTString)
+                .out(PARAMETER_NAME_DIRECTION, Neo4jTypes.NTString)
+                .build()) {
+
+            @Override
+            public RawIterator<Object[], ProcedureException> apply(CallableProcedure.Context ctx, Object[] input) throws ProcedureException {
+                checkIsMap(input[0]);
+                Map<String, Object> inputParams = (Map) input[0];
+                checkTime(inputParams, PARAMETER_NAME_TIME);
+                if (!inputParams.containsKey(PARAMETER_NAME_LIMIT)) {
+                    throw new RuntimeException("No parameter " + PARAMETER_NAME_LIMIT + " specified");
+                }
+                int limit = (int) Math.min(getLimit(inputParams), Integer.MAX_VALUE);
+                List<Event> events;
+                if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
+                    events = timedEventsLogic.getLatestEventsCustomRoot(((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
+                            (long) inputParams.get(PARAMETER_NAME_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            limit);
+                } else {
+                    events = timedEventsLogic.getLatestEvents((long) inputParams.get(PARAMETER_NAME_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION),
+                            limit);
+                }
+                List<Object[]> rows = new ArrayList<>(events.size());
+                for (Event event : events) {
+                    rows.add(new Object[]{event.getNode(), event.getRelationshipType() != null ? event.getRelationshipType().toString() : "",
+                        event.getDirection().name()});
+                }
+                return Iterators.asRawIterator(rows.iterator());
+            }
+        };
+    }
+
+    public CallableProcedure.BasicProcedure getCount() {
+        return new CallableProcedure.BasicProcedure(procedureSignature(getProcedureName("count"))
+                .mode(ProcedureSignature.Mode.READ_WRITE)
+                .in(PARAMETER_NAME_INPUT, Neo4jTypes.NTMap)
+                .out(PARAMETER_NAME_COUNT, Neo4jTypes.NTInteger)
+                .build()) {
+
+            @Override
+            public RawIterator<Object[], ProcedureException> apply(CallableProcedure.Context ctx, Object[] input) throws ProcedureException {
+                checkIsMap(input[0]);
+                Map<String, Object> inputParams = (Map) input[0];
+                checkTime(inputParams, PARAMETER_NAME_START_TIME);
+                checkTime(inputParams, PARAMETER_NAME_END_TIME);
+                long count;
+                if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
+                    count = timedEventsLogic.countEventsCustomRoot(((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
                             (long) inputParams.get(PARAMETER_NAME_START_TIME),
                             (long) inputParams.get(PARAMETER_NAME_END_TIME),
                             (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
@@ -143,26 +285,96 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
                             (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
                             (String) inputParams.get(PARAMETER_NAME_DIRECTION));
                 } else {
-                    events = timedEventsLogic.getEvents(
+                    count = timedEventsLogic.countEvents((long) inputParams.get(PARAMETER_NAME_START_TIME),
+                            (long) inputParams.get(PARAMETER_NAME_END_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION));
+                }
+                return Iterators.asRawIterator(Collections.<Object[]>singleton(new Object[]{count}).iterator());
+            }
+        };
+    }
+
+    public CallableProcedure.BasicProcedure getAggregate() {
+        return new CallableProcedure.BasicProcedure(procedureSignature(getProcedureName("aggregate"))
+                .mode(ProcedureSignature.Mode.READ_WRITE)
+                .in(PARAMETER_NAME_INPUT, Neo4jTypes.NTMap)
+                .out(PARAMETER_NAME_COUNT, Neo4jTypes.NTInteger)
+                .out(PARAMETER_NAME_SUM, Neo4jTypes.NTFloat)
+                .out(PARAMETER_NAME_MIN, Neo4jTypes.NTFloat)
+                .out(PARAMETER_NAME_MAX, Neo4jTypes.NTFloat)
+                .out(PARAMETER_NAME_AVERAGE, Neo4jTypes.NTFloat)
+                .build()) {
+
+            @Override
+            public RawIterator<Object[], ProcedureException> apply(CallableProcedure.Context ctx, Object[] input) throws ProcedureException {
+                checkIsMap(input[0]);
+                Map<String, Object> inputParams = (Map) input[0];
+                checkTime(inputParams, PARAMETER_NAME_START_TIME);
+                checkTime(inputParams, PARAMETER_NAME_END_TIME);
+                if (!inputParams.containsKey(PARAMETER_NAME_PROPERTY)) {
+                    throw new RuntimeException("No parameter " + PARAMETER_NAME_PROPERTY + " specified");
+                }
+                Aggregate aggregate;
+                if (inputParams.containsKey(PARAMETER_NAME_ROOT)) {
+                    aggregate = timedEventsLogic.aggregateEventsCustomRoot(((Node) inputParams.get(PARAMETER_NAME_ROOT)).getId(),
                             (long) inputParams.get(PARAMETER_NAME_START_TIME),
                             (long) inputParams.get(PARAMETER_NAME_END_TIME),
                             (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
                             (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (String) inputParams.get(PARAMETER_NAME_PROPERTY),
+                            (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
+                            (String) inputParams.get(PARAMETER_NAME_DIRECTION));
+                } else {
+                    aggregate = timedEventsLogic.aggregateEvents((long) inputParams.get(PARAMETER_NAME_START_TIME),
+                            (long) inputParams.get(PARAMETER_NAME_END_TIME),
+                            (String) inputParams.get(PARAMETER_NAME_RESOLUTION),
+                            (String) inputParams.get(PARAMETER_NAME_TIMEZONE),
+                            (String) inputParams.get(PARAMETER_NAME_PROPERTY),
                             (List<String>) inputParams.get(PARAMETER_NAME_RELATIONSHIP_TYPES),
                             (String) inputParams.get(PARAMETER_NAME_DIRECTION));
                 }
-                List<Object[]> collector = getObjectArray(events);
-                return Iterators.asRawIterator(collector.iterator());
+                return Iterators.asRawIterator(Collections.<Object[]>singleton(new Object[]{aggregate.getCount(), aggregate.getSum(),
+                    aggregate.getMin(), aggregate.getMax(), aggregate.getAverage()}).iterator());
             }
         };
     }
 
-    private List<Object[]> getObjectArray(List<Event> events) {
-        List<Object[]> collector = events.stream()
-                .map((event) -> new Object[]{event.getNode(), event.getRelationshipType() != null ? event.getRelationshipType().toString() : "",
-            event.getDirection().name()})
-                .collect(Collectors.toList());
-        return collector;
+    /**
+     * Lazily convert events to procedure output rows, so that the time tree is only walked as far as the rows are
+     * consumed. The events are closed once exhausted or once the limit is reached.
+     *
+     * @param events     to convert.
+     * @param limit      maximum number of rows.
+     * @param withCursor whether to include a cursor pointing past each row's event, so that a later call can continue
+     *                   from the last row consumed.
+     */
+    private Iterator<Object[]> toRows(ResumableEventIterator events, long limit, boolean withCursor) {
+        return new Iterator<Object[]>() {
+            private long count = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (count < limit && events.hasNext()) {
+                    return true;
+                }
+                events.close();
+                return false;
+            }
+
+            @Override
+            public Object[] next() {
+                Event event = events.next();
+                count++;
+                String relationshipType = event.getRelationshipType() != null ? event.getRelationshipType().toString() : "";
+                if (withCursor) {
+                    return new Object[]{event.getNode(), relationshipType, event.getDirection().name(), events.getCursor()};
+                }
+                return new Object[]{event.getNode(), relationshipType, event.getDirection().name()};
+            }
+        };
     }
 
     private void checkEventNode(Node eventNode) {
@@ -178,6 +390,14 @@ public class TimedEventsProcedure extends TimeTreeBaseProcedure {
         return RelationshipType.withName(relType);
     }
 
+    private Direction getDirection(String direction) {
+        if (direction == null) {
+            return Direction.INCOMING;
+        }
+
+        return Direction.valueOf(direction.toUpperCase());
+    }
+
     protected static ProcedureSignature.ProcedureName getProcedureName(String... procedureName) {
         String namespace[] = new String[3 + procedureName.length];
         int i = 0;
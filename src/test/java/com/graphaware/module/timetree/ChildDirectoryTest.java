@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link ChildDirectory}.
+ */
+public class ChildDirectoryTest {
+
+    @Test
+    public void childrenShouldBeFoundByBinarySearch() {
+        ChildDirectory.Children children = new ChildDirectory.Children(new int[]{1, 5, 9}, new long[]{10, 50, 90});
+
+        assertEquals(1, children.indexOf(5));
+        assertEquals(50, children.getId(children.indexOf(5)));
+        assertEquals(-1, children.indexOf(0));
+        assertEquals(-3, children.indexOf(6));
+        assertEquals(-4, children.indexOf(10));
+    }
+
+    @Test
+    public void leastRecentlyUsedParentShouldBeEvicted() {
+        ChildDirectory directory = new ChildDirectory(2);
+
+        directory.put(1, children(1), directory.generation());
+        directory.put(2, children(2), directory.generation());
+        assertNotNull(directory.get(1));
+
+        directory.put(3, children(3), directory.generation());
+
+        assertNotNull(directory.get(1));
+        assertNull(directory.get(2));
+        assertNotNull(directory.get(3));
+    }
+
+    @Test
+    public void childrenReadBeforeEvictionShouldNotBeCached() {
+        ChildDirectory directory = new ChildDirectory(10);
+
+        long generation = directory.generation();
+        directory.evict(2);
+        directory.put(1, children(1), generation);
+
+        assertNull(directory.get(1));
+        assertTrue(directory.isEmpty());
+
+        directory.put(1, children(1), directory.generation());
+        assertNotNull(directory.get(1));
+
+        directory.evict(1);
+        assertNull(directory.get(1));
+    }
+
+    private ChildDirectory.Children children(int value) {
+        return new ChildDirectory.Children(new int[]{value}, new long[]{value * 10});
+    }
+}
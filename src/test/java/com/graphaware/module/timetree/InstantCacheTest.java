@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.TimeInstant;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static com.graphaware.module.timetree.domain.Resolution.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link InstantCache}.
+ */
+public class InstantCacheTest {
+
+    private static final DateTimeZone UTC = DateTimeZone.forTimeZone(TimeZone.getTimeZone("UTC"));
+
+    @Test
+    public void instantsFallingIntoSameNodeShouldShareKey() {
+        TimeInstant morning = TimeInstant.instant(new DateTime(2014, 4, 5, 8, 30, UTC).getMillis());
+        TimeInstant evening = TimeInstant.instant(new DateTime(2014, 4, 5, 20, 15, UTC).getMillis());
+
+        assertEquals(InstantCache.key(0, morning), InstantCache.key(0, evening));
+        assertNotEquals(InstantCache.key(0, morning), InstantCache.key(1, evening));
+        assertNotEquals(InstantCache.key(0, morning.with(HOUR)), InstantCache.key(0, evening.with(HOUR)));
+        assertNotEquals(InstantCache.key(0, morning), InstantCache.key(0, morning.with(MONTH)));
+        assertNotEquals(InstantCache.key(0, morning), InstantCache.key(0, morning.with(DateTimeZone.forOffsetHours(12))));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryShouldBeEvicted() {
+        InstantCache cache = new InstantCache(2);
+
+        InstantCache.Key first = key(1);
+        InstantCache.Key second = key(2);
+        InstantCache.Key third = key(3);
+
+        cache.put(first, 10);
+        cache.put(second, 20);
+        assertEquals(10L, (long) cache.get(first));
+
+        cache.put(third, 30);
+
+        assertEquals(2, cache.size());
+        assertEquals(10L, (long) cache.get(first));
+        assertNull(cache.get(second));
+        assertEquals(30L, (long) cache.get(third));
+    }
+
+    @Test
+    public void entriesShouldBeEvictedByNodeAndRoot() {
+        InstantCache cache = new InstantCache(10);
+
+        InstantCache.Key first = key(1);
+        InstantCache.Key second = key(2);
+        InstantCache.Key otherRoot = InstantCache.key(1, TimeInstant.instant(dateToMillis(3)));
+
+        cache.put(first, 10);
+        cache.put(second, 20);
+        cache.put(otherRoot, 30);
+
+        cache.evictNode(10);
+        assertNull(cache.get(first));
+        assertEquals(20L, (long) cache.get(second));
+
+        cache.evictRoot(0);
+        assertNull(cache.get(second));
+        assertEquals(30L, (long) cache.get(otherRoot));
+
+        cache.evictNode(30);
+        assertTrue(cache.isEmpty());
+    }
+
+    private InstantCache.Key key(int day) {
+        return InstantCache.key(0, TimeInstant.instant(dateToMillis(day)));
+    }
+
+    private long dateToMillis(int day) {
+        return new DateTime(2014, 4, day, 0, 0, UTC).getMillis();
+    }
+}
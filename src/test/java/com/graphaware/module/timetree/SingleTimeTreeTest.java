@@ -26,14 +26,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 
-import java.util.List;
-import java.util.TimeZone;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.graphaware.module.timetree.SingleTimeTree.VALUE_PROPERTY;
 import static com.graphaware.module.timetree.domain.Resolution.*;
+import static com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes.CHILD;
+import static com.graphaware.test.unit.GraphUnit.assertEmpty;
 import static com.graphaware.test.unit.GraphUnit.assertSameGraph;
 import static org.junit.Assert.*;
+import static org.neo4j.graphdb.Direction.INCOMING;
+import static org.neo4j.graphdb.Direction.OUTGOING;
 import static org.neo4j.graphdb.RelationshipType.withName;
 
 /**
@@ -66,7 +77,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(yearNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
 
         //When
         try (Transaction tx = getDatabase().beginTx()) {
@@ -76,7 +87,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(yearNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
 
         //When
         try (Transaction tx = getDatabase().beginTx()) {
@@ -86,7 +97,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(yearNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
     }
 
     @Test
@@ -104,7 +115,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(dayNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
 
         //When
         try (Transaction tx = getDatabase().beginTx()) {
@@ -114,7 +125,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(dayNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
 
         //When
         try (Transaction tx = getDatabase().beginTx()) {
@@ -124,7 +135,7 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
 
         //Then
         assertNull(dayNode);
-        assertSameGraph(getDatabase(), "CREATE (root:TimeTreeRoot)");
+        assertEmpty(getDatabase());
     }
 
     @Test
@@ -1308,6 +1319,361 @@ public class SingleTimeTreeTest extends EmbeddedDatabaseIntegrationTest {
                 "(h23)-[:NEXT]->(h0)");
     }
 
+    @Test
+    public void cachedInstantShouldNotBeReturnedAfterRemoval() {
+        //Given
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 4, 5));
+
+        Node dayNode;
+        try (Transaction tx = getDatabase().beginTx()) {
+            dayNode = timeTree.getOrCreateInstant(timeInstant);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(dayNode, timeTree.getInstant(timeInstant));
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.removeInstant(dayNode);
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(timeTree.getInstant(timeInstant));
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            dayNode = timeTree.getOrCreateInstant(timeInstant);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.removeAll();
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(timeTree.getInstant(timeInstant));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void instantCreatedInRolledBackTransactionShouldNotBeReturned() {
+        //Given
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 4, 5));
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.getOrCreateInstant(TimeInstant.instant(dateToMillis(2014, 4, 4)));
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.getOrCreateInstant(timeInstant);
+            assertNotNull(timeTree.getInstant(timeInstant));
+            tx.failure();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(timeTree.getInstant(timeInstant));
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.getOrCreateInstant(TimeInstant.instant(dateToMillis(2014, 4, 6)));
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(timeTree.getInstant(timeInstant));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void rootShouldBeRecreatedWhenDeletedOutsideOfTimeTree() {
+        //Given
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 4, 5)).with(YEAR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.getOrCreateInstant(timeInstant);
+            tx.success();
+        }
+
+        getDatabase().execute("MATCH (n) DETACH DELETE n");
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timeTree.getOrCreateInstant(timeInstant);
+            tx.success();
+        }
+
+        //Then
+        assertSameGraph(getDatabase(), "CREATE" +
+                "(root:TimeTreeRoot)," +
+                "(root)-[:FIRST]->(year:Year {value:2014})," +
+                "(root)-[:CHILD]->(year)," +
+                "(root)-[:LAST]->(year)");
+    }
+
+    @Test
+    public void sparseRangeShouldBeReadByWalkingExistingInstants() {
+        //Given
+        Node first, second, third;
+        try (Transaction tx = getDatabase().beginTx()) {
+            first = timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2014, 1, 3, 10, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            timeTree.getOrCreateInstant(TimeInstant.instant(dateToMillis(2014, 2, 1)).with(DAY).with(UTC));
+            second = timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2014, 6, 20, 23, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            third = timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2014, 12, 31, 0, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2015, 1, 1, 0, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            tx.success();
+        }
+
+        //When
+        List<Node> year, spring, secondOnly;
+        try (Transaction tx = getDatabase().beginTx()) {
+            year = timeTree.getInstants(
+                    TimeInstant.instant(new DateTime(2014, 1, 1, 0, 0, UTC).getMillis()).with(HOUR).with(UTC),
+                    TimeInstant.instant(new DateTime(2014, 12, 31, 23, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            spring = timeTree.getInstants(
+                    TimeInstant.instant(new DateTime(2014, 3, 1, 0, 0, UTC).getMillis()).with(HOUR).with(UTC),
+                    TimeInstant.instant(new DateTime(2014, 5, 31, 23, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            secondOnly = timeTree.getInstants(
+                    TimeInstant.instant(new DateTime(2014, 1, 15, 0, 0, UTC).getMillis()).with(HOUR).with(UTC),
+                    TimeInstant.instant(new DateTime(2014, 6, 20, 23, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            tx.success();
+        }
+
+        //Then
+        assertEquals(Arrays.asList(first, second, third), year);
+        assertTrue(spring.isEmpty());
+        assertEquals(Collections.singletonList(second), secondOnly);
+    }
+
+    @Test
+    public void rangeShouldBeCreatedAroundExistingInstants() {
+        //Given
+        Node existing1, existing2;
+        try (Transaction tx = getDatabase().beginTx()) {
+            existing1 = timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2014, 12, 31, 10, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            existing2 = timeTree.getOrCreateInstant(TimeInstant.instant(new DateTime(2015, 1, 1, 5, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            tx.success();
+        }
+
+        //When
+        List<Node> hours;
+        try (Transaction tx = getDatabase().beginTx()) {
+            hours = timeTree.getOrCreateInstants(
+                    TimeInstant.instant(new DateTime(2014, 12, 31, 8, 0, UTC).getMillis()).with(HOUR).with(UTC),
+                    TimeInstant.instant(new DateTime(2015, 1, 1, 6, 0, UTC).getMillis()).with(HOUR).with(UTC));
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(23, hours.size());
+            assertEquals(existing1, hours.get(2));
+            assertEquals(existing2, hours.get(21));
+
+            for (int i = 0; i < hours.size(); i++) {
+                long time = new DateTime(2014, 12, 31, 8, 0, UTC).plusHours(i).getMillis();
+                assertEquals(timeTree.getInstant(TimeInstant.instant(time).with(HOUR).with(UTC)), hours.get(i));
+
+                if (i < hours.size() - 1) {
+                    assertEquals(hours.get(i + 1), hours.get(i).getSingleRelationship(withName("NEXT"), OUTGOING).getEndNode());
+                }
+            }
+
+            assertEquals(23, count("MATCH (h:Hour) RETURN count(h) AS count"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void millisecondInstantsCreatedInRandomOrderShouldBeFound() {
+        //Given
+        long second = dateToMillis(2014, 4, 5);
+        List<Integer> millis = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 2) {
+            millis.add(i);
+        }
+        Collections.shuffle(millis, new Random(42));
+
+        Map<Integer, Long> created = new HashMap<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int milli : millis) {
+                created.put(milli, timeTree.getOrCreateInstant(TimeInstant.instant(second + milli).with(MILLISECOND).with(UTC)).getId());
+            }
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int milli : millis) {
+                assertEquals((long) created.get(milli), timeTree.getInstant(TimeInstant.instant(second + milli).with(MILLISECOND).with(UTC)).getId());
+                assertEquals((long) created.get(milli), timeTree.getOrCreateInstant(TimeInstant.instant(second + milli).with(MILLISECOND).with(UTC)).getId());
+            }
+
+            assertNull(timeTree.getInstant(TimeInstant.instant(second + 501).with(MILLISECOND).with(UTC)));
+            assertEquals((long) created.get(502), timeTree.getInstantAtOrAfter(TimeInstant.instant(second + 501).with(MILLISECOND).with(UTC)).getId());
+            assertEquals((long) created.get(500), timeTree.getInstantAtOrBefore(TimeInstant.instant(second + 501).with(MILLISECOND).with(UTC)).getId());
+            assertNull(timeTree.getInstantAtOrAfter(TimeInstant.instant(second + 999).with(MILLISECOND).with(UTC)));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void concurrentlyCreatedInstantsShouldFormConsistentTree() throws InterruptedException {
+        //Given
+        final long start = dateToMillis(2014, 1, 1);
+        final long day = 24 * 60 * 60 * 1000L;
+        final int noDays = 200;
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        //When
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            final long time = start + ((i * 37) % noDays) * day;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (Transaction tx = getDatabase().beginTx()) {
+                        timeTree.getOrCreateInstant(TimeInstant.instant(time).with(DAY).with(UTC));
+                        tx.success();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        //Then
+        assertEquals(0, failures.get());
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(noDays, count("MATCH (d:Day) RETURN count(d) AS count"));
+            assertEquals(1, count("MATCH (d:Day) WHERE NOT ()-[:NEXT]->(d) RETURN count(d) AS count"));
+            assertEquals(1, count("MATCH (d:Day) WHERE NOT (d)-[:NEXT]->() RETURN count(d) AS count"));
+            assertEquals(0, count("MATCH (m1:Month)-[:CHILD]->(d1:Day)-[:NEXT]->(d2:Day)<-[:CHILD]-(m2:Month) " +
+                    "WHERE m1.value > m2.value OR (m1 = m2 AND d1.value >= d2.value) RETURN count(d1) AS count"));
+            assertEquals(noDays - 1, count("MATCH (:Day)-[r:NEXT]->(:Day) RETURN count(r) AS count"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void stateOfFailedTransactionShouldNotLeakIntoCachesAndBeDiscardedByNextCommit() {
+        //Given
+        final TimeTreeCache cache = new TimeTreeCache(InstantCache.DEFAULT_CAPACITY);
+        SingleTimeTree tree = new SingleTimeTree(getDatabase(), cache);
+        getDatabase().registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public void afterCommit(TransactionData data, Void state) {
+                cache.afterCommit(data);
+            }
+
+            @Override
+            public void afterRollback(TransactionData data, Void state) {
+                cache.afterRollback();
+            }
+        });
+
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 4, 5)).with(DAY).with(UTC);
+
+        long failedDayId;
+        try (Transaction tx = getDatabase().beginTx()) {
+            failedDayId = tree.getOrCreateInstant(timeInstant).getId();
+            assertTrue(cache.isUncommitted(failedDayId));
+            tx.failure();
+        }
+
+        //When
+        long dayId;
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(tree.getInstant(timeInstant));
+            assertTrue(cache.getInstantCache().isEmpty());
+            dayId = tree.getOrCreateInstant(timeInstant).getId();
+            assertTrue(cache.getInstantCache().isEmpty());
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertFalse(cache.isUncommitted(failedDayId));
+            assertFalse(cache.isUncommitted(dayId));
+            assertEquals(dayId, tree.getInstant(timeInstant).getId());
+            assertFalse(cache.getInstantCache().isEmpty());
+            assertEquals(1, count("MATCH (d:Day) RETURN count(d) AS count"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void stateOfRolledBackRemovalShouldBeDiscarded() {
+        //Given
+        final TimeTreeCache cache = new TimeTreeCache(InstantCache.DEFAULT_CAPACITY);
+        final AtomicBoolean rollBack = new AtomicBoolean(false);
+        SingleTimeTree tree = new SingleTimeTree(getDatabase(), cache);
+        getDatabase().registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public Void beforeCommit(TransactionData data) throws Exception {
+                if (rollBack.get()) {
+                    throw new IllegalStateException("Rolling back");
+                }
+                return null;
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, Void state) {
+                cache.afterCommit(data);
+            }
+
+            @Override
+            public void afterRollback(TransactionData data, Void state) {
+                cache.afterRollback();
+            }
+        });
+
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 4, 5)).with(DAY).with(UTC);
+
+        long monthId;
+        try (Transaction tx = getDatabase().beginTx()) {
+            monthId = tree.getOrCreateInstant(timeInstant).getSingleRelationship(CHILD, INCOMING).getStartNode().getId();
+            tx.success();
+        }
+
+        //When
+        rollBack.set(true);
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertFalse(cache.isChanged(monthId));
+            tree.removeInstant(tree.getInstant(timeInstant));
+            assertTrue(cache.isChanged(monthId));
+            tx.success();
+        } catch (TransactionFailureException e) {
+            //expected
+        }
+
+        //Then
+        assertFalse(cache.isChanged(monthId));
+    }
+
+    private long count(String query) {
+        return (Long) getDatabase().execute(query).next().get("count");
+    }
+
     private long dateToMillis(int year, int month, int day) {
         return dateToDateTime(year, month, day).getMillis();
     }
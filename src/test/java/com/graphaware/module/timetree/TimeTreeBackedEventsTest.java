@@ -16,9 +16,13 @@
 
 package com.graphaware.module.timetree;
 
+import com.graphaware.module.timetree.domain.Aggregate;
 import com.graphaware.module.timetree.domain.Event;
+import com.graphaware.module.timetree.domain.EventPage;
+import com.graphaware.module.timetree.domain.EventToAttach;
 import com.graphaware.module.timetree.domain.Resolution;
 import com.graphaware.module.timetree.domain.TimeInstant;
+import com.graphaware.module.timetree.domain.TimeTreeRelationshipTypes;
 import com.graphaware.test.integration.EmbeddedDatabaseIntegrationTest;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -27,15 +31,23 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.graphaware.module.timetree.domain.Resolution.MONTH;
 import static com.graphaware.module.timetree.domain.Resolution.YEAR;
 import static com.graphaware.test.unit.GraphUnit.assertSameGraph;
 import static org.junit.Assert.*;
 import static org.neo4j.graphdb.Direction.BOTH;
+import static org.neo4j.graphdb.Direction.INCOMING;
 import static org.neo4j.graphdb.Direction.OUTGOING;
 import static org.neo4j.graphdb.RelationshipType.*;
 import static org.neo4j.helpers.collection.Iterables.count;
@@ -49,6 +61,7 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
     private static final RelationshipType AT_OTHER_TIME = withName("AT_OTHER_TIME");
     private static final Set<RelationshipType> REL_TYPES = new HashSet<>(Arrays.asList(AT_TIME, AT_OTHER_TIME));
 
+    private TimeTree timeTree;
     private TimedEvents timedEvents;
 
     private static final DateTimeZone UTC = DateTimeZone.forTimeZone(TimeZone.getTimeZone("UTC"));
@@ -56,7 +69,8 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
     @Before
     public void setUp() throws Exception {
         super.setUp();
-        timedEvents = new TimeTreeBackedEvents(new SingleTimeTree(getDatabase()));
+        timeTree = new SingleTimeTree(getDatabase());
+        timedEvents = new TimeTreeBackedEvents(timeTree);
     }
 
     @Test
@@ -206,6 +220,44 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
     }
 
 
+    @Test
+    public void eventShouldNotBeAttachedTwiceInOppositeDirection() {
+        //Given
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2012, 11, 1));
+        TimeInstant otherTimeInstant = TimeInstant.instant(dateToMillis(2012, 11, 2));
+        Node event;
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            event = getDatabase().createNode();
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertTrue(timedEvents.attachEvent(event, AT_TIME, OUTGOING, timeInstant));
+            assertFalse(timedEvents.attachEvent(event, AT_TIME, OUTGOING, timeInstant));
+            assertTrue(timedEvents.attachEvent(event, AT_TIME, OUTGOING, otherTimeInstant));
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            //make the instant the side with fewer relationships
+            for (int i = 0; i < 5; i++) {
+                timedEvents.attachEvent(event, AT_TIME, OUTGOING, TimeInstant.instant(dateToMillis(2012, 11, 10 + i)));
+            }
+            assertFalse(timedEvents.attachEvent(event, AT_TIME, OUTGOING, timeInstant));
+            assertTrue(timedEvents.attachEvent(event, AT_TIME, INCOMING, timeInstant));
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(7, count(event.getRelationships(INCOMING, AT_TIME)));
+            assertEquals(1, count(event.getRelationships(OUTGOING, AT_TIME)));
+            tx.success();
+        }
+    }
+
     @Test
     public void multipleEventsAndTimeInstantShouldBeCreatedWhenEventIsAttached() {
         //Given
@@ -285,6 +337,277 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
                 "(day2)<-[:AT_TIME]-(event2 {name:'eventB'})");
     }
 
+    @Test
+    public void eventsShouldBeAttachedInBatches() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withCountingEvents(true));
+
+        TimeInstant timeInstant1 = TimeInstant.instant(dateToMillis(2012, 11, 1));
+        TimeInstant timeInstant2 = TimeInstant.instant(dateToMillis(2012, 11, 3));
+        Node event1, event2, event3, event4;
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            event1 = getDatabase().createNode();
+            event2 = getDatabase().createNode();
+            event3 = getDatabase().createNode();
+            event4 = getDatabase().createNode();
+            timedEvents.attachEvent(event2, AT_TIME, timeInstant1);
+            tx.success();
+        }
+
+        //When
+        List<Boolean> attached = timedEvents.attachEvents(Arrays.asList(
+                new EventToAttach(event1, AT_TIME, timeInstant2),
+                new EventToAttach(event2, AT_TIME, timeInstant1),
+                new EventToAttach(event3, AT_TIME, timeInstant1),
+                new EventToAttach(event4, AT_OTHER_TIME, OUTGOING, timeInstant2),
+                new EventToAttach(event3, AT_TIME, timeInstant1)), 2);
+
+        //Then
+        assertEquals(Arrays.asList(true, false, true, true, false), attached);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            List<Event> events = timedEvents.getEvents(timeInstant1, timeInstant2, null, INCOMING);
+            assertEquals(3, events.size());
+            assertEquals(new HashSet<>(Arrays.asList(event2, event3)), new HashSet<>(Arrays.asList(events.get(0).getNode(), events.get(1).getNode())));
+            assertEquals(event1, events.get(2).getNode());
+
+            assertEquals(1, timedEvents.getEvents(timeInstant2, OUTGOING).size());
+            assertEquals(3, timedEvents.countEvents(timeInstant1, timeInstant2, null, INCOMING));
+            assertEquals(1, timedEvents.countEvents(timeInstant1, timeInstant2, null, OUTGOING));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsOfMixedResolutionsAndTimezonesShouldBeAttachedInBulkToCorrectInstants() {
+        //Given
+        long start = dateToMillis(2012, 12, 30);
+        List<TimeInstant> instants = new ArrayList<>();
+        for (int i = 0; i < 72; i += 5) {
+            long time = start + i * 3600 * 1000L;
+            instants.add(TimeInstant.instant(time).with(Resolution.HOUR));
+            instants.add(TimeInstant.instant(time).with(Resolution.DAY));
+            instants.add(TimeInstant.instant(time).with(Resolution.MINUTE).with(DateTimeZone.forOffsetHours(5)));
+        }
+
+        List<EventToAttach> events = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (TimeInstant instant : instants) {
+                events.add(new EventToAttach(getDatabase().createNode(), AT_TIME, instant));
+            }
+            tx.success();
+        }
+
+        //When
+        List<Boolean> attached = timedEvents.attachEvents(events, 7);
+
+        //Then
+        assertEquals(events.size(), attached.size());
+        assertFalse(attached.contains(false));
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (EventToAttach event : events) {
+                Node instant = timeTree.getInstant(event.getTimeInstant());
+                assertNotNull(instant);
+                assertEquals(instant, event.getNode().getSingleRelationship(AT_TIME, OUTGOING).getEndNode());
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsAttachedConcurrentlyInBatchesShouldFormConsistentTree() throws InterruptedException {
+        //Given
+        final int noThreads = 8;
+        final int noEvents = 200;
+        final int noDays = 60;
+        final long start = dateToMillis(2014, 1, 1);
+        final long day = 24 * 60 * 60 * 1000L;
+
+        final List<List<EventToAttach>> eventsPerThread = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int t = 0; t < noThreads; t++) {
+                List<EventToAttach> events = new ArrayList<>();
+                for (int i = 0; i < noEvents; i++) {
+                    long time = start + ((i * 7 + t) % noDays) * day + i;
+                    events.add(new EventToAttach(getDatabase().createNode(), AT_TIME, TimeInstant.instant(time).with(UTC)));
+                }
+                Collections.shuffle(events, new Random(t));
+                eventsPerThread.add(events);
+            }
+            tx.success();
+        }
+
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        //When
+        ExecutorService executor = Executors.newFixedThreadPool(noThreads);
+        for (final List<EventToAttach> events : eventsPerThread) {
+            executor.execute(() -> {
+                try {
+                    timedEvents.attachEvents(events, 10);
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        //Then
+        assertEquals(0, failures.get());
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(noDays, (long) getDatabase().execute("MATCH (d:Day) RETURN count(d) AS count").next().get("count"));
+            assertEquals(noDays - 1, (long) getDatabase().execute("MATCH (:Day)-[r:NEXT]->(:Day) RETURN count(r) AS count").next().get("count"));
+            assertEquals(noThreads * noEvents, (long) getDatabase().execute("MATCH (:Day)<-[r:AT_TIME]-() RETURN count(r) AS count").next().get("count"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsAttachedToHotInstantShouldBeSpreadOverBuckets() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withCountingEvents(true).withBucketing(5, 3));
+
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2012, 11, 1));
+        List<Node> events = new ArrayList<>();
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 30; i++) {
+                Node event = getDatabase().createNode();
+                assertTrue(timedEvents.attachEvent(event, AT_TIME, timeInstant));
+                events.add(event);
+            }
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node instant = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree().getInstant(timeInstant);
+            assertEquals(3, count(instant.getRelationships(OUTGOING, TimeTreeRelationshipTypes.BUCKET)));
+            assertTrue(count(instant.getRelationships(INCOMING, AT_TIME)) < 5);
+
+            for (Node event : events) {
+                assertFalse(timedEvents.attachEvent(event, AT_TIME, timeInstant));
+            }
+
+            List<Event> found = timedEvents.getEvents(timeInstant);
+            assertEquals(30, found.size());
+            Set<Node> nodes = new HashSet<>();
+            for (Event event : found) {
+                assertEquals(INCOMING, event.getDirection());
+                nodes.add(event.getNode());
+            }
+            assertEquals(new HashSet<>(events), nodes);
+
+            assertEquals(30, timedEvents.countEvents(timeInstant, timeInstant, null, INCOMING));
+            assertEquals(10, timedEvents.getLatestEvents(timeInstant, null, INCOMING, 10).size());
+
+            assertEquals(1, timedEvents.detachEvent(events.get(29), AT_TIME, INCOMING));
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(29, timedEvents.getEvents(timeInstant).size());
+            assertEquals(29, timedEvents.countEvents(timeInstant, timeInstant, null, INCOMING));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsAttachedToSameInstantShouldBeReturnedInOrderWhenOrderingEvents() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withBucketing(5, 3));
+
+        long day = dateToMillis(2012, 11, 1);
+        Node unordered;
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            unordered = getDatabase().createNode();
+            assertTrue(timedEvents.attachEvent(unordered, AT_TIME, TimeInstant.instant(day)));
+            tx.success();
+        }
+
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withBucketing(5, 3).withOrderingEvents(true));
+
+        //When
+        List<Node> expected = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node[] events = new Node[20];
+            for (int i = 0; i < 20; i++) {
+                events[i] = getDatabase().createNode();
+            }
+            for (int i = 0; i < 20; i++) {
+                int minute = (i * 7) % 20;
+                assertTrue(timedEvents.attachEvent(events[minute], AT_TIME, TimeInstant.instant(day + minute * 60 * 1000L)));
+            }
+            expected.addAll(Arrays.asList(events));
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(3, count(TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree().getInstant(TimeInstant.instant(day)).getRelationships(OUTGOING, TimeTreeRelationshipTypes.BUCKET)));
+
+            List<Node> found = new ArrayList<>();
+            for (Event event : timedEvents.getEvents(TimeInstant.instant(day))) {
+                found.add(event.getNode());
+            }
+            expected.add(unordered);
+            assertEquals(expected, found);
+
+            assertEquals(1, timedEvents.detachEvent(expected.get(10), AT_TIME, INCOMING));
+            expected.remove(10);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            List<Node> found = new ArrayList<>();
+            for (Event event : timedEvents.getEvents(TimeInstant.instant(day))) {
+                found.add(event.getNode());
+            }
+            assertEquals(expected, found);
+
+            List<Event> latest = timedEvents.getLatestEvents(TimeInstant.instant(day), null, INCOMING, 3);
+            assertEquals(unordered, latest.get(0).getNode());
+            assertEquals(expected.get(18), latest.get(1).getNode());
+            assertEquals(expected.get(17), latest.get(2).getNode());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void orderedEventsShouldBeBoundedByTimeTheyHaveBeenAttachedWith() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withBucketing(5, 3).withOrderingEvents(true));
+
+        long day = dateToMillis(2012, 11, 1);
+        Node[] events = new Node[20];
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 20; i++) {
+                int minute = (i * 7) % 20;
+                events[minute] = attachWithTimestamp(day + minute * 60 * 1000L, day + minute * 60 * 1000L, Resolution.DAY);
+            }
+            tx.success();
+        }
+
+        //When
+        List<Node> found = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (Event event : timedEvents.getEvents(TimeInstant.instant(day + 10 * 60 * 1000L), TimeInstant.instant(day + 15 * 60 * 1000L), "timestamp", null, INCOMING)) {
+                found.add(event.getNode());
+            }
+            tx.success();
+        }
+
+        //Then
+        assertEquals(Arrays.asList(events).subList(10, 16), found);
+    }
+
     @Test
     public void eventShouldBeFetchedForATimeInstant() {
         //Given
@@ -733,6 +1056,625 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
         }
     }
 
+    @Test
+    public void iteratedEventsShouldMatchFetchedEvents() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 10, 30)).with(Resolution.HOUR);
+        TimeInstant end = TimeInstant.instant(dateToMillis(2012, 11, 3)).with(Resolution.HOUR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 90; i++) {
+                Node event = getDatabase().createNode();
+                event.setProperty("name", "event" + i);
+                timedEvents.attachEvent(event, i % 2 == 0 ? AT_TIME : AT_OTHER_TIME, TimeInstant.instant(start.getTime() + i * 3600 * 1000L).with(Resolution.HOUR));
+            }
+            Node monthEvent = getDatabase().createNode();
+            monthEvent.setProperty("name", "monthEvent");
+            timedEvents.attachEvent(monthEvent, AT_TIME, TimeInstant.instant(dateToMillis(2012, 11, 1)).with(MONTH));
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            List<Event> expected = timedEvents.getEvents(start, end, REL_TYPES, INCOMING);
+            assertEquals(90, expected.size());
+
+            List<Event> iterated = new ArrayList<>();
+            try (ResourceIterator<Event> iterator = timedEvents.iterateEvents(start, end, REL_TYPES, INCOMING)) {
+                while (iterator.hasNext()) {
+                    iterated.add(iterator.next());
+                }
+            }
+
+            assertEquals(expected.size(), iterated.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals("event" + i, iterated.get(i).getNode().getProperty("name"));
+                assertEquals(expected.get(i).getNode(), iterated.get(i).getNode());
+            }
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsShouldBeStreamedWithoutCallerTransaction() {
+        //Given
+        TimeInstant timeInstant1 = TimeInstant.instant(dateToMillis(2012, 11, 1));
+        TimeInstant timeInstant2 = TimeInstant.instant(dateToMillis(2012, 11, 3));
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 3; i++) {
+                Node event = getDatabase().createNode();
+                event.setProperty("name", "event" + i);
+                timedEvents.attachEvent(event, AT_TIME, i == 2 ? timeInstant2 : timeInstant1);
+            }
+            tx.success();
+        }
+
+        //When
+        List<Object> names;
+        try (Stream<Event> events = timedEvents.streamEvents(timeInstant1, timeInstant2, null, INCOMING)) {
+            names = events.limit(2).map(event -> event.getNode().getProperty("name")).collect(Collectors.toList());
+        }
+
+        //Then
+        assertEquals(Arrays.<Object>asList("event0", "event1"), names);
+    }
+
+    @Test
+    public void noEventsShouldBeIteratedWhenThereAreNoInstantsInTheRange() {
+        //Given
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(dateToMillis(2012, 11, 1)));
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(dateToMillis(2012, 11, 5)));
+            tx.success();
+        }
+
+        //When & Then
+        try (ResourceIterator<Event> iterator = timedEvents.iterateEvents(TimeInstant.instant(dateToMillis(2012, 11, 2)), TimeInstant.instant(dateToMillis(2012, 11, 4)), null, INCOMING)) {
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    public void eventsShouldBeFilteredByExactTimeBoundsAtTheEdgesOfTheRange() {
+        //Given
+        long start = dateToDateTime(2012, 11, 1).withTime(10, 15, 30, 0).getMillis();
+        long end = dateToDateTime(2012, 11, 3).withTime(10, 17, 5, 0).getMillis();
+        long tooEarly = dateToDateTime(2012, 11, 1).withTime(10, 0, 0, 0).getMillis();
+        long inRange = dateToDateTime(2012, 11, 1).withTime(12, 0, 0, 0).getMillis();
+        long tooLate = dateToDateTime(2012, 11, 3).withTime(10, 17, 6, 0).getMillis();
+
+        List<Node> expected = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            attachWithTimestamp(tooEarly - 3600 * 1000L, tooEarly, Resolution.DAY);
+            attachWithTimestamp(tooEarly, tooEarly, Resolution.HOUR);
+            //the subtree of an hour before the start is not visited, whatever its events' timestamps are
+            attachWithTimestamp(tooEarly - 3600 * 1000L, inRange, Resolution.HOUR);
+            expected.add(attachWithTimestamp(inRange, inRange, Resolution.DAY));
+
+            Node interior = getDatabase().createNode();
+            timedEvents.attachEvent(interior, AT_TIME, TimeInstant.instant(dateToMillis(2012, 11, 2)));
+            expected.add(interior);
+
+            expected.add(attachWithTimestamp(end, end, Resolution.DAY));
+            attachWithTimestamp(tooLate, tooLate, Resolution.MINUTE);
+            //the subtree of an hour after the end is not visited either
+            attachWithTimestamp(end + 3600 * 1000L, end, Resolution.HOUR);
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            List<Node> found = new ArrayList<>();
+            for (Event event : timedEvents.getEvents(TimeInstant.instant(start), TimeInstant.instant(end), "timestamp", null, INCOMING)) {
+                found.add(event.getNode());
+            }
+
+            List<Node> paged = new ArrayList<>();
+            String cursor = null;
+            do {
+                EventPage page = timedEvents.getEvents(TimeInstant.instant(start), TimeInstant.instant(end), "timestamp", null, INCOMING, 1, cursor);
+                for (Event event : page.getEvents()) {
+                    paged.add(event.getNode());
+                }
+                cursor = page.getCursor();
+            } while (cursor != null);
+
+            //Then
+            assertEquals(expected, found);
+            assertEquals(expected, paged);
+            assertEquals(8, timedEvents.getEvents(TimeInstant.instant(start), TimeInstant.instant(end), null, INCOMING).size());
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsWithoutTimestampShouldBeReturnedWhereverTheyLieInBoundedRange() {
+        //Given
+        long start = dateToDateTime(2012, 11, 1).withTime(10, 15, 30, 0).getMillis();
+        long end = dateToDateTime(2012, 11, 3).withTime(10, 17, 5, 0).getMillis();
+
+        List<Node> expected = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            expected.add(attachWithoutTimestamp(dateToMillis(2012, 11, 1), Resolution.DAY));
+            expected.add(attachWithoutTimestamp(start, Resolution.MINUTE));
+            expected.add(attachWithoutTimestamp(dateToMillis(2012, 11, 2), Resolution.DAY));
+            expected.add(attachWithoutTimestamp(end, Resolution.MINUTE));
+            expected.add(attachWithoutTimestamp(dateToMillis(2012, 11, 3), Resolution.DAY));
+            //outside the range, whether the event has a timestamp or not
+            attachWithoutTimestamp(end + 3600 * 1000L, Resolution.HOUR);
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            Set<Node> found = new HashSet<>();
+            for (Event event : timedEvents.getEvents(TimeInstant.instant(start), TimeInstant.instant(end), "timestamp", null, INCOMING)) {
+                found.add(event.getNode());
+            }
+
+            //Then
+            assertEquals(new HashSet<>(expected), found);
+
+            tx.success();
+        }
+    }
+
+    private Node attachWithoutTimestamp(long time, Resolution resolution) {
+        Node event = getDatabase().createNode();
+        timedEvents.attachEvent(event, AT_TIME, TimeInstant.instant(time).with(resolution));
+        return event;
+    }
+
+    private Node attachWithTimestamp(long time, long timestamp, Resolution resolution) {
+        Node event = getDatabase().createNode();
+        event.setProperty("timestamp", timestamp);
+        timedEvents.attachEvent(event, AT_TIME, TimeInstant.instant(time).with(resolution));
+        return event;
+    }
+
+    @Test
+    public void pagesShouldContinueFromCursor() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 11, 1)).with(Resolution.HOUR);
+        TimeInstant end = TimeInstant.instant(dateToMillis(2012, 11, 2)).with(Resolution.HOUR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 20; i++) {
+                Node event = getDatabase().createNode();
+                event.setProperty("name", "event" + i);
+                //alternate between minutes and hours, so that pages end at different depths
+                Resolution resolution = i % 3 == 0 ? Resolution.HOUR : Resolution.MINUTE;
+                timedEvents.attachEvent(event, AT_TIME, TimeInstant.instant(start.getTime() + i * 1800 * 1000L).with(resolution));
+            }
+            tx.success();
+        }
+
+        //When
+        List<Event> paged = new ArrayList<>();
+        int pages = 0;
+        String cursor = null;
+        try (Transaction tx = getDatabase().beginTx()) {
+            do {
+                EventPage page = timedEvents.getEvents(start, end, null, INCOMING, 3, cursor);
+                assertTrue(page.getEvents().size() <= 3);
+                paged.addAll(page.getEvents());
+                cursor = page.getCursor();
+                pages++;
+            } while (cursor != null);
+
+            //Then
+            List<Event> all = timedEvents.getEvents(start, end, null, INCOMING);
+            assertEquals(20, all.size());
+            assertEquals(7, pages);
+            assertEquals(all.size(), paged.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals(all.get(i).getNode(), paged.get(i).getNode());
+            }
+
+            tx.success();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCursorShouldBeRejected() {
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(dateToMillis(2012, 11, 1)));
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.getEvents(TimeInstant.instant(dateToMillis(2012, 11, 1)), TimeInstant.instant(dateToMillis(2012, 11, 2)), null, INCOMING, 10, "not a cursor");
+            tx.success();
+        }
+    }
+
+    @Test
+    public void cursorFromAnotherRangeShouldBeRejected() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 11, 1)).with(Resolution.HOUR);
+        TimeInstant end = TimeInstant.instant(dateToMillis(2012, 11, 2)).with(Resolution.HOUR);
+        TimeInstant otherStart = TimeInstant.instant(dateToMillis(2012, 11, 5)).with(Resolution.HOUR);
+        TimeInstant otherEnd = TimeInstant.instant(dateToMillis(2012, 11, 6)).with(Resolution.HOUR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 5; i++) {
+                timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(start.getTime() + i * 3600 * 1000L).with(Resolution.HOUR));
+                timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(otherStart.getTime() + i * 3600 * 1000L).with(Resolution.HOUR));
+            }
+            tx.success();
+        }
+
+        String cursor;
+        try (Transaction tx = getDatabase().beginTx()) {
+            cursor = timedEvents.getEvents(start, end, null, INCOMING, 2, null).getCursor();
+            assertNotNull(cursor);
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.getEvents(otherStart, otherEnd, null, INCOMING, 2, cursor);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //Then
+            assertTrue(e.getMessage().contains("does not belong to the requested range"));
+        }
+    }
+
+    @Test
+    public void cursorFromAnotherTreeShouldBeRejected() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 11, 1)).with(Resolution.HOUR);
+        TimeInstant end = TimeInstant.instant(dateToMillis(2012, 11, 2)).with(Resolution.HOUR);
+
+        TimedEvents customEvents;
+        try (Transaction tx = getDatabase().beginTx()) {
+            customEvents = new TimeTreeBackedEvents(new CustomRootTimeTree(getDatabase().createNode()));
+            for (int i = 0; i < 5; i++) {
+                timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(start.getTime() + i * 3600 * 1000L).with(Resolution.HOUR));
+                customEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(start.getTime() + i * 3600 * 1000L).with(Resolution.HOUR));
+            }
+            tx.success();
+        }
+
+        String cursor;
+        try (Transaction tx = getDatabase().beginTx()) {
+            cursor = customEvents.getEvents(start, end, null, INCOMING, 2, null).getCursor();
+            assertNotNull(cursor);
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.getEvents(start, end, null, INCOMING, 2, cursor);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //Then
+            assertTrue(e.getMessage().contains("different time tree"));
+        }
+    }
+
+    @Test
+    public void countedEventsShouldMatchFetchedEvents() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withCountingEvents(true));
+
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 12, 30)).with(Resolution.HOUR);
+        List<Node> events = new ArrayList<>();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 100; i++) {
+                Node event = getDatabase().createNode();
+                Resolution resolution = i % 5 == 0 ? Resolution.DAY : i % 3 == 0 ? Resolution.HOUR : Resolution.MINUTE;
+                timedEvents.attachEvent(event, i % 2 == 0 ? AT_TIME : AT_OTHER_TIME, TimeInstant.instant(start.getTime() + i * 7 * 3600 * 1000L).with(resolution));
+                events.add(event);
+            }
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(dateToMillis(2013, 1, 1)).with(MONTH));
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 10; i++) {
+                timedEvents.detachEvent(events.get(i * 7), i * 7 % 2 == 0 ? AT_TIME : AT_OTHER_TIME, INCOMING);
+            }
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            long[][] ranges = {
+                    {dateToMillis(2012, 12, 30), dateToMillis(2013, 1, 30)},
+                    {dateToMillis(2012, 12, 31), dateToMillis(2013, 1, 1)},
+                    {dateToMillis(2013, 1, 2), dateToMillis(2013, 1, 20)},
+                    {dateToMillis(2013, 1, 5), dateToMillis(2013, 1, 5)},
+                    {dateToMillis(2011, 1, 1), dateToMillis(2014, 1, 1)}};
+
+            for (long[] range : ranges) {
+                for (Resolution resolution : Arrays.asList(YEAR, MONTH, Resolution.DAY, Resolution.HOUR)) {
+                    TimeInstant from = TimeInstant.instant(range[0]).with(resolution);
+                    TimeInstant to = TimeInstant.instant(range[1]).with(resolution);
+
+                    assertEquals(timedEvents.getEvents(from, to, REL_TYPES, INCOMING).size(), timedEvents.countEvents(from, to, REL_TYPES, INCOMING));
+                    assertEquals(timedEvents.getEvents(from, to, Collections.singleton(AT_TIME), INCOMING).size(), timedEvents.countEvents(from, to, Collections.singleton(AT_TIME)));
+                    assertEquals(0, timedEvents.countEvents(from, to, REL_TYPES, OUTGOING));
+                }
+            }
+
+            assertEquals(91, timedEvents.countEvents(TimeInstant.instant(dateToMillis(2012, 1, 1)).with(YEAR), TimeInstant.instant(dateToMillis(2013, 1, 1)).with(YEAR), null, BOTH));
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void countsShouldBeRolledUpToAncestorsOncePerTransaction() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withCountingEvents(true).withBucketing(5, 3));
+
+        TimeInstant hour = TimeInstant.instant(dateToMillis(2012, 12, 30)).with(Resolution.HOUR);
+        TimeInstant year = TimeInstant.instant(hour.getTime()).with(YEAR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 20; i++) {
+                timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, hour);
+            }
+
+            //pending changes of the transaction are seen by its own reads
+            assertEquals(20, timedEvents.countEvents(year, year, null, INCOMING));
+
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, hour);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, hour);
+            tx.failure();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node yearNode = timeTree.getInstant(year);
+            Node dayNode = timeTree.getInstant(TimeInstant.instant(hour.getTime()).with(Resolution.DAY));
+
+            assertEquals(21L, yearNode.getProperty("eventCountRollUp:HOUR:INCOMING:AT_TIME"));
+            assertEquals(21L, dayNode.getProperty("eventCountRollUp:HOUR:INCOMING:AT_TIME"));
+            assertFalse(yearNode.getAllProperties().keySet().stream().anyMatch(key -> key.startsWith("eventCount:")));
+            assertFalse(timeTree.getInstant(hour).getAllProperties().keySet().stream().anyMatch(key -> key.startsWith("eventCountPending")));
+
+            assertEquals(21, timedEvents.countEvents(hour, hour, null, INCOMING));
+            assertEquals(21, timedEvents.countEvents(year, year, null, INCOMING));
+            assertEquals(21, timedEvents.countEvents(TimeInstant.instant(dateToMillis(2012, 12, 1)).with(Resolution.DAY), TimeInstant.instant(dateToMillis(2013, 1, 31)).with(Resolution.DAY), null, INCOMING));
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void aggregatedEventsShouldMatchVisitedEvents() {
+        //Given
+        EventSettings settings = EventSettings.DEFAULT.withAggregatedProperty("amount");
+        timedEvents = new TimeTreeBackedEvents(timeTree, settings);
+        TimedEvents visiting = new TimeTreeBackedEvents(timeTree);
+
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 12, 30)).with(Resolution.HOUR);
+        List<Node> events = new ArrayList<>();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 100; i++) {
+                Node event = getDatabase().createNode();
+                if (i % 10 != 9) {
+                    event.setProperty("amount", i % 2 == 0 ? i : i * 0.5);
+                }
+                Resolution resolution = i % 5 == 0 ? Resolution.DAY : Resolution.HOUR;
+                timedEvents.attachEvent(event, i % 3 == 0 ? AT_TIME : AT_OTHER_TIME, TimeInstant.instant(start.getTime() + i * 7 * 3600 * 1000L).with(resolution));
+                events.add(event);
+            }
+            tx.success();
+        }
+
+        EventAggregator aggregator = settings.getEventAggregator();
+        try (Transaction tx = getDatabase().beginTx()) {
+            //remove the extremes, so that they have to be recomputed
+            timedEvents.detachEvent(events.get(0), AT_TIME, INCOMING);
+            timedEvents.detachEvent(events.get(98), AT_OTHER_TIME, INCOMING);
+            Node changed = events.get(50);
+            changed.setProperty("amount", 1000);
+            aggregator.valueChanged(changed, AT_OTHER_TIME, INCOMING, 50, 1000);
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            long[][] ranges = {
+                    {dateToMillis(2012, 12, 30), dateToMillis(2013, 1, 30)},
+                    {dateToMillis(2012, 12, 31), dateToMillis(2013, 1, 1)},
+                    {dateToMillis(2013, 1, 2), dateToMillis(2013, 1, 20)}};
+
+            for (long[] range : ranges) {
+                for (Resolution resolution : Arrays.asList(YEAR, MONTH, Resolution.DAY, Resolution.HOUR)) {
+                    TimeInstant from = TimeInstant.instant(range[0]).with(resolution);
+                    TimeInstant to = TimeInstant.instant(range[1]).with(resolution);
+
+                    for (Set<RelationshipType> types : Arrays.asList(null, Collections.singleton(AT_TIME))) {
+                        Aggregate visited = visiting.aggregateEvents(from, to, "amount", types, INCOMING);
+                        Aggregate maintained = timedEvents.aggregateEvents(from, to, "amount", types, INCOMING);
+
+                        assertEquals(visited.getCount(), maintained.getCount());
+                        assertEquals(visited.getSum(), maintained.getSum(), 0.0001);
+                        assertEquals(visited.getMin(), maintained.getMin());
+                        assertEquals(visited.getMax(), maintained.getMax());
+                    }
+                }
+            }
+
+            Aggregate all = timedEvents.aggregateEvents(TimeInstant.instant(dateToMillis(2012, 1, 1)).with(YEAR), TimeInstant.instant(dateToMillis(2013, 1, 1)).with(YEAR), "amount", null, INCOMING);
+            assertEquals(88, all.getCount());
+            assertEquals(0.5, all.getMin(), 0);
+            assertEquals(1000, all.getMax(), 0);
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void aggregatesShouldBeRolledUpToAncestors() {
+        //Given
+        timedEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withAggregatedProperty("amount").withBucketing(5, 3));
+
+        TimeInstant hour = TimeInstant.instant(dateToMillis(2012, 12, 30)).with(Resolution.HOUR);
+        TimeInstant year = TimeInstant.instant(hour.getTime()).with(YEAR);
+        List<Node> events = new ArrayList<>();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 20; i++) {
+                Node event = getDatabase().createNode();
+                event.setProperty("amount", i);
+                timedEvents.attachEvent(event, AT_TIME, hour);
+                events.add(event);
+            }
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            //remove the extremes, one attached to the instant and one to a bucket, and a value in between
+            timedEvents.detachEvent(events.get(0), AT_TIME, INCOMING);
+            timedEvents.detachEvent(events.get(19), AT_TIME, INCOMING);
+            timedEvents.detachEvent(events.get(10), AT_TIME, INCOMING);
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node yearNode = timeTree.getInstant(year);
+            assertEquals("[17.0, 161.0, 1.0, 18.0]", Arrays.toString((double[]) yearNode.getProperty("eventAggregateRollUp:amount:HOUR:INCOMING:AT_TIME")));
+            assertFalse(yearNode.getAllProperties().keySet().stream().anyMatch(key -> key.startsWith("eventAggregate:")));
+            assertFalse(timeTree.getInstant(hour).getAllProperties().keySet().stream().anyMatch(key -> key.startsWith("eventAggregatePending")));
+
+            for (TimeInstant instant : Arrays.asList(hour, year)) {
+                Aggregate aggregate = timedEvents.aggregateEvents(instant, instant, "amount", null, INCOMING);
+                assertEquals(17, aggregate.getCount());
+                assertEquals(161, aggregate.getSum(), 0);
+                assertEquals(1, aggregate.getMin(), 0);
+                assertEquals(18, aggregate.getMax(), 0);
+            }
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsCollectedInParallelShouldMatchEventsCollectedSequentially() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 12, 30)).with(Resolution.HOUR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 100; i++) {
+                Resolution resolution = i % 5 == 0 ? Resolution.DAY : i % 3 == 0 ? Resolution.HOUR : Resolution.MINUTE;
+                timedEvents.attachEvent(getDatabase().createNode(), i % 2 == 0 ? AT_TIME : AT_OTHER_TIME, TimeInstant.instant(start.getTime() + i * 7 * 3600 * 1000L).with(resolution));
+            }
+            timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, TimeInstant.instant(dateToMillis(2013, 1, 1)).with(MONTH));
+            tx.success();
+        }
+
+        long[][] ranges = {
+                {dateToMillis(2012, 12, 30), dateToMillis(2013, 1, 30)},
+                {dateToMillis(2012, 12, 31), dateToMillis(2013, 1, 1)},
+                {dateToMillis(2013, 1, 2), dateToMillis(2013, 1, 20)},
+                {dateToMillis(2011, 1, 1), dateToMillis(2014, 1, 1)}};
+
+        ParallelEventCollector collector = new ParallelEventCollector(4);
+        TimedEvents parallelEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withParallelEventCollector(collector));
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (long[] range : ranges) {
+                for (Resolution resolution : Arrays.asList(YEAR, MONTH, Resolution.DAY, Resolution.HOUR)) {
+                    TimeInstant from = TimeInstant.instant(range[0]).with(resolution);
+                    TimeInstant to = TimeInstant.instant(range[1]).with(resolution);
+
+                    List<Event> sequential = timedEvents.getEvents(from, to, REL_TYPES, INCOMING);
+                    List<Event> parallel = parallelEvents.getCommittedEvents(from, to, REL_TYPES, INCOMING);
+
+                    assertEquals(sequential.size(), parallel.size());
+                    for (int i = 0; i < sequential.size(); i++) {
+                        assertEquals(sequential.get(i).getNode(), parallel.get(i).getNode());
+                        assertEquals(sequential.get(i).getRelationshipType().name(), parallel.get(i).getRelationshipType().name());
+                    }
+                }
+            }
+
+            tx.success();
+        } finally {
+            collector.shutdown();
+        }
+    }
+
+    @Test
+    public void eventsAttachedInCallersTransactionShouldBeReturnedWhenCollectorIsConfigured() {
+        //Given
+        ParallelEventCollector collector = new ParallelEventCollector(4);
+        TimedEvents parallelEvents = new TimeTreeBackedEvents(timeTree, EventSettings.DEFAULT.withParallelEventCollector(collector));
+
+        TimeInstant from = TimeInstant.instant(dateToMillis(2012, 1, 1)).with(Resolution.DAY);
+        TimeInstant to = TimeInstant.instant(dateToMillis(2013, 12, 31)).with(Resolution.DAY);
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node event = getDatabase().createNode();
+            parallelEvents.attachEvent(event, AT_TIME, TimeInstant.instant(dateToMillis(2013, 5, 4)).with(Resolution.DAY));
+
+            List<Event> events = parallelEvents.getEvents(from, to, REL_TYPES, INCOMING);
+            assertEquals(1, events.size());
+            assertEquals(event, events.get(0).getNode());
+
+            tx.success();
+        } finally {
+            collector.shutdown();
+        }
+    }
+
+    @Test
+    public void latestEventsShouldBeReturnedNewestFirst() {
+        //Given
+        TimeInstant start = TimeInstant.instant(dateToMillis(2012, 10, 31)).with(Resolution.HOUR);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 30; i++) {
+                Node event = getDatabase().createNode();
+                event.setProperty("name", "event" + i);
+                Resolution resolution = i % 3 == 0 ? Resolution.HOUR : Resolution.MINUTE;
+                timedEvents.attachEvent(event, AT_TIME, TimeInstant.instant(start.getTime() + i * 3600 * 1000L).with(resolution));
+            }
+            tx.success();
+        }
+
+        //When & Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeInstant latest = TimeInstant.instant(start.getTime() + 20 * 3600 * 1000L).with(Resolution.HOUR);
+
+            List<Event> events = timedEvents.getLatestEvents(latest, null, INCOMING, 5);
+            assertEquals(5, events.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals("event" + (20 - i), events.get(i).getNode().getProperty("name"));
+            }
+
+            List<Event> all = timedEvents.getLatestEvents(latest, null, INCOMING, 100);
+            assertEquals(21, all.size());
+            List<Event> chronological = timedEvents.getEvents(start, latest, null, INCOMING);
+            Collections.reverse(chronological);
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals(chronological.get(i).getNode(), all.get(i).getNode());
+            }
+
+            assertTrue(timedEvents.getLatestEvents(TimeInstant.instant(dateToMillis(2012, 1, 1)).with(Resolution.HOUR), null, INCOMING, 5).isEmpty());
+
+            tx.success();
+        }
+    }
+
     @Test
     @Ignore //save my CPU from frying
     public void perSecondEventsShouldBeFetched() { //Test for Issue #2
@@ -773,6 +1715,55 @@ public class TimeTreeBackedEventsTest extends EmbeddedDatabaseIntegrationTest {
         }
     }
 
+    @Test
+    @Ignore //benchmark, run manually
+    public void typeFilteredEventsShouldBeFetchedQuicklyFromHighDegreeInstant() {
+        //Given an instant with many events of one type and few of another
+        TimeInstant timeInstant = TimeInstant.instant(dateToMillis(2014, 10, 11));
+        int frequent = 500000, rare = 100, batch = 10000;
+
+        for (int i = 0; i < frequent; i += batch) {
+            try (Transaction tx = getDatabase().beginTx()) {
+                for (int j = 0; j < batch; j++) {
+                    timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, timeInstant);
+                }
+                tx.success();
+            }
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < rare; i++) {
+                timedEvents.attachEvent(getDatabase().createNode(), AT_OTHER_TIME, timeInstant);
+            }
+            tx.success();
+        }
+
+        //When fetching the rare events, typed expansion vs. reading everything and filtering
+        long typed = Long.MAX_VALUE, filtered = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            try (Transaction tx = getDatabase().beginTx()) {
+                long start = System.nanoTime();
+                assertEquals(rare, timedEvents.getEvents(timeInstant, Collections.singleton(AT_OTHER_TIME)).size());
+                typed = Math.min(typed, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                int count = 0;
+                for (Event event : timedEvents.getEvents(timeInstant)) {
+                    if (event.getRelationshipType().name().equals(AT_OTHER_TIME.name())) {
+                        count++;
+                    }
+                }
+                assertEquals(rare, count);
+                filtered = Math.min(filtered, System.nanoTime() - start);
+
+                tx.success();
+            }
+        }
+
+        //Then
+        assertTrue("Typed expansion took " + typed / 1000000 + " ms, filtering all " + filtered / 1000000 + " ms", typed < filtered);
+    }
+
     private long dateToMillis(int year, int month, int day) {
         return dateToDateTime(year, month, day).getMillis();
     }
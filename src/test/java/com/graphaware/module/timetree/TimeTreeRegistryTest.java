@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.graphaware.module.timetree;
+
+import com.graphaware.module.timetree.domain.TimeInstant;
+import com.graphaware.test.integration.EmbeddedDatabaseIntegrationTest;
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link TimeTreeRegistry}.
+ */
+public class TimeTreeRegistryTest extends EmbeddedDatabaseIntegrationTest {
+
+    @Test
+    public void sameTreesShouldBeReturnedForSameDatabaseAndRoot() {
+        //Given
+        Node root = createRoot();
+
+        //When
+        TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+
+        //Then
+        assertSame(registry, TimeTreeRegistry.forDatabase(getDatabase()));
+        assertSame(registry.getDefaultTimeTree(), registry.getDefaultTimeTree());
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertSame(registry.getTimeTree(root.getId()), registry.getTimeTree(root));
+            assertNotSame(registry.getDefaultTimeTree(), registry.getTimeTree(root));
+            tx.success();
+        }
+
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void eventsBackedByRegistryShouldFollowSettingsPublishedLater() {
+        //Given
+        TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+        TimeTreeBackedEvents events = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry);
+        assertFalse(events.getSettings().isCountingEvents());
+
+        //When
+        EventSettings settings = EventSettings.DEFAULT.withCountingEvents(true);
+        registry.setEventSettings(settings);
+
+        //Then
+        try {
+            assertSame(settings, events.getSettings());
+        } finally {
+            registry.setEventSettings(null);
+        }
+
+        assertSame(EventSettings.DEFAULT, events.getSettings());
+    }
+
+    @Test
+    public void idleTreesShouldBeEvicted() throws InterruptedException {
+        //Given
+        Node root1 = createRoot();
+        Node root2 = createRoot();
+        TimeTreeRegistry registry = new TimeTreeRegistry(getDatabase(), 100);
+
+        TimeTree tree1;
+        try (Transaction tx = getDatabase().beginTx()) {
+            tree1 = registry.getTimeTree(root1);
+            tx.success();
+        }
+
+        //When
+        Thread.sleep(200);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            registry.getTimeTree(root2);
+            tx.success();
+        }
+
+        //Then
+        assertEquals(1, registry.size());
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNotSame(tree1, registry.getTimeTree(root1));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void treesShouldStayConsistentThroughSharedHandler() {
+        //Given
+        Node root = createRoot();
+        TimeTreeRegistry registry = new TimeTreeRegistry(getDatabase(), TimeTreeRegistry.DEFAULT_IDLE_TIMEOUT);
+        TimeInstant instant = TimeInstant.instant(1436268660000L);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            registry.getTimeTree(root).getOrCreateInstant(instant);
+            registry.getDefaultTimeTree().getOrCreateInstant(instant);
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            registry.getTimeTree(root).removeAll();
+            tx.success();
+        }
+
+        //Then
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNull(registry.getTimeTree(root).getInstant(instant));
+            assertNotNull(registry.getDefaultTimeTree().getInstant(instant));
+            tx.success();
+        }
+
+        //When
+        try (Transaction tx = getDatabase().beginTx()) {
+            getDatabase().getNodeById(root.getId()).delete();
+            tx.success();
+        }
+
+        //Then
+        assertEquals(0, registry.size());
+    }
+
+    private Node createRoot() {
+        Node root;
+        try (Transaction tx = getDatabase().beginTx()) {
+            root = getDatabase().createNode(Label.label("CustomRoot"));
+            tx.success();
+        }
+        return root;
+    }
+}
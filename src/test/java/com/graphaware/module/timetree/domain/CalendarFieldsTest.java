@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.domain;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link CalendarFields}.
+ */
+public class CalendarFieldsTest {
+
+    private static final String[] TIME_ZONES = {"UTC", "Etc/GMT-5", "Europe/London", "America/New_York", "Australia/Adelaide", "Asia/Kathmandu"};
+
+    @Test
+    public void fieldsShouldMatchJodaAroundTransitions() {
+        for (String id : TIME_ZONES) {
+            DateTimeZone timeZone = DateTimeZone.forID(id);
+            long time = new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+
+            for (int i = 0; i < 8; i++) {
+                long transition = timeZone.nextTransition(time);
+                if (transition == time) {
+                    transition = time + 90 * 24 * 60 * 60 * 1000L;
+                }
+
+                for (long t = transition - 2 * 60 * 60 * 1000L; t <= transition + 2 * 60 * 60 * 1000L; t += 7 * 60 * 1000L + 13) {
+                    assertSameFields(timeZone, t);
+                }
+                assertSameFields(timeZone, transition - 1);
+                assertSameFields(timeZone, transition);
+
+                time = transition;
+            }
+        }
+    }
+
+    @Test
+    public void fieldsShouldMatchJodaForRandomTimes() {
+        Random random = new Random(42);
+
+        for (String id : TIME_ZONES) {
+            DateTimeZone timeZone = DateTimeZone.forID(id);
+
+            for (int i = 0; i < 10000; i++) {
+                //roughly 1900 - 2100, in random order so that the cached offset is recomputed often
+                assertSameFields(timeZone, (long) ((random.nextDouble() - 0.35) * 200 * 365.25 * 24 * 60 * 60 * 1000));
+            }
+        }
+    }
+
+    @Test
+    public void nextShouldAddOneUnitInTimeZone() {
+        DateTimeZone timeZone = DateTimeZone.forID("Europe/London");
+        long beforeTransition = new DateTime(2014, 3, 29, 12, 0, timeZone).getMillis();
+
+        assertEquals(new DateTime(2014, 3, 30, 12, 0, timeZone).getMillis(), CalendarFields.forZone(timeZone).next(beforeTransition, Resolution.DAY));
+        assertEquals(new DateTime(2014, 4, 29, 12, 0, timeZone).getMillis(), CalendarFields.forZone(timeZone).next(beforeTransition, Resolution.MONTH));
+        assertEquals(beforeTransition + 1, CalendarFields.forZone(timeZone).next(beforeTransition, Resolution.MILLISECOND));
+    }
+
+    private void assertSameFields(DateTimeZone timeZone, long time) {
+        int[] fields = new int[Resolution.values().length];
+        CalendarFields.forZone(timeZone).decompose(time, fields);
+
+        DateTime expected = new DateTime(time, timeZone);
+        for (Resolution resolution : Resolution.values()) {
+            assertEquals(expected.get(resolution.getDateTimeFieldType()), fields[resolution.ordinal()]);
+        }
+    }
+}
@@ -20,6 +20,13 @@ import com.graphaware.common.kv.GraphKeyValueStore;
 import com.graphaware.common.kv.KeyValueStore;
 import com.graphaware.common.policy.BaseNodeInclusionPolicy;
 import com.graphaware.common.serialize.Serializer;
+import com.graphaware.module.timetree.EventBuckets;
+import com.graphaware.module.timetree.TimeTree;
+import com.graphaware.module.timetree.TimeTreeBackedEvents;
+import com.graphaware.module.timetree.TimeTreeRegistry;
+import com.graphaware.module.timetree.TimedEvents;
+import com.graphaware.module.timetree.domain.Aggregate;
+import com.graphaware.module.timetree.domain.TimeInstant;
 import com.graphaware.runtime.GraphAwareRuntime;
 import com.graphaware.runtime.GraphAwareRuntimeFactory;
 import com.graphaware.runtime.metadata.DefaultTxDrivenModuleMetadata;
@@ -30,15 +37,20 @@ import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
+import static com.graphaware.module.timetree.domain.Resolution.HOUR;
 import static com.graphaware.module.timetree.domain.Resolution.MINUTE;
 import static com.graphaware.module.timetree.domain.Resolution.MONTH;
 import com.graphaware.test.integration.EmbeddedDatabaseIntegrationTest;
 import static com.graphaware.test.unit.GraphUnit.assertSameGraph;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.neo4j.graphdb.Label.*;
 
 import java.io.File;
@@ -50,6 +62,7 @@ public class TimeTreeModuleSingleRootProgrammaticTest extends EmbeddedDatabaseIn
 
     private static final Label Email = label("Email");
     private static final Label Event = label("Event");
+    private static final RelationshipType AT_TIME = RelationshipType.withName("AT_TIME");
     private static final long TIMESTAMP;
 
     static {
@@ -282,6 +295,374 @@ public class TimeTreeModuleSingleRootProgrammaticTest extends EmbeddedDatabaseIn
         );
     }
 
+    @Test
+    public void shouldMaintainCountsAndAggregatesOfAttachedEvents() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        runtime.registerModule(new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withEventCounting(true).withAggregatedProperty("amount"), getDatabase()));
+        runtime.start();
+
+        long[] eventIds = new long[4];
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 4; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("amount", 10 * (i + 1));
+                node.setProperty("timestamp", TIMESTAMP + i * 24 * 3600 * 1000L);
+                eventIds[i] = node.getId();
+            }
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            getDatabase().getNodeById(eventIds[0]).setProperty("amount", 5);
+            getDatabase().getNodeById(eventIds[1]).setProperty("timestamp", TIMESTAMP + 30L * 24 * 3600 * 1000);
+            getDatabase().getNodeById(eventIds[2]).removeProperty("timestamp");
+            getDatabase().getNodeById(eventIds[3]).setProperty("amount", 100);
+            getDatabase().getNodeById(eventIds[3]).setProperty("timestamp", TIMESTAMP + 4 * 24 * 3600 * 1000L);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+            assertTrue(registry.getEventSettings().isCountingEvents());
+            TimedEvents timedEvents = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry.getEventSettings());
+            TimeInstant april = TimeInstant.instant(TIMESTAMP).with(MONTH);
+            TimeInstant may = TimeInstant.instant(TIMESTAMP + 30L * 24 * 3600 * 1000).with(MONTH);
+
+            assertEquals(2, timedEvents.countEvents(april, april, null));
+            assertEquals(3, timedEvents.countEvents(april, may, null));
+
+            Aggregate aprilAggregate = timedEvents.aggregateEvents(april, april, "amount", null, Direction.INCOMING);
+            assertEquals(2, aprilAggregate.getCount());
+            assertEquals(105, aprilAggregate.getSum(), 0);
+            assertEquals(5, aprilAggregate.getMin(), 0);
+            assertEquals(100, aprilAggregate.getMax(), 0);
+
+            Aggregate mayAggregate = timedEvents.aggregateEvents(may, may, "amount", null, Direction.INCOMING);
+            assertEquals(1, mayAggregate.getCount());
+            assertEquals(20, mayAggregate.getAverage(), 0);
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldUpdateCountsWhenAttachedEventsAreDeleted() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        runtime.registerModule(new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withEventCounting(true), getDatabase()));
+        runtime.start();
+
+        long[] eventIds = new long[3];
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 3; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP + i * 3600 * 1000L);
+                eventIds[i] = node.getId();
+            }
+            tx.success();
+        }
+
+        TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+        TimedEvents timedEvents = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry.getEventSettings());
+        TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("id", eventIds[0]);
+        getDatabase().execute("MATCH (e:Event) WHERE id(e) = {id} DETACH DELETE e", params);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(2, timedEvents.countEvents(day, day, null));
+            tx.success();
+        }
+
+        //detaching through the API in a transaction the module sees must not be counted twice
+        try (Transaction tx = getDatabase().beginTx()) {
+            timedEvents.detachEvent(getDatabase().getNodeById(eventIds[1]), AT_TIME, Direction.INCOMING);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(1, timedEvents.countEvents(day, day, null));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldKeepOrderWhenAttachedEventsAreDeleted() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        runtime.registerModule(new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withEventOrdering(true), getDatabase()));
+        runtime.start();
+
+        long[] eventIds = new long[5];
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 5; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP + (4 - i) * 60 * 1000L);
+                eventIds[i] = node.getId();
+            }
+            tx.success();
+        }
+
+        //delete events in the middle and at the end of the order
+        Map<String, Object> params = new HashMap<>();
+        params.put("ids", new long[]{eventIds[2], eventIds[0]});
+        getDatabase().execute("MATCH (e:Event) WHERE id(e) IN {ids} DETACH DELETE e", params);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeTree timeTree = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree();
+            TimedEvents timedEvents = new TimeTreeBackedEvents(timeTree, TimeTreeRegistry.forDatabase(getDatabase()).getEventSettings());
+            TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+            List<Long> found = new ArrayList<>();
+            for (com.graphaware.module.timetree.domain.Event event : timedEvents.getEvents(day)) {
+                found.add(event.getNode().getId());
+            }
+            assertEquals(java.util.Arrays.asList(eventIds[4], eventIds[3], eventIds[1]), found);
+
+            List<com.graphaware.module.timetree.domain.Event> latest = timedEvents.getLatestEvents(day, null, Direction.INCOMING, 2);
+            assertEquals(eventIds[1], latest.get(0).getNode().getId());
+            assertEquals(eventIds[3], latest.get(1).getNode().getId());
+
+            //the order has been repaired rather than left to be rebuilt
+            assertEquals(3L, timeTree.getInstant(day).getProperty("orderedCount"));
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldUpdateAggregatesWhenAttachedEventsAreDeleted() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        runtime.registerModule(new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withAggregatedProperty("amount"), getDatabase()));
+        runtime.start();
+
+        long[] eventIds = new long[3];
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 3; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("amount", 10 * (i + 1));
+                node.setProperty("timestamp", TIMESTAMP + i * 3600 * 1000L);
+                eventIds[i] = node.getId();
+            }
+            tx.success();
+        }
+
+        //the maximum goes away, so it has to be recomputed from the remaining events
+        Map<String, Object> params = new HashMap<>();
+        params.put("id", eventIds[2]);
+        getDatabase().execute("MATCH (e:Event) WHERE id(e) = {id} DETACH DELETE e", params);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+            TimedEvents timedEvents = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry.getEventSettings());
+            TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+            Aggregate aggregate = timedEvents.aggregateEvents(day, day, "amount", null, Direction.INCOMING);
+            assertEquals(2, aggregate.getCount());
+            assertEquals(30, aggregate.getSum(), 0);
+            assertEquals(10, aggregate.getMin(), 0);
+            assertEquals(20, aggregate.getMax(), 0);
+
+            tx.success();
+        }
+
+        //detaching one event and deleting another of the same instant in one transaction
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+            TimedEvents timedEvents = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry.getEventSettings());
+            timedEvents.detachEvent(getDatabase().getNodeById(eventIds[0]), AT_TIME, Direction.INCOMING);
+            getDatabase().getNodeById(eventIds[1]).getSingleRelationship(AT_TIME, Direction.OUTGOING).delete();
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            TimeTreeRegistry registry = TimeTreeRegistry.forDatabase(getDatabase());
+            TimedEvents timedEvents = new TimeTreeBackedEvents(registry.getDefaultTimeTree(), registry.getEventSettings());
+            TimeInstant year = TimeInstant.instant(TIMESTAMP).with(com.graphaware.module.timetree.domain.Resolution.YEAR);
+
+            Aggregate aggregate = timedEvents.aggregateEvents(year, year, "amount", null, Direction.INCOMING);
+            assertEquals(0, aggregate.getCount());
+            assertEquals(0, aggregate.getSum(), 0);
+
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRefineDenseInstantsIntoFinerChildren() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        TimeTreeModule module = new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withRefinement(5, HOUR), getDatabase());
+        runtime.registerModule(module);
+        runtime.start();
+
+        List<Long> eventIds = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 6; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP - i * 3600 * 1000L);
+                eventIds.add(0, node.getId());
+            }
+            tx.success();
+        }
+
+        TimeTree timeTree = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree();
+        TimedEvents timedEvents = new TimeTreeBackedEvents(timeTree);
+        TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(6, timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING));
+            tx.success();
+        }
+
+        module.refineDenseInstants();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(0, timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING));
+            for (int i = 0; i < 6; i++) {
+                assertEquals(1, timeTree.getInstant(TimeInstant.instant(TIMESTAMP - i * 3600 * 1000L).with(HOUR)).getDegree(AT_TIME, Direction.INCOMING));
+            }
+
+            List<Long> foundIds = new ArrayList<>();
+            for (com.graphaware.module.timetree.domain.Event event : timedEvents.getEvents(day, day, null, Direction.INCOMING)) {
+                foundIds.add(event.getNode().getId());
+            }
+            assertEquals(eventIds, foundIds);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node node = getDatabase().createNode(Event);
+            node.setProperty("timestamp", TIMESTAMP + 1000);
+            tx.success();
+        }
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(0, timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING));
+            assertEquals(2, timeTree.getInstant(TimeInstant.instant(TIMESTAMP).with(HOUR)).getDegree(AT_TIME, Direction.INCOMING));
+            assertEquals(7, timedEvents.getEvents(day, day, null, Direction.INCOMING).size());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsWithoutTimestampShouldStayOnRefinedInstant() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        TimeTreeModule module = new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withRefinement(5, HOUR), getDatabase());
+        runtime.registerModule(module);
+        runtime.start();
+
+        TimeTree timeTree = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree();
+        TimedEvents timedEvents = new TimeTreeBackedEvents(timeTree);
+        TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 3; i++) {
+                timedEvents.attachEvent(getDatabase().createNode(), AT_TIME, day);
+            }
+            for (int i = 0; i < 6; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP - i * 3600 * 1000L);
+            }
+            tx.success();
+        }
+
+        module.refineDenseInstants();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(3, timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING));
+            for (int i = 0; i < 6; i++) {
+                assertEquals(1, timeTree.getInstant(TimeInstant.instant(TIMESTAMP - i * 3600 * 1000L).with(HOUR)).getDegree(AT_TIME, Direction.INCOMING));
+            }
+            assertEquals(9, timedEvents.getEvents(day, day, null, Direction.INCOMING).size());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRefineDenseInstantsWhoseEventsAreSpreadOverBuckets() {
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        TimeTreeModule module = new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withBucketing(3, 4).withRefinement(8, HOUR), getDatabase());
+        runtime.registerModule(module);
+        runtime.start();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 10; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP - i * 3600 * 1000L);
+            }
+            tx.success();
+        }
+
+        TimeTree timeTree = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree();
+        TimedEvents timedEvents = new TimeTreeBackedEvents(timeTree);
+        TimeInstant day = TimeInstant.instant(TIMESTAMP);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            //most events sit in buckets, so the day's own degree stays below the refinement threshold
+            assertTrue(timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING) < 8);
+            assertEquals(10, EventBuckets.degree(timeTree.getInstant(day), AT_TIME, Direction.INCOMING));
+            tx.success();
+        }
+
+        module.refineDenseInstants();
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(0, EventBuckets.degree(timeTree.getInstant(day), AT_TIME, Direction.INCOMING));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(1, EventBuckets.degree(timeTree.getInstant(TimeInstant.instant(TIMESTAMP - i * 3600 * 1000L).with(HOUR)), AT_TIME, Direction.INCOMING));
+            }
+            assertEquals(10, timedEvents.getEvents(day, day, null, Direction.INCOMING).size());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void eventsShouldBeAttachedAsynchronouslyWhenAttachQueueConfigured() {
+        //Given
+        long leftoverId;
+        try (Transaction tx = getDatabase().beginTx()) {
+            Node leftover = getDatabase().createNode(Event, TimeTreeAttachQueue.PENDING_LABEL);
+            leftover.setProperty("timestamp", TIMESTAMP - 1000);
+            leftoverId = leftover.getId();
+            tx.success();
+        }
+
+        GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
+        TimeTreeModule module = new TimeTreeModule("timetree", TimeTreeConfiguration.defaultConfiguration().withAttachQueueCapacity(100), getDatabase());
+        runtime.registerModule(module);
+        runtime.start();
+
+        //When
+        List<Long> eventIds = new ArrayList<>();
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (int i = 0; i < 3; i++) {
+                Node node = getDatabase().createNode(Event);
+                node.setProperty("timestamp", TIMESTAMP + i * 1000);
+                eventIds.add(node.getId());
+            }
+            tx.success();
+        }
+
+        module.attachPendingEvents();
+
+        //Then
+        TimeTree timeTree = TimeTreeRegistry.forDatabase(getDatabase()).getDefaultTimeTree();
+        TimeInstant day = TimeInstant.instant(TIMESTAMP);
+        eventIds.add(0, leftoverId);
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertEquals(4, timeTree.getInstant(day).getDegree(AT_TIME, Direction.INCOMING));
+            for (Long eventId : eventIds) {
+                assertEquals(false, getDatabase().getNodeById(eventId).hasLabel(TimeTreeAttachQueue.PENDING_LABEL));
+            }
+            tx.success();
+        }
+
+        assertEquals(0, module.getAttachQueue().getQueueSize());
+        assertEquals(0, module.getAttachQueue().getLag());
+        assertEquals(4, module.getAttachQueue().getAttachedCount());
+        assertEquals(0, module.getAttachQueue().getFailedCount());
+    }
+
     @Test
     public void shouldUnAttachEventWithRemovedTimestamp() {
         GraphAwareRuntime runtime = GraphAwareRuntimeFactory.createRuntime(getDatabase());
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013-2016 GraphAware
+ *
+ * This file is part of the GraphAware Framework.
+ *
+ * GraphAware Framework is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of
+ * the GNU General Public License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.graphaware.module.timetree.module;
+
+import com.graphaware.module.timetree.CustomRootTimeTree;
+import com.graphaware.module.timetree.SingleTimeTree;
+import com.graphaware.module.timetree.TimeTree;
+import com.graphaware.module.timetree.domain.TimeInstant;
+import com.graphaware.test.integration.EmbeddedDatabaseIntegrationTest;
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import static com.graphaware.module.timetree.domain.Resolution.MINUTE;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link TimeTreePreAllocator}.
+ */
+public class TimeTreePreAllocatorTest extends EmbeddedDatabaseIntegrationTest {
+
+    private static final long TEN_MINUTES = 10 * 60 * 1000;
+
+    @Test
+    public void instantsShouldBeCreatedUntilHorizon() {
+        //Given
+        TimeTree timeTree = new SingleTimeTree(getDatabase());
+        TimeTreePreAllocator preAllocator = new TimeTreePreAllocator(getDatabase(), timeTree, TimeTreeConfiguration.defaultConfiguration().withResolution(MINUTE).withPreAllocationHorizon(TEN_MINUTES));
+        assertEquals(TimeTreePreAllocator.NOT_ALLOCATED, preAllocator.getAllocatedUntil());
+
+        //When
+        long now = System.currentTimeMillis();
+        preAllocator.preAllocate();
+
+        //Then
+        assertTrue(preAllocator.getAllocatedUntil() >= MINUTE.truncate(now + TEN_MINUTES, TimeInstant.instant(now).getTimezone()));
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            for (long time = now + 60 * 1000; time <= now + TEN_MINUTES; time += 60 * 1000) {
+                assertNotNull(timeTree.getInstant(TimeInstant.instant(time).with(MINUTE)));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void instantsShouldBeCreatedForRegisteredCustomRoots() {
+        //Given
+        Node root;
+        try (Transaction tx = getDatabase().beginTx()) {
+            root = getDatabase().createNode(Label.label("CustomRoot"));
+            tx.success();
+        }
+
+        TimeTreePreAllocator preAllocator = new TimeTreePreAllocator(getDatabase(), new SingleTimeTree(getDatabase()), TimeTreeConfiguration.defaultConfiguration().withResolution(MINUTE).withPreAllocationHorizon(TEN_MINUTES));
+        preAllocator.registerCustomRoot(root.getId());
+
+        //When
+        long now = System.currentTimeMillis();
+        preAllocator.preAllocate();
+
+        //Then
+        assertNotEquals(TimeTreePreAllocator.NOT_ALLOCATED, preAllocator.getAllocatedUntil());
+
+        try (Transaction tx = getDatabase().beginTx()) {
+            assertNotNull(new CustomRootTimeTree(root).getInstant(TimeInstant.instant(now + TEN_MINUTES).with(MINUTE)));
+            tx.success();
+        }
+    }
+}
@@ -43,6 +43,7 @@ public class TimedEventsProcedureTest extends GraphAwareIntegrationTest {
     private static final String EMAIL = "Email";
     private static final String TIME_PROPERTY = "time";
     private static final String DEFAULT_REL_TYPE = "SENT_ON";
+    private static final long HOUR = 3600 * 1000;
 
     @Override
     protected String configFile() {
@@ -215,6 +216,101 @@ public class TimedEventsProcedureTest extends GraphAwareIntegrationTest {
         assertEquals(10, i);
     }
 
+    @Test
+    public void testRangedEventsAreStreamedInChronologicalOrderUpToLimit() {
+        long t = dateToMillis(2016, 1, 1, 1);
+        for (int i = 0; i < 10; ++i) {
+            createEvent(t + (i * HOUR));
+        }
+        Map<String, Object> map = new HashMap<>();
+        Map<String, Object> params = new HashMap<>();
+        params.put("start", t);
+        params.put("end", t + 10 * HOUR);
+        params.put("resolution", "HOUR");
+        params.put("timezone", "GMT+1");
+        map.put("params", params);
+
+        int i = 0;
+        try (Transaction tx = getDatabase().beginTx()) {
+            Result rs = getDatabase().execute("CALL ga.timetree.events.range({params}) " +
+                    "YIELD node RETURN node LIMIT 3", map);
+            while (rs.hasNext()) {
+                Node node = (Node) rs.next().get("node");
+                assertEquals(t + (i * HOUR), node.getProperty(TIME_PROPERTY));
+                ++i;
+            }
+            tx.success();
+        }
+        assertEquals(3, i);
+    }
+
+    @Test
+    public void testRangedEventsArePagedWithCursor() {
+        long t = dateToMillis(2016, 1, 1, 1);
+        for (int i = 0; i < 10; ++i) {
+            createEvent(t + (i * HOUR));
+        }
+        Map<String, Object> map = new HashMap<>();
+        Map<String, Object> params = new HashMap<>();
+        params.put("start", t);
+        params.put("end", t + 10 * HOUR);
+        params.put("resolution", "HOUR");
+        params.put("timezone", "GMT+1");
+        params.put("limit", 4);
+        map.put("params", params);
+
+        int i = 0;
+        String cursor = null;
+        try (Transaction tx = getDatabase().beginTx()) {
+            do {
+                params.put("cursor", cursor);
+                Result rs = getDatabase().execute("CALL ga.timetree.events.range({params}) " +
+                        "YIELD node, cursor RETURN node, cursor", map);
+                int rows = 0;
+                while (rs.hasNext()) {
+                    Map<String, Object> record = rs.next();
+                    assertEquals(t + (i * HOUR), ((Node) record.get("node")).getProperty(TIME_PROPERTY));
+                    cursor = (String) record.get("cursor");
+                    ++rows;
+                    ++i;
+                }
+                if (rows < 4) {
+                    cursor = null;
+                }
+            } while (cursor != null);
+            tx.success();
+        }
+        assertEquals(10, i);
+    }
+
+    @Test
+    public void testLatestEventsAreReturnedNewestFirst() {
+        long t = dateToMillis(2016, 1, 1, 1);
+        for (int i = 0; i < 10; ++i) {
+            createEvent(t + (i * HOUR));
+        }
+        Map<String, Object> map = new HashMap<>();
+        Map<String, Object> params = new HashMap<>();
+        params.put("time", t + 5 * HOUR + HOUR / 2);
+        params.put("resolution", "HOUR");
+        params.put("timezone", "GMT+1");
+        params.put("limit", 3);
+        map.put("params", params);
+
+        int i = 0;
+        try (Transaction tx = getDatabase().beginTx()) {
+            Result rs = getDatabase().execute("CALL ga.timetree.events.latest({params}) " +
+                    "YIELD node RETURN node", map);
+            while (rs.hasNext()) {
+                Node node = (Node) rs.next().get("node");
+                assertEquals(t + ((5 - i) * HOUR), node.getProperty(TIME_PROPERTY));
+                ++i;
+            }
+            tx.success();
+        }
+        assertEquals(3, i);
+    }
+
     @Test
     public void testRangedEventsReturnedForCustomRoot() {
         long customRootId;